@@ -16,114 +16,76 @@
  */
 package com.gmail.woodyc40.topics;
 
+import com.gmail.woodyc40.topics.codec.*;
 import com.google.common.base.Charsets;
-import com.google.common.io.ByteStreams;
 
 import java.io.*;
 import java.lang.instrument.Instrumentation;
-import java.net.Socket;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class AgentMain {
+    /** The number of threads serving requests */
+    private static final int WORKERS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    /** The frame encoder for each thread writing signals */
+    private static final ThreadLocal<FrameEncoder> ENCODER =
+            ThreadLocal.withInitial(() -> new FrameEncoder(BufferPool.shared()));
+    /** The conditions of conditional breakpoints */
+    private static Conditions conditions;
+    /** The methods whose calls are recorded */
+    private static Captures captures;
+
     public static void premain(String arg, Instrumentation inst) throws IOException {
-        Socket socket = new Socket("127.0.0.1", 5000);
+        HookPath.expose(inst);
+        conditions = new Conditions(inst);
+        inst.addTransformer(conditions, true);
+        captures = new Captures(inst);
+        inst.addTransformer(captures, true);
+        // Initialized up front so that the debugger can break
+        // in the hooks before any condition is injected
+        Hooks.test(false, -1);
 
-        new Thread(() -> {
-            try {
-                ByteArrayOutputStream headerAccum =
-                        new ByteArrayOutputStream();
-                ByteArrayOutputStream accumulator =
-                        new ByteArrayOutputStream();
-
-                OutputStream os = socket.getOutputStream();
-                DataOutputStream out = new DataOutputStream(os);
-                wi(out);
-
-                InputStream is = socket.getInputStream();
-
-                int payloadLen = 0;
-                int target = -1;
-                byte[] header = new byte[4];
-                byte[] payload = new byte[1024];
-                while (!socket.isClosed()) {
-                    int read = is.read(header);
-                    if (read > -1) {
-                        headerAccum.write(header, 0, read);
-                    }
+        ByteChannel socket = connect(arg);
+        ExecutorService workers = Executors.newFixedThreadPool(WORKERS, r -> {
+            Thread thread = new Thread(r, "JDB agent worker");
+            thread.setDaemon(true);
+            return thread;
+        });
 
-                    if (headerAccum.size() >= 4) {
-                        header = headerAccum.toByteArray();
-                        if (headerAccum.size() > 4) {
-                            for (int i = 4; i < header.length; i++) {
-                                accumulator.write(header[i]);
-                            }
-                        }
+        new Thread(() -> {
+            FrameDecoder decoder = new FrameDecoder(BufferPool.shared());
+            ByteBufferInputStream stream = new ByteBufferInputStream();
+            DataInputStream in = new DataInputStream(stream);
 
-                        target = (int) header[0] << 24;
-                        target |= (int) header[1] << 16;
-                        target |= (int) header[2] << 8;
-                        target |= header[3] & 0xFF;
-                    }
+            try {
+                wi(socket);
 
-                    if (target != -1) {
-                        int len;
-                        if ((len = is.read(payload)) > -1) {
-                            payloadLen += len;
-                            accumulator.write(payload, 0, len);
-                            if (payloadLen >= target) {
-                                DataInputStream in = new DataInputStream(
-                                        new ByteArrayInputStream(accumulator.toByteArray()));
-                                int id = in.readInt();
-
-                                switch (id) {
-                                    case 5: // exit
-                                        int code = in.readInt();
-                                        String msg = rstr(in);
-                                        System.out.println("EXIT: " + msg);
-                                        System.exit(code);
-                                    case 4: // req method
-                                        String clsName = rstr(in);
-                                        String meName = rstr(in);
-                                        String desc = rstr(in);
-
-                                        Class<?> cls = Class.forName(clsName);
-                                        InputStream cf = cls.getResourceAsStream(cls.getSimpleName() + ".class");
-                                        byte[] bytes = ByteStreams.toByteArray(cf);
-                                        wrd(out, bytes, meName, desc);
-
-                                        break;
-                                    case 2: // busy
-                                        System.out.println("BUSY");
-                                        break;
-                                    case 1: // resp init
-                                        System.out.println("CONNECTION SUCCESS");
-                                        break;
-                                    default:
-                                        System.out.println("INVALID SIGNAL: " + id);
-                                }
-
-                                target = -1;
-                                payloadLen = 0;
-                                headerAccum = new ByteArrayOutputStream();
-                                accumulator = new ByteArrayOutputStream();
-
-                                int headerLen = 0;
-                                while (in.available() > 0) {
-                                    if (headerLen < 4) {
-                                        headerLen += 1;
-                                        headerAccum.write((int) in.readByte());
-                                    } else {
-                                        accumulator.write((int) in.readByte());
-                                    }
-                                }
-                            }
-                        } else {
-                            break;
+                while (socket.read(decoder.buffer()) > -1) {
+                    Frame frame;
+                    while ((frame = decoder.next()) != null) {
+                        try {
+                            stream.reset(frame.getPayload());
+                            handle(frame.getId(), frame.getCorrelationId(), in, socket, workers);
+                        } finally {
+                            frame.release();
                         }
                     }
                 }
-            } catch (IOException | ClassNotFoundException e) {
+            } catch (IOException e) {
                 throw new RuntimeException(e);
             } finally {
+                workers.shutdownNow();
+                decoder.close();
                 try {
                     socket.close();
                 } catch (IOException e) {
@@ -133,34 +95,213 @@ public class AgentMain {
         }).start();
     }
 
+    /**
+     * Opens the channel to the debugger: a shared memory
+     * ring file if the agent argument is {@code shm}, or
+     * {@code shm:suffix} to name the file, or a local socket
+     * otherwise.
+     *
+     * @param arg the agent argument
+     * @return the channel to the debugger
+     * @throws IOException if the channel cannot be opened
+     */
+    private static ByteChannel connect(String arg) throws IOException {
+        if (arg != null && (arg.equals("shm") || arg.startsWith("shm:"))) {
+            // Any ring of this PID was left by a VM which is gone
+            SharedRingChannel.removeStale(pid());
+            Path path = SharedRingChannel.pathFor(pid(), arg.equals("shm") ? null : arg.substring(4));
+            SharedRingChannel channel = SharedRingChannel.create(path, SharedRingChannel.DEFAULT_CAPACITY);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    channel.close();
+                    // Removed even if no debugger ever opened it,
+                    // a debugger which has keeps its mapping
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+
+            return channel;
+        }
+
+        return SocketChannel.open(new InetSocketAddress("127.0.0.1", 5000));
+    }
+
+    private static void handle(int id, int correlationId, DataInputStream in, ByteChannel out, ExecutorService workers) throws IOException {
+        switch (id) {
+            case Protocol.EXIT:
+                int code = in.readInt();
+                String msg = rstr(in);
+                System.out.println("EXIT: " + msg);
+                System.exit(code);
+            case Protocol.REQ_METHOD:
+                String clsName = rstr(in);
+                String meName = rstr(in);
+                String desc = rstr(in);
+
+                // Served concurrently, responses may be sent
+                // in any order
+                serve(workers, out, correlationId, () -> {
+                    List<String[]> sites = CallSites.of(Class.forName(clsName), meName, desc);
+                    if (sites == null) {
+                        we(out, correlationId, "no class file for " + clsName);
+                        return;
+                    }
+                    wcs(out, correlationId, sites);
+                });
+
+                break;
+            case Protocol.REQ_CONDITION:
+                int conditionId = in.readInt();
+                String conditionCls = rstr(in);
+                int line = in.readInt();
+                String expression = rstr(in);
+
+                serve(workers, out, correlationId,
+                        () -> wrc(out, correlationId, conditions.add(conditionId, conditionCls, line, expression)));
+                break;
+            case Protocol.CLEAR_CONDITION:
+                int clearId = in.readInt();
+                serve(workers, out, correlationId, () -> wrc(out, correlationId, conditions.remove(clearId)));
+                break;
+            case Protocol.REQ_CAPTURE:
+                String captureCls = rstr(in);
+                String captureName = rstr(in);
+                String captureDesc = rstr(in);
+                serve(workers, out, correlationId,
+                        () -> wrcap(out, correlationId, captures.add(captureCls, captureName, captureDesc)));
+                break;
+            case Protocol.CLEAR_CAPTURE:
+                String restoreCls = rstr(in);
+                String restoreName = rstr(in);
+                String restoreDesc = rstr(in);
+                serve(workers, out, correlationId,
+                        () -> wrcap(out, correlationId, captures.remove(restoreCls, restoreName, restoreDesc)));
+                break;
+            case Protocol.BUSY:
+                System.out.println("BUSY");
+                break;
+            case Protocol.RESP_INIT:
+                System.out.println("CONNECTION SUCCESS");
+                break;
+            case Protocol.REJECT:
+                // The debugger closes the connection afterwards
+                System.out.println("REJECTED: " + rstr(in));
+                break;
+            default:
+                System.out.println("INVALID SIGNAL: " + id);
+        }
+    }
+
+    private static void serve(ExecutorService workers, ByteChannel out, int correlationId, Request request) {
+        workers.execute(() -> {
+            try {
+                request.serve();
+            } catch (Exception e) {
+                try {
+                    we(out, correlationId, e.toString());
+                } catch (IOException e1) {
+                    e1.printStackTrace();
+                }
+            }
+        });
+    }
+
     private static String rstr(DataInputStream in) throws IOException {
         int i = in.readInt();
         byte[] bytes = new byte[i];
         in.readFully(bytes);
 
-        return new String(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private static void wstr(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void send(ByteChannel out, FrameEncoder encoder) throws IOException {
+        ByteBuffer frame = encoder.finish();
+        try {
+            synchronized (out) {
+                while (frame.hasRemaining()) {
+                    out.write(frame);
+                }
+            }
+        } finally {
+            encoder.release(frame);
+        }
+    }
+
+    private static int pid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        return Integer.parseInt(name.substring(0, name.indexOf('@')));
+    }
+
+    public static void wi(ByteChannel out) throws IOException {
+        FrameEncoder encoder = ENCODER.get();
+        DataOutputStream dos = encoder.begin(Protocol.INIT, 0);
+        dos.writeInt(pid());
+        dos.writeInt(Protocol.VERSION);
+        dos.writeInt(Protocol.SCHEMA_HASH);
+        send(out, encoder);
     }
 
-    public static void wi(DataOutputStream out) throws IOException {
-        out.writeInt(4);
-        out.writeInt(0);
+    public static void we(ByteChannel out, int correlationId, String message) throws IOException {
+        FrameEncoder encoder = ENCODER.get();
+        DataOutputStream dos = encoder.begin(Protocol.ERROR, correlationId);
+        wstr(dos, message);
+        send(out, encoder);
     }
 
-    public static void wrd(DataOutputStream out, byte[] data, String method, String desc) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        dos.writeInt(3);
+    public static void wrc(ByteChannel out, int correlationId, String status) throws IOException {
+        FrameEncoder encoder = ENCODER.get();
+        DataOutputStream dos = encoder.begin(Protocol.RESP_CONDITION, correlationId);
+        wstr(dos, status);
+        send(out, encoder);
+    }
 
-        dos.writeInt(data.length);
-        dos.write(data);
+    public static void wrcap(ByteChannel out, int correlationId, String status) throws IOException {
+        FrameEncoder encoder = ENCODER.get();
+        DataOutputStream dos = encoder.begin(Protocol.RESP_CAPTURE, correlationId);
+        wstr(dos, status);
+        send(out, encoder);
+    }
 
-        dos.writeInt(method.length());
-        dos.write(method.getBytes(Charsets.UTF_8));
+    public static void wcs(ByteChannel out, int correlationId, List<String[]> sites) throws IOException {
+        FrameEncoder encoder = ENCODER.get();
+        DataOutputStream dos = encoder.begin(Protocol.RESP_CALL_SITES, correlationId);
 
-        dos.writeInt(desc.length());
-        dos.write(desc.getBytes(Charsets.UTF_8));
+        // Owners and descriptors repeat, so each distinct
+        // string is only written once
+        Map<String, Integer> table = new HashMap<>();
+        int[] idx = new int[sites.size() * 3];
+        for (int i = 0; i < sites.size(); i++) {
+            String[] site = sites.get(i);
+            for (int j = 0; j < 3; j++) {
+                Integer prev = table.putIfAbsent(site[j], table.size());
+                idx[i * 3 + j] = prev == null ? table.size() - 1 : prev;
+            }
+        }
+
+        String[] strings = new String[table.size()];
+        table.forEach((k, v) -> strings[v] = k);
+        dos.writeInt(strings.length);
+        for (String s : strings) {
+            wstr(dos, s);
+        }
+
+        dos.writeInt(sites.size());
+        for (int i : idx) {
+            dos.writeInt(i);
+        }
+
+        send(out, encoder);
+    }
 
-        out.writeInt(baos.size());
-        baos.writeTo(out);
+    private interface Request {
+        void serve() throws Exception;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,161 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics;
+
+import com.gmail.woodyc40.topics.codec.CallLayout;
+
+import java.util.*;
+
+/**
+ * The calls recorded in the methods of a thread whose
+ * calls are captured.
+ *
+ * <p>Each thread has one ring holding its most recent
+ * calls, with their arguments and return values, which
+ * the injected code writes through the static methods
+ * below. The ring is also kept in a local variable of the
+ * method, named {@link CallLayout#LOCAL}, from which the
+ * debugger reads the fields of a suspended thread's ring in
+ * a few batched requests, as laid out by
+ * {@link CallLayout}. The values are held until they are
+ * overwritten or every ring is cleared once no calls are
+ * captured, so they are not collected sooner.</p>
+ */
+public final class CallRing {
+    /** The number of calls kept, a power of two */
+    private static final int CAPACITY = CallLayout.CAPACITY;
+    /** The number of arguments kept of each call */
+    private static final int MAX_ARGS = CallLayout.MAX_ARGS;
+    /** The slots of each call */
+    private static final int WIDTH = CallLayout.WIDTH;
+    /** Set in the meta of a call which has returned */
+    private static final int RETURNED = CallLayout.RETURNED;
+
+    /** The ring of each thread */
+    private static final ThreadLocal<CallRing> RINGS = ThreadLocal.withInitial(CallRing::create);
+    /** Every ring which has been created, until its thread is collected */
+    private static final Map<CallRing, Boolean> ALL = Collections.synchronizedMap(new WeakHashMap<>());
+
+    // The fields are read by the names in CallLayout
+    /** The site, return value and arguments of each call */
+    final Object[] data = new Object[CAPACITY * WIDTH];
+    /** The argument count of each call, and whether it returned */
+    final int[] meta = new int[CAPACITY];
+    /** The number of calls ever recorded */
+    int count;
+
+    private CallRing() {
+    }
+
+    private static CallRing create() {
+        CallRing ring = new CallRing();
+        ALL.put(ring, Boolean.TRUE);
+        return ring;
+    }
+
+    /**
+     * Drops the values held by the ring of every thread.
+     * Called once no calls are captured, as a ring is kept
+     * by its thread for as long as the thread lives.
+     */
+    public static void clearAll() {
+        List<CallRing> rings;
+        synchronized (ALL) {
+            rings = new ArrayList<>(ALL.keySet());
+        }
+
+        for (CallRing ring : rings) {
+            Arrays.fill(ring.data, null);
+        }
+    }
+
+    /**
+     * Obtains the ring of the current thread. Called when a
+     * method whose calls are captured is entered.
+     *
+     * @return the ring
+     */
+    public static CallRing get() {
+        return RINGS.get();
+    }
+
+    /**
+     * Obtains the number of calls which have been recorded,
+     * so the debugger can tell the calls of the current
+     * invocation from those before it.
+     *
+     * @param ring the ring
+     * @return the number of calls
+     */
+    public static int mark(CallRing ring) {
+        return ring.count;
+    }
+
+    /**
+     * Records a call before it is made.
+     *
+     * @param ring the ring
+     * @param site the method called
+     * @param argc the number of arguments
+     * @return the slot of the call
+     */
+    public static int call(CallRing ring, String site, int argc) {
+        int slot = ring.count++ & (CAPACITY - 1);
+        int base = slot * WIDTH;
+        ring.data[base] = site;
+        Arrays.fill(ring.data, base + 1, base + WIDTH, null);
+        ring.meta[slot] = Math.min(argc, MAX_ARGS);
+        return slot;
+    }
+
+    /**
+     * Records an argument of a call.
+     *
+     * @param value the boxed argument
+     * @param ring the ring
+     * @param slot the slot of the call
+     * @param index the index of the argument
+     */
+    public static void arg(Object value, CallRing ring, int slot, int index) {
+        if (index < MAX_ARGS) {
+            ring.data[slot * WIDTH + 2 + index] = value;
+        }
+    }
+
+    /**
+     * Records the value returned by a call.
+     *
+     * @param value the boxed return value
+     * @param ring the ring
+     * @param slot the slot of the call
+     */
+    public static void ret(Object value, CallRing ring, int slot) {
+        ring.data[slot * WIDTH + 1] = value;
+        ring.meta[slot] |= RETURNED;
+    }
+
+    /**
+     * Records that a call which returns nothing has
+     * returned.
+     *
+     * @param ring the ring
+     * @param slot the slot of the call
+     */
+    public static void done(CallRing ring, int slot) {
+        ring.meta[slot] |= RETURNED;
+    }
+}
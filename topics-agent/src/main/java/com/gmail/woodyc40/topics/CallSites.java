@@ -0,0 +1,103 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * Finds the calls made by the methods of loaded classes.
+ *
+ * <p>Each class file is scanned at most once, without
+ * frames or debug information, and the call sites of all
+ * of its methods are kept for later requests.</p>
+ */
+public final class CallSites {
+    /** The call sites of each method, by name + desc */
+    private static final ClassValue<Map<String, List<String[]>>> SCANS = new ClassValue<Map<String, List<String[]>>>() {
+        @Override
+        protected Map<String, List<String[]>> computeValue(Class<?> type) {
+            try (InputStream cf = classFile(type)) {
+                return cf == null ? null : scan(cf);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    };
+
+    private CallSites() {
+    }
+
+    /**
+     * Opens the class file from which the given class was
+     * loaded.
+     *
+     * @param cls the class
+     * @return the class file stream, or {@code null}
+     */
+    public static InputStream classFile(Class<?> cls) {
+        String name = cls.getName();
+        return cls.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class");
+    }
+
+    /**
+     * Obtains the calls made by the given method.
+     *
+     * @param cls the class declaring the method
+     * @param name the method name
+     * @param desc the method descriptor
+     * @return the (owner, name, desc) of each call in
+     * bytecode order, or {@code null} if the class file
+     * cannot be found
+     */
+    public static List<String[]> of(Class<?> cls, String name, String desc) {
+        Map<String, List<String[]>> scan = SCANS.get(cls);
+        if (scan == null) {
+            return null;
+        }
+
+        List<String[]> sites = scan.get(name + desc);
+        return sites == null ? Collections.emptyList() : sites;
+    }
+
+    private static Map<String, List<String[]>> scan(InputStream cf) throws IOException {
+        Map<String, List<String[]>> methods = new HashMap<>();
+        new ClassReader(cf).accept(new ClassVisitor(Opcodes.ASM6) {
+            @Override
+            public MethodVisitor visitMethod(int access, String n, String d, String signature, String[] exceptions) {
+                List<String[]> sites = new ArrayList<>();
+                methods.put(n + d, sites);
+
+                return new MethodVisitor(this.api) {
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String na, String de, boolean itf) {
+                        sites.add(new String[] { owner, na, de });
+                    }
+                };
+            }
+        }, ClassReader.SKIP_FRAMES | ClassReader.SKIP_DEBUG);
+
+        return methods;
+    }
+}
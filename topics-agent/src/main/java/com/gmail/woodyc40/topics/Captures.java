@@ -0,0 +1,427 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics;
+
+import com.gmail.woodyc40.topics.codec.CallLayout;
+import org.objectweb.asm.*;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.security.ProtectionDomain;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Records the arguments and return values of the calls
+ * made by methods of the VM into the {@link CallRing} of
+ * the calling thread.
+ *
+ * <p>Every transform starts from the original class file,
+ * so removing a method and retransforming restores it. The
+ * ring is loaded once on entry into a new local, which is
+ * added to every stack map frame of the method, and each
+ * call site stores its arguments in further locals to
+ * record them before making the call. The recording code
+ * never branches, so no frames are added.</p>
+ */
+final class Captures implements ClassFileTransformer {
+    /** The internal name of the ring */
+    private static final String RING = "com/gmail/woodyc40/topics/CallRing";
+    /** The descriptor of the ring */
+    private static final String RING_DESC = "L" + RING + ";";
+    /** Calls into the agent itself are not recorded */
+    private static final String AGENT = "com/gmail/woodyc40/topics/";
+
+    /** The instrumentation used to retransform classes */
+    private final Instrumentation inst;
+    /** The methods whose calls are recorded */
+    private final List<Capture> captures = new CopyOnWriteArrayList<>();
+
+    Captures(Instrumentation inst) {
+        this.inst = inst;
+    }
+
+    /**
+     * Begins recording the calls made by a method.
+     *
+     * @param className the fully qualified class name
+     * @param name the method name
+     * @param desc the method descriptor
+     * @return a description of the recorded method
+     * @throws UnmodifiableClassException if the class cannot
+     * be retransformed
+     * @throws IllegalArgumentException if the method cannot
+     * be instrumented
+     */
+    String add(String className, String name, String desc) throws UnmodifiableClassException {
+        Capture capture = new Capture(className.replace('.', '/'), name, desc);
+        if (this.captures.contains(capture)) {
+            return "already recording " + capture;
+        }
+        this.captures.add(capture);
+
+        Class<?>[] loaded = this.loaded(capture.className);
+        if (loaded.length == 0) {
+            this.captures.remove(capture);
+            throw new IllegalArgumentException(className + " is not loaded");
+        }
+
+        try {
+            this.inst.retransformClasses(loaded);
+        } catch (LinkageError e) {
+            this.captures.remove(capture);
+            throw new IllegalArgumentException("rejected by the verifier: " + e.getMessage());
+        }
+
+        if (capture.sites < 0) {
+            this.captures.remove(capture);
+            throw new IllegalArgumentException(capture.error == null ? "no method " + capture : capture.error);
+        }
+        return "recording " + capture.sites + " calls in " + capture;
+    }
+
+    /**
+     * Stops recording the calls made by a method, restoring
+     * its code.
+     *
+     * @param className the fully qualified class name
+     * @param name the method name
+     * @param desc the method descriptor
+     * @return a description of the restored method
+     * @throws UnmodifiableClassException if the class cannot
+     * be retransformed
+     */
+    String remove(String className, String name, String desc) throws UnmodifiableClassException {
+        Capture capture = new Capture(className.replace('.', '/'), name, desc);
+        if (!this.captures.remove(capture)) {
+            return "not recording " + capture;
+        }
+
+        Class<?>[] loaded = this.loaded(capture.className);
+        if (loaded.length > 0) {
+            this.inst.retransformClasses(loaded);
+        }
+        if (this.captures.isEmpty()) {
+            CallRing.clearAll();
+        }
+        return "restored " + capture;
+    }
+
+    private Class<?>[] loaded(String internalName) {
+        List<Class<?>> loaded = new ArrayList<>();
+        for (Class<?> cls : this.inst.getAllLoadedClasses()) {
+            if (cls.getName().replace('.', '/').equals(internalName) && this.inst.isModifiableClass(cls)) {
+                loaded.add(cls);
+            }
+        }
+        return loaded.toArray(new Class<?>[0]);
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> redefined,
+                            ProtectionDomain domain, byte[] classFile) {
+        if (className == null || this.captures.isEmpty()) {
+            return null;
+        }
+
+        Map<String, Capture> matched = new HashMap<>();
+        for (Capture capture : this.captures) {
+            if (capture.className.equals(className)) {
+                matched.put(capture.name + capture.desc, capture);
+            }
+        }
+        if (matched.isEmpty()) {
+            return null;
+        }
+
+        if (!HookPath.isVisible(loader)) {
+            for (Capture capture : matched.values()) {
+                capture.sites = -1;
+                capture.error = "the loader of " + className.replace('/', '.') + " cannot see the agent";
+            }
+            return null;
+        }
+
+        // Failures are otherwise swallowed by the VM
+        try {
+            return inject(classFile, matched);
+        } catch (RuntimeException e) {
+            for (Capture capture : matched.values()) {
+                capture.sites = -1;
+                capture.error = e.toString();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Injects the recording code into the captured methods
+     * of a class file.
+     *
+     * @param classFile the original class file
+     * @param matched the captured methods, by name and
+     * descriptor
+     * @return the transformed class file
+     */
+    private static byte[] inject(byte[] classFile, Map<String, Capture> matched) {
+        ClassReader reader = new ClassReader(classFile);
+
+        // The new locals follow those of the method
+        Map<String, Integer> maxLocals = new HashMap<>();
+        reader.accept(new ClassVisitor(Opcodes.ASM6) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                String key = name + desc;
+                if (!matched.containsKey(key) || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+                    return null;
+                }
+
+                return new MethodVisitor(Opcodes.ASM6) {
+                    @Override
+                    public void visitMaxs(int maxStack, int maxLocal) {
+                        maxLocals.put(key, maxLocal);
+                    }
+                };
+            }
+        }, ClassReader.SKIP_FRAMES | ClassReader.SKIP_DEBUG);
+
+        for (Capture capture : matched.values()) {
+            capture.sites = -1;
+            capture.error = null;
+        }
+        if (maxLocals.isEmpty()) {
+            return null;
+        }
+
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        reader.accept(new ClassVisitor(Opcodes.ASM6, writer) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+                Integer locals = maxLocals.get(name + desc);
+                return locals == null ? mv : new Recorder(mv, matched.get(name + desc), locals);
+            }
+        }, ClassReader.EXPAND_FRAMES);
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * A method whose calls are recorded.
+     */
+    private static final class Capture {
+        /** The internal name of the class */
+        final String className;
+        /** The method name */
+        final String name;
+        /** The method descriptor */
+        final String desc;
+        /** The number of call sites last recorded, or -1 */
+        volatile int sites = -1;
+        /** Why the method was last not instrumented */
+        volatile String error;
+
+        Capture(String className, String name, String desc) {
+            this.className = className;
+            this.name = name;
+            this.desc = desc;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Capture)) {
+                return false;
+            }
+
+            Capture capture = (Capture) o;
+            return this.className.equals(capture.className) && this.name.equals(capture.name) &&
+                    this.desc.equals(capture.desc);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.className, this.name, this.desc);
+        }
+
+        @Override
+        public String toString() {
+            return this.className.replace('/', '.') + "." + this.name + this.desc;
+        }
+    }
+
+    /**
+     * Loads the ring on entry and records each call site of
+     * a method.
+     */
+    private static final class Recorder extends MethodVisitor {
+        /** The method being instrumented */
+        private final Capture capture;
+        /** The number of locals of the original method */
+        private final int maxLocals;
+        /** The local holding the ring */
+        private final int ring;
+        /** The local holding the count on entry */
+        private final int start;
+        /** The local holding the slot of the current call */
+        private final int slot;
+        /** The first local holding the arguments of a call */
+        private final int args;
+        /** Where the ring locals are in scope */
+        private final Label from = new Label();
+        private final Label to = new Label();
+        /** The number of call sites recorded */
+        private int sites;
+
+        Recorder(MethodVisitor mv, Capture capture, int maxLocals) {
+            super(Opcodes.ASM6, mv);
+            this.capture = capture;
+            this.maxLocals = maxLocals;
+            this.ring = maxLocals;
+            this.start = maxLocals + 1;
+            this.slot = maxLocals + 2;
+            this.args = maxLocals + 3;
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, RING, "get", "()" + RING_DESC, false);
+            super.visitInsn(Opcodes.DUP);
+            super.visitVarInsn(Opcodes.ASTORE, this.ring);
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, RING, "mark", "(" + RING_DESC + ")I", false);
+            super.visitVarInsn(Opcodes.ISTORE, this.start);
+            super.visitLabel(this.from);
+        }
+
+        @Override
+        public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+            // The locals are padded up to the ring, which is
+            // assigned once on entry and so is always live
+            List<Object> locals = new ArrayList<>(Arrays.asList(local).subList(0, nLocal));
+            int slots = 0;
+            for (Object t : locals) {
+                slots += t == Opcodes.LONG || t == Opcodes.DOUBLE ? 2 : 1;
+            }
+            for (; slots < this.maxLocals; slots++) {
+                locals.add(Opcodes.TOP);
+            }
+            locals.add(RING);
+            locals.add(Opcodes.INTEGER);
+
+            super.visitFrame(type, locals.size(), locals.toArray(), nStack, stack);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+            if (owner.startsWith(AGENT)) {
+                super.visitMethodInsn(opcode, owner, name, desc, itf);
+                return;
+            }
+
+            // The arguments are stored so that they can be
+            // recorded, then loaded again for the call
+            Type[] types = Type.getArgumentTypes(desc);
+            int[] vars = new int[types.length];
+            int next = this.args;
+            for (int i = 0; i < types.length; i++) {
+                vars[i] = next;
+                next += types[i].getSize();
+            }
+            for (int i = types.length - 1; i >= 0; i--) {
+                super.visitVarInsn(types[i].getOpcode(Opcodes.ISTORE), vars[i]);
+            }
+
+            super.visitVarInsn(Opcodes.ALOAD, this.ring);
+            super.visitLdcInsn(owner.replace('/', '.') + "." + name + desc);
+            super.visitLdcInsn(types.length);
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, RING, "call", "(" + RING_DESC + "Ljava/lang/String;I)I", false);
+            super.visitVarInsn(Opcodes.ISTORE, this.slot);
+
+            for (int i = 0; i < Math.min(types.length, CallLayout.MAX_ARGS); i++) {
+                super.visitVarInsn(types[i].getOpcode(Opcodes.ILOAD), vars[i]);
+                this.box(types[i]);
+                super.visitVarInsn(Opcodes.ALOAD, this.ring);
+                super.visitVarInsn(Opcodes.ILOAD, this.slot);
+                super.visitLdcInsn(i);
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, RING, "arg", "(Ljava/lang/Object;" + RING_DESC + "II)V", false);
+            }
+            for (int i = 0; i < types.length; i++) {
+                super.visitVarInsn(types[i].getOpcode(Opcodes.ILOAD), vars[i]);
+            }
+
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+
+            Type result = Type.getReturnType(desc);
+            if (result.getSort() == Type.VOID) {
+                super.visitVarInsn(Opcodes.ALOAD, this.ring);
+                super.visitVarInsn(Opcodes.ILOAD, this.slot);
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, RING, "done", "(" + RING_DESC + "I)V", false);
+            } else {
+                super.visitInsn(result.getSize() == 2 ? Opcodes.DUP2 : Opcodes.DUP);
+                this.box(result);
+                super.visitVarInsn(Opcodes.ALOAD, this.ring);
+                super.visitVarInsn(Opcodes.ILOAD, this.slot);
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, RING, "ret", "(Ljava/lang/Object;" + RING_DESC + "I)V", false);
+            }
+            this.sites++;
+        }
+
+        private void box(Type type) {
+            String owner;
+            switch (type.getSort()) {
+                case Type.BOOLEAN:
+                    owner = "java/lang/Boolean";
+                    break;
+                case Type.CHAR:
+                    owner = "java/lang/Character";
+                    break;
+                case Type.BYTE:
+                    owner = "java/lang/Byte";
+                    break;
+                case Type.SHORT:
+                    owner = "java/lang/Short";
+                    break;
+                case Type.INT:
+                    owner = "java/lang/Integer";
+                    break;
+                case Type.FLOAT:
+                    owner = "java/lang/Float";
+                    break;
+                case Type.LONG:
+                    owner = "java/lang/Long";
+                    break;
+                case Type.DOUBLE:
+                    owner = "java/lang/Double";
+                    break;
+                default:
+                    return;
+            }
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, owner, "valueOf",
+                    "(" + type.getDescriptor() + ")L" + owner + ";", false);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            super.visitLabel(this.to);
+            super.visitLocalVariable(CallLayout.LOCAL, RING_DESC, null, this.from, this.to, this.ring);
+            super.visitLocalVariable(CallLayout.START, "I", null, this.from, this.to, this.start);
+            super.visitMaxs(maxStack, maxLocals);
+            this.capture.sites = this.sites;
+        }
+    }
+}
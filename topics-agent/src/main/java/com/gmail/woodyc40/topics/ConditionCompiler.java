@@ -0,0 +1,473 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Compiles the condition of a conditional breakpoint into
+ * bytecode which leaves its value on the stack.
+ *
+ * <p>Conditions may use the locals visible at the line,
+ * the fields of the class, literals, {@code + - *},
+ * comparisons, {@code ! && ||} and parentheses, with the
+ * precedence they have in Java. Both sides of {@code &&}
+ * and {@code ||} are always evaluated, which is safe
+ * because nothing in a condition can throw or run code of
+ * the VM: there is no division, fields are only read from
+ * {@code this}, and references are compared by identity,
+ * except strings and boxed primitives, which are compared
+ * by value.</p>
+ *
+ * <p>The compiled code is straight line: comparisons are
+ * calls to {@link Hooks}, so injecting it does not change
+ * the stack map frames of the method.</p>
+ */
+final class ConditionCompiler {
+    /** The internal name of the class holding the hooks */
+    static final String HOOKS = Type.getInternalName(Hooks.class);
+    /** The type of null and of reference comparisons */
+    private static final Type OBJECT = Type.getType(Object.class);
+    /** The comparison operators, longest first */
+    private static final String[] COMPARISONS = { "==", "!=", "<=", ">=", "<", ">" };
+    /** The names of the hooks for each comparison operator */
+    private static final String[] HOOK_NAMES = { "eq", "ne", "le", "ge", "lt", "gt" };
+
+    /** The condition source */
+    private final String source;
+    /** The variables which the condition may read */
+    private final Map<String, Variable> scope;
+    /** The position of the next character to parse */
+    private int pos;
+
+    private ConditionCompiler(String source, Map<String, Variable> scope) {
+        this.source = source;
+        this.scope = scope;
+    }
+
+    /**
+     * Compiles a condition.
+     *
+     * @param source the condition source
+     * @param scope the locals visible at the line by name,
+     * and the fields of the class by {@code this.} and their
+     * name
+     * @return the compiled condition, which leaves a
+     * boolean on the stack
+     * @throws IllegalArgumentException if the condition is
+     * malformed or mistyped
+     */
+    static Node compile(String source, Map<String, Variable> scope) {
+        ConditionCompiler compiler = new ConditionCompiler(source, scope);
+        Node node = compiler.or();
+        compiler.skipSpace();
+        if (compiler.pos < source.length()) {
+            throw compiler.error("unexpected " + source.substring(compiler.pos));
+        }
+
+        if (node.type.getSort() != Type.BOOLEAN) {
+            throw new IllegalArgumentException("condition is a " + node.type.getClassName() + ", not a boolean");
+        }
+        return node;
+    }
+
+    private Node or() {
+        Node node = this.and();
+        while (this.accept("||")) {
+            node = logical(node, this.and(), Opcodes.IOR);
+        }
+        return node;
+    }
+
+    private Node and() {
+        Node node = this.comparison();
+        while (this.accept("&&")) {
+            node = logical(node, this.comparison(), Opcodes.IAND);
+        }
+        return node;
+    }
+
+    private Node comparison() {
+        Node left = this.additive();
+        for (int i = 0; i < COMPARISONS.length; i++) {
+            if (this.accept(COMPARISONS[i])) {
+                return compare(COMPARISONS[i], HOOK_NAMES[i], left, this.additive());
+            }
+        }
+        return left;
+    }
+
+    private Node additive() {
+        Node node = this.term();
+        while (true) {
+            if (this.accept("+")) {
+                node = arithmetic(node, this.term(), Opcodes.IADD, "+");
+            } else if (this.accept("-")) {
+                node = arithmetic(node, this.term(), Opcodes.ISUB, "-");
+            } else {
+                return node;
+            }
+        }
+    }
+
+    private Node term() {
+        Node node = this.primary();
+        while (this.accept("*")) {
+            node = arithmetic(node, this.primary(), Opcodes.IMUL, "*");
+        }
+        return node;
+    }
+
+    private Node primary() {
+        this.skipSpace();
+        if (this.accept("(")) {
+            Node node = this.or();
+            if (!this.accept(")")) {
+                throw this.error("missing )");
+            }
+            return node;
+        }
+
+        if (!this.peek("!=") && this.accept("!")) {
+            Node operand = this.primary();
+            requireBoolean(operand, "!");
+            return new Node(Type.BOOLEAN_TYPE, mv -> {
+                operand.emit(mv);
+                mv.visitInsn(Opcodes.ICONST_1);
+                mv.visitInsn(Opcodes.IXOR);
+            });
+        }
+
+        if (this.accept("-")) {
+            Node operand = this.primary();
+            Type kind = numeric(operand.type, "-");
+            return new Node(kind, mv -> {
+                operand.emit(mv);
+                convert(mv, operand.type, kind);
+                mv.visitInsn(kind.getOpcode(Opcodes.INEG));
+            });
+        }
+
+        if (this.pos >= this.source.length()) {
+            throw this.error("missing operand");
+        }
+
+        char c = this.source.charAt(this.pos);
+        if (Character.isDigit(c)) {
+            return this.number();
+        }
+        if (c == '"') {
+            return this.string();
+        }
+        if (Character.isJavaIdentifierStart(c)) {
+            return this.name();
+        }
+        throw this.error("unexpected " + c);
+    }
+
+    private Node number() {
+        int start = this.pos;
+        while (this.pos < this.source.length() &&
+                (Character.isDigit(this.source.charAt(this.pos)) || this.source.charAt(this.pos) == '.')) {
+            this.pos++;
+        }
+        String digits = this.source.substring(start, this.pos);
+        char suffix = this.pos < this.source.length() ? Character.toUpperCase(this.source.charAt(this.pos)) : 0;
+
+        try {
+            if (suffix == 'L') {
+                this.pos++;
+                long value = Long.parseLong(digits);
+                return new Node(Type.LONG_TYPE, mv -> mv.visitLdcInsn(value));
+            }
+            if (suffix == 'F') {
+                this.pos++;
+                float value = Float.parseFloat(digits);
+                return new Node(Type.FLOAT_TYPE, mv -> mv.visitLdcInsn(value));
+            }
+            if (suffix == 'D' || digits.contains(".")) {
+                this.pos += suffix == 'D' ? 1 : 0;
+                double value = Double.parseDouble(digits);
+                return new Node(Type.DOUBLE_TYPE, mv -> mv.visitLdcInsn(value));
+            }
+
+            int value = Integer.parseInt(digits);
+            return new Node(Type.INT_TYPE, mv -> mv.visitLdcInsn(value));
+        } catch (NumberFormatException e) {
+            throw this.error("bad number " + digits);
+        }
+    }
+
+    private Node string() {
+        StringBuilder builder = new StringBuilder();
+        for (this.pos++; this.pos < this.source.length(); this.pos++) {
+            char c = this.source.charAt(this.pos);
+            if (c == '"') {
+                this.pos++;
+                String value = builder.toString();
+                return new Node(Type.getType(String.class), mv -> mv.visitLdcInsn(value));
+            }
+
+            if (c == '\\' && this.pos + 1 < this.source.length()) {
+                c = this.source.charAt(++this.pos);
+            }
+            builder.append(c);
+        }
+
+        throw this.error("unterminated string");
+    }
+
+    private Node name() {
+        int start = this.pos;
+        while (this.pos < this.source.length() &&
+                (Character.isJavaIdentifierPart(this.source.charAt(this.pos)) || this.source.charAt(this.pos) == '.')) {
+            this.pos++;
+        }
+        String name = this.source.substring(start, this.pos);
+
+        switch (name) {
+            case "true":
+                return new Node(Type.BOOLEAN_TYPE, mv -> mv.visitInsn(Opcodes.ICONST_1));
+            case "false":
+                return new Node(Type.BOOLEAN_TYPE, mv -> mv.visitInsn(Opcodes.ICONST_0));
+            case "null":
+                return new Node(OBJECT, mv -> mv.visitInsn(Opcodes.ACONST_NULL));
+        }
+
+        Variable variable = this.scope.get(name);
+        if (variable == null && !name.startsWith("this.")) {
+            variable = this.scope.get("this." + name);
+        }
+
+        if (variable == null) {
+            throw this.error("no variable " + name + " is visible at the line");
+        }
+        return new Node(Type.getType(variable.desc), variable::load);
+    }
+
+    private static Node logical(Node left, Node right, int opcode) {
+        String op = opcode == Opcodes.IAND ? "&&" : "||";
+        requireBoolean(left, op);
+        requireBoolean(right, op);
+        return new Node(Type.BOOLEAN_TYPE, mv -> {
+            left.emit(mv);
+            right.emit(mv);
+            mv.visitInsn(opcode);
+        });
+    }
+
+    private static Node arithmetic(Node left, Node right, int opcode, String op) {
+        Type kind = promote(numeric(left.type, op), numeric(right.type, op));
+        return new Node(kind, mv -> {
+            left.emit(mv);
+            convert(mv, left.type, kind);
+            right.emit(mv);
+            convert(mv, right.type, kind);
+            mv.visitInsn(kind.getOpcode(opcode));
+        });
+    }
+
+    private static Node compare(String op, String hook, Node left, Node right) {
+        boolean equality = op.equals("==") || op.equals("!=");
+        boolean leftRef = isReference(left.type);
+        boolean rightRef = isReference(right.type);
+
+        if (equality && leftRef && rightRef) {
+            return new Node(Type.BOOLEAN_TYPE, mv -> {
+                left.emit(mv);
+                right.emit(mv);
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, HOOKS, hook, "(Ljava/lang/Object;Ljava/lang/Object;)Z", false);
+            });
+        }
+
+        if (equality && left.type.getSort() == Type.BOOLEAN && right.type.getSort() == Type.BOOLEAN) {
+            return new Node(Type.BOOLEAN_TYPE, mv -> {
+                left.emit(mv);
+                right.emit(mv);
+                mv.visitInsn(Opcodes.IXOR);
+                if (op.equals("==")) {
+                    mv.visitInsn(Opcodes.ICONST_1);
+                    mv.visitInsn(Opcodes.IXOR);
+                }
+            });
+        }
+
+        // Integral values are compared as longs so that no
+        // precision is lost, others as doubles
+        Type kind = promote(numeric(left.type, op), numeric(right.type, op));
+        Type as = kind.getSort() == Type.INT || kind.getSort() == Type.LONG ? Type.LONG_TYPE : Type.DOUBLE_TYPE;
+        String desc = "(" + as.getDescriptor() + as.getDescriptor() + ")Z";
+        return new Node(Type.BOOLEAN_TYPE, mv -> {
+            left.emit(mv);
+            convert(mv, left.type, as);
+            right.emit(mv);
+            convert(mv, right.type, as);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, HOOKS, hook, desc, false);
+        });
+    }
+
+    private static boolean isReference(Type type) {
+        return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
+    }
+
+    private static void requireBoolean(Node node, String op) {
+        if (node.type.getSort() != Type.BOOLEAN) {
+            throw new IllegalArgumentException(op + " cannot be applied to " + node.type.getClassName());
+        }
+    }
+
+    /**
+     * Obtains the type a numeric value is computed as, which
+     * is int for the smaller integral types.
+     */
+    private static Type numeric(Type type, String op) {
+        switch (type.getSort()) {
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.CHAR:
+            case Type.INT:
+                return Type.INT_TYPE;
+            case Type.LONG:
+            case Type.FLOAT:
+            case Type.DOUBLE:
+                return type;
+            default:
+                throw new IllegalArgumentException(op + " cannot be applied to " + type.getClassName());
+        }
+    }
+
+    private static Type promote(Type a, Type b) {
+        for (Type wider : new Type[] { Type.DOUBLE_TYPE, Type.FLOAT_TYPE, Type.LONG_TYPE }) {
+            if (a.getSort() == wider.getSort() || b.getSort() == wider.getSort()) {
+                return wider;
+            }
+        }
+        return Type.INT_TYPE;
+    }
+
+    /**
+     * Widens a numeric value on the stack.
+     */
+    private static void convert(MethodVisitor mv, Type from, Type to) {
+        int sort = from.getSort() <= Type.INT ? Type.INT : from.getSort();
+        if (sort == to.getSort()) {
+            return;
+        }
+
+        switch (sort) {
+            case Type.INT:
+                mv.visitInsn(to.getSort() == Type.LONG ? Opcodes.I2L : to.getSort() == Type.FLOAT ? Opcodes.I2F : Opcodes.I2D);
+                break;
+            case Type.LONG:
+                mv.visitInsn(to.getSort() == Type.FLOAT ? Opcodes.L2F : Opcodes.L2D);
+                break;
+            case Type.FLOAT:
+                mv.visitInsn(Opcodes.F2D);
+                break;
+        }
+    }
+
+    private void skipSpace() {
+        while (this.pos < this.source.length() && Character.isWhitespace(this.source.charAt(this.pos))) {
+            this.pos++;
+        }
+    }
+
+    private boolean peek(String token) {
+        this.skipSpace();
+        return this.source.startsWith(token, this.pos);
+    }
+
+    private boolean accept(String token) {
+        if (this.peek(token)) {
+            this.pos += token.length();
+            return true;
+        }
+        return false;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at column " + (this.pos + 1) + " of \"" + this.source + '"');
+    }
+
+    /**
+     * A local or field which a condition may read.
+     */
+    static final class Variable {
+        /** The type descriptor */
+        final String desc;
+        /** The local slot, or -1 for a field */
+        final int index;
+        /** The class declaring the field */
+        final String owner;
+        /** The field name */
+        final String name;
+        /** Whether the field is static */
+        final boolean isStatic;
+
+        private Variable(String desc, int index, String owner, String name, boolean isStatic) {
+            this.desc = desc;
+            this.index = index;
+            this.owner = owner;
+            this.name = name;
+            this.isStatic = isStatic;
+        }
+
+        static Variable local(String desc, int index) {
+            return new Variable(desc, index, null, null, false);
+        }
+
+        static Variable field(String owner, String name, String desc, boolean isStatic) {
+            return new Variable(desc, -1, owner, name, isStatic);
+        }
+
+        void load(MethodVisitor mv) {
+            if (this.index >= 0) {
+                mv.visitVarInsn(Type.getType(this.desc).getOpcode(Opcodes.ILOAD), this.index);
+            } else if (this.isStatic) {
+                mv.visitFieldInsn(Opcodes.GETSTATIC, this.owner, this.name, this.desc);
+            } else {
+                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                mv.visitFieldInsn(Opcodes.GETFIELD, this.owner, this.name, this.desc);
+            }
+        }
+    }
+
+    /**
+     * A compiled part of a condition.
+     */
+    static final class Node {
+        /** The type of the value left on the stack */
+        final Type type;
+        /** Emits the code computing the value */
+        private final Consumer<MethodVisitor> code;
+
+        Node(Type type, Consumer<MethodVisitor> code) {
+            this.type = type;
+            this.code = code;
+        }
+
+        void emit(MethodVisitor mv) {
+            this.code.accept(mv);
+        }
+    }
+}
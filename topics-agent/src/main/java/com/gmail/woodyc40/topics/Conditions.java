@@ -0,0 +1,518 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics;
+
+import org.objectweb.asm.*;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.security.ProtectionDomain;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Injects the conditions of conditional breakpoints into
+ * the classes of the VM.
+ *
+ * <p>Every transform starts from the original class file
+ * and injects all of the conditions set in the class, so
+ * removing a condition and retransforming restores the
+ * line. Conditions in classes which are not loaded yet are
+ * injected when the class loads.</p>
+ */
+final class Conditions implements ClassFileTransformer {
+    /** The instrumentation used to retransform classes */
+    private final Instrumentation inst;
+    /** The conditions which have been set */
+    private final List<Condition> conditions = new CopyOnWriteArrayList<>();
+
+    Conditions(Instrumentation inst) {
+        this.inst = inst;
+    }
+
+    /**
+     * Sets a condition, injecting it into the class if it is
+     * loaded.
+     *
+     * @param id the ID of the conditional breakpoint
+     * @param className the fully qualified or simple name
+     * of the class
+     * @param line the line to test the condition at
+     * @param expression the condition source
+     * @return a description of where the condition was
+     * injected
+     * @throws UnmodifiableClassException if the class cannot
+     * be retransformed
+     * @throws IllegalArgumentException if the condition
+     * cannot be compiled at the line
+     */
+    String add(int id, String className, int line, String expression) throws UnmodifiableClassException {
+        Condition condition = new Condition(id, className.replace('.', '/'), line, expression);
+        this.conditions.add(condition);
+
+        Class<?>[] loaded = this.loaded(condition);
+        if (loaded.length == 0) {
+            return "deferred until " + className + " loads";
+        }
+
+        try {
+            this.inst.retransformClasses(loaded);
+        } catch (LinkageError e) {
+            this.conditions.remove(condition);
+            throw new IllegalArgumentException("rejected by the verifier: " + e.getMessage());
+        }
+
+        if (condition.method == null) {
+            this.conditions.remove(condition);
+            throw new IllegalArgumentException(condition.error == null ? "no code at line " + line : condition.error);
+        }
+        return "injected into " + condition.method;
+    }
+
+    /**
+     * Removes a condition, restoring the line it was
+     * injected at.
+     *
+     * @param id the ID of the conditional breakpoint
+     * @return a description of where the condition was
+     * removed from
+     * @throws UnmodifiableClassException if the class cannot
+     * be retransformed
+     */
+    String remove(int id) throws UnmodifiableClassException {
+        for (Condition condition : this.conditions) {
+            if (condition.id == id) {
+                this.conditions.remove(condition);
+
+                Class<?>[] loaded = this.loaded(condition);
+                if (loaded.length == 0) {
+                    return "removed from unloaded " + condition.className.replace('/', '.');
+                }
+                this.inst.retransformClasses(loaded);
+                return "removed from " + (condition.method == null ? condition.className.replace('/', '.') : condition.method);
+            }
+        }
+        return "no condition " + id;
+    }
+
+    private Class<?>[] loaded(Condition condition) {
+        List<Class<?>> loaded = new ArrayList<>();
+        for (Class<?> cls : this.inst.getAllLoadedClasses()) {
+            if (condition.matches(cls.getName().replace('.', '/')) && this.inst.isModifiableClass(cls)) {
+                loaded.add(cls);
+            }
+        }
+        return loaded.toArray(new Class<?>[0]);
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> redefined,
+                            ProtectionDomain domain, byte[] classFile) {
+        if (className == null || this.conditions.isEmpty()) {
+            return null;
+        }
+
+        List<Condition> matched = new ArrayList<>();
+        for (Condition condition : this.conditions) {
+            if (condition.matches(className)) {
+                matched.add(condition);
+            }
+        }
+        if (matched.isEmpty()) {
+            return null;
+        }
+
+        if (!HookPath.isVisible(loader)) {
+            for (Condition condition : matched) {
+                condition.error = "the loader of " + className.replace('/', '.') + " cannot see the agent";
+            }
+            return null;
+        }
+
+        // Failures are otherwise swallowed by the VM
+        try {
+            return inject(classFile, matched);
+        } catch (RuntimeException e) {
+            for (Condition condition : matched) {
+                condition.error = e.toString();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Injects conditions into a class file.
+     *
+     * @param classFile the original class file
+     * @param conditions the conditions set in the class
+     * @return the transformed class file
+     */
+    private static byte[] inject(byte[] classFile, List<Condition> conditions) {
+        ClassReader reader = new ClassReader(classFile);
+        ClassScan scan = new ClassScan();
+        reader.accept(scan, ClassReader.SKIP_FRAMES);
+
+        // The conditions to inject into each method, by line
+        Map<String, Map<Integer, List<Condition>>> methods = new HashMap<>();
+        for (Condition condition : conditions) {
+            MethodScan target = scan.methodAt(condition.line);
+            if (target == null) {
+                condition.error = "no code at line " + condition.line;
+                continue;
+            }
+
+            try {
+                condition.code = ConditionCompiler.compile(condition.expression, scan.scopeAt(target, condition.line));
+            } catch (IllegalArgumentException e) {
+                condition.error = e.getMessage();
+                continue;
+            }
+
+            condition.method = scan.name.replace('/', '.') + "." + target.name + target.desc;
+            methods.computeIfAbsent(target.name + target.desc, k -> new HashMap<>()).
+                    computeIfAbsent(condition.line, k -> new ArrayList<>()).add(condition);
+        }
+
+        if (methods.isEmpty()) {
+            return null;
+        }
+
+        // Frames are untouched as the injected code does not
+        // branch, only the max stack can grow
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        reader.accept(new ClassVisitor(Opcodes.ASM6, writer) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+                Map<Integer, List<Condition>> lines = methods.get(name + desc);
+                return lines == null ? mv : new Injector(mv, lines);
+            }
+        }, 0);
+
+        return writer.toByteArray();
+    }
+
+    /**
+     * A condition set at a line of a class.
+     */
+    private static final class Condition {
+        /** The ID of the conditional breakpoint */
+        final int id;
+        /** The internal or simple name of the class */
+        final String className;
+        /** The line to test the condition at */
+        final int line;
+        /** The condition source */
+        final String expression;
+        /** The compiled condition */
+        volatile ConditionCompiler.Node code;
+        /** The method the condition was last injected into */
+        volatile String method;
+        /** Why the condition was last not injected */
+        volatile String error;
+
+        Condition(int id, String className, int line, String expression) {
+            this.id = id;
+            this.className = className;
+            this.line = line;
+            this.expression = expression;
+        }
+
+        /**
+         * Determines whether the condition is set in the
+         * given class, matching simple names against the
+         * end of the class name as the debugger does.
+         *
+         * @param internalName the internal name of the class
+         * @return {@code true} if the condition is set in it
+         */
+        boolean matches(String internalName) {
+            return internalName.equals(this.className) ||
+                    (this.className.indexOf('/') < 0 &&
+                            (internalName.endsWith("/" + this.className) || internalName.endsWith("$" + this.className)));
+        }
+    }
+
+    /**
+     * Inserts the conditions of a method before the first
+     * instruction of their line, after any frame there.
+     */
+    private static final class Injector extends MethodVisitor {
+        /** The conditions not yet injected, by line */
+        private final Map<Integer, List<Condition>> lines;
+        /** The conditions to insert before the next instruction */
+        private List<Condition> pending;
+
+        Injector(MethodVisitor mv, Map<Integer, List<Condition>> lines) {
+            super(Opcodes.ASM6, mv);
+            this.lines = new HashMap<>(lines);
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            super.visitLineNumber(line, start);
+
+            // Only the first location of a line is tested
+            List<Condition> conditions = this.lines.remove(line);
+            if (conditions != null) {
+                this.pending = conditions;
+            }
+        }
+
+        private void flush() {
+            if (this.pending == null) {
+                return;
+            }
+
+            for (Condition condition : this.pending) {
+                condition.code.emit(this.mv);
+                this.mv.visitLdcInsn(condition.id);
+                this.mv.visitMethodInsn(Opcodes.INVOKESTATIC, ConditionCompiler.HOOKS, "test", "(ZI)V", false);
+            }
+            this.pending = null;
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            this.flush();
+            super.visitInsn(opcode);
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            this.flush();
+            super.visitIntInsn(opcode, operand);
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            this.flush();
+            super.visitVarInsn(opcode, var);
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            this.flush();
+            super.visitTypeInsn(opcode, type);
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            this.flush();
+            super.visitFieldInsn(opcode, owner, name, desc);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+            this.flush();
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+            this.flush();
+            super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            this.flush();
+            super.visitJumpInsn(opcode, label);
+        }
+
+        @Override
+        public void visitLdcInsn(Object cst) {
+            this.flush();
+            super.visitLdcInsn(cst);
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            this.flush();
+            super.visitIincInsn(var, increment);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            this.flush();
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            this.flush();
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String desc, int dims) {
+            this.flush();
+            super.visitMultiANewArrayInsn(desc, dims);
+        }
+    }
+
+    /**
+     * The fields of a class and the lines and locals of its
+     * methods.
+     */
+    private static final class ClassScan extends ClassVisitor {
+        /** The internal name of the class */
+        String name;
+        /** The fields, by {@code this.} and their name */
+        final Map<String, ConditionCompiler.Variable> fields = new HashMap<>();
+        /** The methods, in class file order */
+        final List<MethodScan> methods = new ArrayList<>();
+
+        ClassScan() {
+            super(Opcodes.ASM6);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            this.name = name;
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+            this.fields.put("this." + name, ConditionCompiler.Variable.field(this.name, name, desc,
+                    (access & Opcodes.ACC_STATIC) != 0));
+            return null;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+            MethodScan method = new MethodScan(access, name, desc);
+            this.methods.add(method);
+            return method;
+        }
+
+        /**
+         * Finds the method containing a line, preferring
+         * those written in the source over lambda bodies and
+         * bridges which share its lines.
+         *
+         * @param line the line
+         * @return the method, or {@code null}
+         */
+        MethodScan methodAt(int line) {
+            MethodScan synthetic = null;
+            for (MethodScan method : this.methods) {
+                if (method.lines.containsKey(line)) {
+                    if ((method.access & Opcodes.ACC_SYNTHETIC) == 0) {
+                        return method;
+                    }
+                    if (synthetic == null) {
+                        synthetic = method;
+                    }
+                }
+            }
+            return synthetic;
+        }
+
+        /**
+         * Obtains the variables a condition may read at the
+         * first location of a line.
+         *
+         * @param method the method containing the line
+         * @param line the line
+         * @return the scope of the condition
+         */
+        Map<String, ConditionCompiler.Variable> scopeAt(MethodScan method, int line) {
+            boolean isStatic = (method.access & Opcodes.ACC_STATIC) != 0;
+            Map<String, ConditionCompiler.Variable> scope = new HashMap<>();
+            this.fields.forEach((name, field) -> {
+                if (field.isStatic || !isStatic) {
+                    scope.put(name, field);
+                }
+            });
+
+            int at = method.lines.get(line);
+            for (LocalScan local : method.locals) {
+                int start = method.order(local.start);
+                int end = method.order(local.end);
+                if (start <= at && at < end && !local.name.equals("this")) {
+                    scope.put(local.name, ConditionCompiler.Variable.local(local.desc, local.index));
+                }
+            }
+            return scope;
+        }
+    }
+
+    /**
+     * The lines and locals of a method. Label offsets are
+     * not resolved while reading, so positions are compared
+     * by the order in which the labels are visited.
+     */
+    private static final class MethodScan extends MethodVisitor {
+        final int access;
+        final String name;
+        final String desc;
+        /** The order of each label in the code */
+        final Map<Label, Integer> labels = new HashMap<>();
+        /** The order of the first label of each line */
+        final Map<Integer, Integer> lines = new HashMap<>();
+        /** The local variable table */
+        final List<LocalScan> locals = new ArrayList<>();
+
+        MethodScan(int access, String name, String desc) {
+            super(Opcodes.ASM6);
+            this.access = access;
+            this.name = name;
+            this.desc = desc;
+        }
+
+        int order(Label label) {
+            Integer order = this.labels.get(label);
+            return order == null ? -1 : order;
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            this.labels.put(label, this.labels.size());
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            this.lines.putIfAbsent(line, this.order(start));
+        }
+
+        @Override
+        public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index) {
+            this.locals.add(new LocalScan(name, desc, start, end, index));
+        }
+    }
+
+    /**
+     * An entry of a local variable table.
+     */
+    private static final class LocalScan {
+        final String name;
+        final String desc;
+        final Label start;
+        final Label end;
+        final int index;
+
+        LocalScan(String name, String desc, Label start, Label end, int index) {
+            this.name = name;
+            this.desc = desc;
+            this.start = start;
+            this.end = end;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Makes the classes called by injected code visible to the
+ * classes of every loader.
+ *
+ * <p>The agent is loaded by the system class loader, which
+ * the bootstrap and platform loaders and isolated loaders
+ * cannot see. Before they are first used, the hooks are
+ * copied into a jar on the bootstrap class path, which the
+ * system loader also delegates to. Classes whose loader
+ * still resolves the hooks to other classes, or to none,
+ * are not instrumented.</p>
+ */
+final class HookPath {
+    /** The classes called by injected code, which only use the JDK */
+    private static final String[] CLASSES = {
+            "com/gmail/woodyc40/topics/Hooks",
+            "com/gmail/woodyc40/topics/CallRing"
+    };
+    /** Whether each loader resolves the hooks to the agent's */
+    private static final Map<ClassLoader, Boolean> VISIBLE = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private HookPath() {
+    }
+
+    /**
+     * Appends the hooks to the bootstrap class path. Must be
+     * called before any of them is loaded.
+     *
+     * @param inst the instrumentation of the agent
+     * @throws IOException if the jar cannot be written
+     */
+    static void expose(Instrumentation inst) throws IOException {
+        Path jar = Files.createTempFile("topics-hooks", ".jar");
+        jar.toFile().deleteOnExit();
+
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+            for (String name : CLASSES) {
+                out.putNextEntry(new JarEntry(name + ".class"));
+                try (InputStream in = HookPath.class.getClassLoader().getResourceAsStream(name + ".class")) {
+                    if (in == null) {
+                        throw new IOException("no class file for " + name);
+                    }
+                    copy(in, out);
+                }
+                out.closeEntry();
+            }
+        }
+
+        inst.appendToBootstrapClassLoaderSearch(new JarFile(jar.toFile()));
+    }
+
+    /**
+     * Determines whether the classes of a loader resolve the
+     * hooks to the classes which the agent uses.
+     *
+     * @param loader the class loader, or {@code null} for
+     * the bootstrap loader
+     * @return {@code true} if code injected into its classes
+     * can call the hooks
+     */
+    static boolean isVisible(ClassLoader loader) {
+        if (loader == null) {
+            return Hooks.class.getClassLoader() == null;
+        }
+
+        // Resolved without holding the map, as the loader may
+        // be waiting on another thread transforming a class
+        Boolean visible = VISIBLE.get(loader);
+        if (visible == null) {
+            visible = resolves(loader);
+            VISIBLE.put(loader, visible);
+        }
+        return visible;
+    }
+
+    private static boolean resolves(ClassLoader loader) {
+        for (String name : CLASSES) {
+            String className = name.replace('/', '.');
+            try {
+                Class<?> resolved = Class.forName(className, false, loader);
+                Class<?> own = Class.forName(className, false, HookPath.class.getClassLoader());
+                if (resolved != own) {
+                    return false;
+                }
+            } catch (ClassNotFoundException | LinkageError e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[4096];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            out.write(buf, 0, read);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics;
+
+/**
+ * The methods called by code which the agent injects into
+ * the classes of the VM.
+ *
+ * <p>Injected conditions call {@link #test(boolean, int)}
+ * at their line, and the debugger sets a single breakpoint
+ * in {@link #hit(int)}, so the VM only raises an event
+ * once a condition holds. Comparisons are made by calling
+ * the helpers below instead of branching, so the injected
+ * code never needs new stack map frames.</p>
+ */
+public final class Hooks {
+    private Hooks() {
+    }
+
+    /**
+     * Called at the line of a conditional breakpoint.
+     *
+     * @param condition the value of the condition
+     * @param id the ID of the conditional breakpoint
+     */
+    public static void test(boolean condition, int id) {
+        if (condition) {
+            hit(id);
+        }
+    }
+
+    /**
+     * Called when the condition of a conditional breakpoint
+     * holds. The debugger breaks at this method and reads
+     * the ID from its argument.
+     *
+     * @param id the ID of the conditional breakpoint
+     */
+    public static void hit(int id) {
+    }
+
+    public static boolean lt(long a, long b) {
+        return a < b;
+    }
+
+    public static boolean le(long a, long b) {
+        return a <= b;
+    }
+
+    public static boolean gt(long a, long b) {
+        return a > b;
+    }
+
+    public static boolean ge(long a, long b) {
+        return a >= b;
+    }
+
+    public static boolean eq(long a, long b) {
+        return a == b;
+    }
+
+    public static boolean ne(long a, long b) {
+        return a != b;
+    }
+
+    public static boolean lt(double a, double b) {
+        return a < b;
+    }
+
+    public static boolean le(double a, double b) {
+        return a <= b;
+    }
+
+    public static boolean gt(double a, double b) {
+        return a > b;
+    }
+
+    public static boolean ge(double a, double b) {
+        return a >= b;
+    }
+
+    public static boolean eq(double a, double b) {
+        return a == b;
+    }
+
+    public static boolean ne(double a, double b) {
+        return a != b;
+    }
+
+    /**
+     * Compares references by identity, or by value if both
+     * are strings or boxed primitives of the same type,
+     * whose {@code equals} cannot throw or run code of the
+     * VM.
+     *
+     * @param a the first reference
+     * @param b the second reference
+     * @return {@code true} if both are equal or null
+     */
+    public static boolean eq(Object a, Object b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null || a.getClass() != b.getClass()) {
+            return false;
+        }
+
+        Class<?> type = a.getClass();
+        return (type == String.class || type == Integer.class || type == Long.class ||
+                type == Short.class || type == Byte.class || type == Character.class ||
+                type == Boolean.class || type == Float.class || type == Double.class) && a.equals(b);
+    }
+
+    public static boolean ne(Object a, Object b) {
+        return !eq(a, b);
+    }
+}
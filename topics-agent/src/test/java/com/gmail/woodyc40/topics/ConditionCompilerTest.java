@@ -0,0 +1,194 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ConditionCompilerTest {
+    /** The descriptor of the method which conditions are compiled into */
+    private static final String DESC = "(IJLjava/lang/String;ZD)Z";
+    /** A field which conditions may read */
+    public static int count = 3;
+
+    /** The variables visible to the conditions */
+    private final Map<String, ConditionCompiler.Variable> scope = new HashMap<>();
+
+    {
+        this.scope.put("i", ConditionCompiler.Variable.local("I", 0));
+        this.scope.put("l", ConditionCompiler.Variable.local("J", 1));
+        this.scope.put("s", ConditionCompiler.Variable.local("Ljava/lang/String;", 3));
+        this.scope.put("b", ConditionCompiler.Variable.local("Z", 4));
+        this.scope.put("d", ConditionCompiler.Variable.local("D", 5));
+        this.scope.put("this.count", ConditionCompiler.Variable.field(Type.getInternalName(ConditionCompilerTest.class),
+                "count", "I", true));
+    }
+
+    /**
+     * Compiles a condition into a static method taking the
+     * variables in scope, and evaluates it with the given
+     * values.
+     */
+    private boolean eval(String condition, int i, long l, String s, boolean b, double d) {
+        ConditionCompiler.Node node = ConditionCompiler.compile(condition, this.scope);
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "Condition", null, "java/lang/Object", null);
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "test", DESC, null, null);
+        mv.visitCode();
+        node.emit(mv);
+        mv.visitInsn(Opcodes.IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+
+        byte[] code = cw.toByteArray();
+        ClassLoader loader = new ClassLoader(ConditionCompilerTest.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                if (!name.equals("Condition")) {
+                    throw new ClassNotFoundException(name);
+                }
+                return this.defineClass(name, code, 0, code.length);
+            }
+        };
+
+        try {
+            Method test = loader.loadClass("Condition").getMethod("test", int.class, long.class, String.class,
+                    boolean.class, double.class);
+            return (Boolean) test.invoke(null, i, l, s, b, d);
+        } catch (InvocationTargetException e) {
+            throw new AssertionError(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private boolean eval(String condition) {
+        return this.eval(condition, 5, 10L, "abc", true, 2.5);
+    }
+
+    private void assertRejected(String condition, String message) {
+        try {
+            ConditionCompiler.compile(condition, this.scope);
+            fail(condition + " was accepted");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    @Test
+    public void compareLocals() {
+        assertTrue(this.eval("i == 5"));
+        assertFalse(this.eval("i != 5"));
+        assertTrue(this.eval("i < l"));
+        assertTrue(this.eval("l >= 10"));
+        assertTrue(this.eval("d > 2"));
+        assertTrue(this.eval("d <= 2.5"));
+        assertFalse(this.eval("i == 5", 6, 0, null, false, 0));
+    }
+
+    @Test
+    public void readFields() {
+        assertTrue(this.eval("count == 3"));
+        assertTrue(this.eval("this.count + i == 8"));
+    }
+
+    @Test
+    public void compareLiterals() {
+        assertTrue(this.eval("1.5 < 2"));
+        assertTrue(this.eval("3000000000L > 2147483647"));
+        assertTrue(this.eval("0.5f == 0.5"));
+        assertTrue(this.eval("true"));
+        assertFalse(this.eval("false"));
+    }
+
+    @Test
+    public void compareStringsByValue() {
+        assertTrue(this.eval("s == \"abc\"", 0, 0, new String("abc"), false, 0));
+        assertTrue(this.eval("s != \"a\\\"c\""));
+        assertTrue(this.eval("s == null", 0, 0, null, false, 0));
+        assertFalse(this.eval("s == null"));
+    }
+
+    @Test
+    public void compareBooleans() {
+        assertTrue(this.eval("b == true"));
+        assertTrue(this.eval("b != false"));
+        assertFalse(this.eval("b == (i > 5)"));
+    }
+
+    @Test
+    public void arithmeticPrecedence() {
+        assertTrue(this.eval("1 + 2 * 3 == 7"));
+        assertTrue(this.eval("(1 + 2) * 3 == 9"));
+        assertTrue(this.eval("10 - 4 - 3 == 3"));
+        assertTrue(this.eval("-i * 2 == -10"));
+        assertTrue(this.eval("i * l == 50"));
+        assertTrue(this.eval("d * 2 == 5"));
+    }
+
+    @Test
+    public void logicalPrecedence() {
+        // && binds tighter than ||
+        assertTrue(this.eval("true || false && false"));
+        assertFalse(this.eval("(true || false) && false"));
+        assertTrue(this.eval("!false && !(i < 0)"));
+        assertTrue(this.eval("i > 1 && i < 10 || s == null"));
+        assertTrue(this.eval("i > 1 && (i > 10 || s == \"abc\")"));
+    }
+
+    @Test
+    public void ignoreWhitespace() {
+        assertTrue(this.eval("  i==5&&b  "));
+        assertTrue(this.eval("i\t>\n4"));
+    }
+
+    @Test
+    public void rejectSyntaxErrors() {
+        assertRejected("i ==", "missing operand");
+        assertRejected("(i == 5", "missing )");
+        assertRejected("i == 5)", "unexpected )");
+        assertRejected("s == \"abc", "unterminated string");
+        assertRejected("i == 1.2.3", "bad number");
+        assertRejected("i # 5", "unexpected");
+        assertRejected("j == 5", "no variable j");
+    }
+
+    @Test
+    public void rejectTypeErrors() {
+        assertRejected("i", "not a boolean");
+        assertRejected("i + 1", "not a boolean");
+        assertRejected("!i", "! cannot be applied to int");
+        assertRejected("i && b", "&& cannot be applied to int");
+        assertRejected("b || s", "|| cannot be applied to java.lang.String");
+        assertRejected("s + 1 == 2", "+ cannot be applied to java.lang.String");
+        assertRejected("b < true", "< cannot be applied to boolean");
+        assertRejected("-b", "- cannot be applied to boolean");
+        assertRejected("s == 1", "== cannot be applied to java.lang.String");
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.codec;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct byte buffers, bucketed into power of two
+ * size classes, which allows frames to be read and written
+ * without allocating a new buffer for each one.
+ *
+ * <p>The pool also runs inside the debugged VM, so at most
+ * {@link #MAX_RETAINED} bytes are kept idle in total, and
+ * buffers beyond that are left to the collector.</p>
+ */
+@ThreadSafe
+public final class BufferPool {
+    /** The smallest size class, 4 KiB */
+    private static final int MIN_SHIFT = 12;
+    /** The largest size class, 16 MiB */
+    private static final int MAX_SHIFT = 24;
+    /** The number of idle buffers kept per size class */
+    private static final int MAX_IDLE = 4;
+    /** The most bytes kept idle across every size class, 4 MiB */
+    private static final long MAX_RETAINED = 4L << 20;
+    /** The pool shared by the codecs in this process */
+    private static final BufferPool SHARED = new BufferPool();
+
+    /** The idle buffers, indexed by size class */
+    private final Queue<ByteBuffer>[] classes;
+    /** The number of idle buffers in each size class */
+    private final AtomicInteger[] idle;
+    /** The bytes held by the idle buffers */
+    private final AtomicLong retained = new AtomicLong();
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private BufferPool() {
+        int count = MAX_SHIFT - MIN_SHIFT + 1;
+        this.classes = new Queue[count];
+        this.idle = new AtomicInteger[count];
+        for (int i = 0; i < count; i++) {
+            this.classes[i] = new ConcurrentLinkedQueue<>();
+            this.idle[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Obtains the pool shared by the codecs.
+     *
+     * @return the shared buffer pool
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Determines the size class index for a buffer that
+     * holds at least the given number of bytes.
+     *
+     * @param capacity the minimum capacity
+     * @return the size class index, or -1 if it is too
+     * large to be pooled
+     */
+    private static int sizeClass(int capacity) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(capacity - 1));
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+
+    /**
+     * Obtains a cleared buffer with at least the given
+     * capacity.
+     *
+     * @param capacity the minimum capacity
+     * @return the buffer, which should be passed back to
+     * {@link #release(ByteBuffer)} when no longer used
+     */
+    public ByteBuffer acquire(int capacity) {
+        int idx = sizeClass(capacity);
+        if (idx == -1) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+
+        ByteBuffer buf = this.classes[idx].poll();
+        if (buf == null) {
+            return ByteBuffer.allocateDirect(1 << (idx + MIN_SHIFT));
+        }
+
+        this.idle[idx].decrementAndGet();
+        this.retained.addAndGet(-buf.capacity());
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Returns a buffer obtained from
+     * {@link #acquire(int)} to the pool.
+     *
+     * @param buf the buffer to return
+     */
+    public void release(ByteBuffer buf) {
+        int capacity = buf.capacity();
+        int idx = sizeClass(capacity);
+        if (idx == -1 || capacity != 1 << (idx + MIN_SHIFT)) {
+            return;
+        }
+
+        if (this.idle[idx].incrementAndGet() > MAX_IDLE) {
+            this.idle[idx].decrementAndGet();
+            return;
+        }
+        if (this.retained.addAndGet(capacity) > MAX_RETAINED) {
+            this.retained.addAndGet(-capacity);
+            this.idle[idx].decrementAndGet();
+            return;
+        }
+
+        this.classes[idx].add(buf);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.codec;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream which reads a frame payload in place,
+ * and may be reused for every frame.
+ */
+@NotThreadSafe
+public final class ByteBufferInputStream extends InputStream {
+    /** The buffer being read */
+    private ByteBuffer buf;
+
+    /**
+     * Begins reading from the given buffer.
+     *
+     * @param buf the buffer to read
+     */
+    public void reset(ByteBuffer buf) {
+        this.buf = buf;
+    }
+
+    @Override
+    public int read() {
+        return this.buf.hasRemaining() ? this.buf.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+
+        int remaining = this.buf.remaining();
+        if (remaining == 0) {
+            return -1;
+        }
+
+        int read = Math.min(len, remaining);
+        this.buf.get(b, off, read);
+        return read;
+    }
+
+    @Override
+    public long skip(long n) {
+        int skip = (int) Math.min(n, this.buf.remaining());
+        this.buf.position(this.buf.position() + skip);
+        return skip;
+    }
+
+    @Override
+    public int available() {
+        return this.buf.remaining();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.codec;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An output stream which writes into a pooled buffer,
+ * trading it for a larger one when it fills up.
+ */
+@NotThreadSafe
+final class ByteBufferOutputStream extends OutputStream {
+    /** The size of the scratch array used for copies */
+    private static final int SCRATCH_LEN = 8192;
+
+    /** The pool from which the buffers are obtained */
+    private final BufferPool pool;
+    /** The buffer being written to */
+    private ByteBuffer buf;
+    /** Scratch space for copying from input streams */
+    private byte[] scratch;
+
+    ByteBufferOutputStream(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Begins writing to a new buffer.
+     *
+     * @param capacity the initial capacity
+     */
+    void begin(int capacity) {
+        this.buf = this.pool.acquire(capacity);
+    }
+
+    /**
+     * Obtains the buffer currently being written to.
+     *
+     * @return the buffer
+     */
+    ByteBuffer buf() {
+        return this.buf;
+    }
+
+    /**
+     * Stops writing to the current buffer.
+     *
+     * @return the buffer that was written to
+     */
+    ByteBuffer detach() {
+        ByteBuffer buf = this.buf;
+        this.buf = null;
+        return buf;
+    }
+
+    /**
+     * Ensures that the buffer has space for the given
+     * number of bytes.
+     *
+     * @param len the number of bytes to be written
+     */
+    private void ensure(int len) {
+        if (this.buf.remaining() >= len) {
+            return;
+        }
+
+        int capacity = Math.max(this.buf.capacity() * 2, this.buf.position() + len);
+        ByteBuffer grown = this.pool.acquire(capacity);
+        this.buf.flip();
+        grown.put(this.buf);
+        this.pool.release(this.buf);
+        this.buf = grown;
+    }
+
+    /**
+     * Copies the remaining contents of the given stream.
+     *
+     * @param in the stream to copy
+     * @return the number of bytes copied
+     * @throws IOException if the stream cannot be read
+     */
+    int transferFrom(InputStream in) throws IOException {
+        if (this.scratch == null) {
+            this.scratch = new byte[SCRATCH_LEN];
+        }
+
+        int total = 0;
+        int read;
+        while ((read = in.read(this.scratch)) > -1) {
+            this.write(this.scratch, 0, read);
+            total += read;
+        }
+
+        return total;
+    }
+
+    @Override
+    public void write(int b) {
+        this.ensure(1);
+        this.buf.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        this.ensure(len);
+        this.buf.put(b, off, len);
+    }
+}
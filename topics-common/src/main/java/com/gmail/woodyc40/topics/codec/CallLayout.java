@@ -0,0 +1,60 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.codec;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * The layout of the rings into which the agent records the
+ * calls of a thread, shared by the agent which writes them
+ * and the debugger which reads them.
+ *
+ * <p>Each call takes {@link #WIDTH} slots of the ring's
+ * data: the method called, the value it returned and its
+ * first {@link #MAX_ARGS} arguments. Its meta holds the
+ * number of arguments kept, and {@link #RETURNED} once the
+ * call has returned.</p>
+ *
+ * <p>Every member is a compile-time constant, so the ring
+ * does not depend on this class once it is compiled.</p>
+ */
+@Immutable
+public final class CallLayout {
+    /** The name of the local holding the thread's ring */
+    public static final String LOCAL = "$jdb$ring";
+    /** The name of the local holding the count on entry */
+    public static final String START = "$jdb$start";
+    /** The name of the field holding the calls */
+    public static final String DATA = "data";
+    /** The name of the field holding the meta of the calls */
+    public static final String META = "meta";
+    /** The name of the field holding the number of calls */
+    public static final String COUNT = "count";
+    /** The number of calls kept, a power of two */
+    public static final int CAPACITY = 256;
+    /** The number of arguments kept of each call */
+    public static final int MAX_ARGS = 6;
+    /** The slots of each call: the site, the return value and the arguments */
+    public static final int WIDTH = MAX_ARGS + 2;
+    /** Set in the meta of a call which has returned */
+    public static final int RETURNED = 1 << 8;
+    /** The bits of the meta holding the argument count */
+    public static final int ARGC = RETURNED - 1;
+
+    private CallLayout() {
+    }
+}
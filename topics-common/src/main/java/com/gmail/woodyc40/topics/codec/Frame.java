@@ -0,0 +1,85 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.codec;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.nio.ByteBuffer;
+
+/**
+ * A complete frame which has been sliced from the buffer
+ * it was read into.
+ *
+ * <p>The payload shares memory with the read buffer, so
+ * {@link #release()} must be called once the frame has
+ * been decoded.</p>
+ */
+@NotThreadSafe
+public final class Frame {
+    /** The signal ID */
+    private final int id;
+    /** The ID matching a response to its request */
+    private final int correlationId;
+    /** The payload, excluding the header */
+    private final ByteBuffer payload;
+    /** The buffer holding the payload */
+    private PooledBuffer owner;
+
+    Frame(int id, int correlationId, ByteBuffer payload, PooledBuffer owner) {
+        this.id = id;
+        this.correlationId = correlationId;
+        this.payload = payload;
+        this.owner = owner;
+    }
+
+    /**
+     * Obtains the ID of the signal held by this frame.
+     *
+     * @return the signal ID
+     */
+    public int getId() {
+        return this.id;
+    }
+
+    /**
+     * Obtains the ID shared by a request and its response.
+     *
+     * @return the correlation ID, or 0 if this frame is
+     * neither
+     */
+    public int getCorrelationId() {
+        return this.correlationId;
+    }
+
+    /**
+     * Obtains a view of the payload bytes.
+     *
+     * @return the payload
+     */
+    public ByteBuffer getPayload() {
+        return this.payload;
+    }
+
+    /**
+     * Releases the frame's hold on the read buffer.
+     */
+    public void release() {
+        if (this.owner != null) {
+            this.owner.release();
+            this.owner = null;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.codec;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the bytes read from a connection into frames.
+ *
+ * <p>Bytes are read directly into a pooled buffer and each
+ * complete frame is sliced from it without copying. Only
+ * the tail of an incomplete frame is ever copied, when the
+ * buffer fills up or is too small to hold the frame.</p>
+ *
+ * <p>A frame longer than {@link #MAX_FRAME} is rejected as
+ * corrupt before any buffer is grown for it, so a bad
+ * header cannot make the decoder allocate for it.</p>
+ *
+ * <p>SCHEMA:
+ * - int:length (of the IDs and payload)
+ * - int:id
+ * - int:correlationId (0 if not a request or response)
+ * - byte[]:payload</p>
+ */
+@NotThreadSafe
+public final class FrameDecoder {
+    /** The size of the frame length header */
+    public static final int HEADER_LEN = 4;
+    /** The size of the signal and correlation IDs */
+    public static final int ID_LEN = 8;
+    /** The longest frame, without its length header */
+    public static final int MAX_FRAME = 16 << 20;
+    /** The capacity of a fresh read buffer */
+    private static final int DEFAULT_CAPACITY = 8192;
+
+    /** The pool from which read buffers are obtained */
+    private final BufferPool pool;
+    /** The buffer currently being read into */
+    private PooledBuffer chunk;
+    /** The index of the first byte not yet framed */
+    private int readPos;
+
+    public FrameDecoder(BufferPool pool) {
+        this.pool = pool;
+        this.chunk = new PooledBuffer(pool, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Obtains the buffer into which the next bytes from
+     * the connection should be read. Any complete frames
+     * should be drained using {@link #next()} first.
+     *
+     * @return the buffer, with space remaining
+     */
+    public ByteBuffer buffer() {
+        ByteBuffer buf = this.chunk.buf();
+        int avail = buf.position() - this.readPos;
+        if (avail == 0 && this.chunk.isExclusive()) {
+            buf.clear();
+            this.readPos = 0;
+            return buf;
+        }
+
+        // A corrupt length is rejected by next(), so the
+        // buffer is never grown for it
+        int needed = HEADER_LEN;
+        if (avail >= HEADER_LEN && isValid(buf.getInt(this.readPos))) {
+            needed = HEADER_LEN + buf.getInt(this.readPos);
+        }
+
+        if (buf.hasRemaining() && this.readPos + needed <= buf.capacity()) {
+            return buf;
+        }
+
+        // The buffer is full or the frame does not fit,
+        // move the partial frame into a new buffer and
+        // leave the old one to the outstanding slices
+        PooledBuffer next = new PooledBuffer(this.pool, Math.max(DEFAULT_CAPACITY, needed));
+        ByteBuffer partial = buf.duplicate();
+        partial.limit(buf.position());
+        partial.position(this.readPos);
+        next.buf().put(partial);
+
+        this.chunk.release();
+        this.chunk = next;
+        this.readPos = 0;
+        return next.buf();
+    }
+
+    /**
+     * Slices the next complete frame from the bytes that
+     * have been read.
+     *
+     * @return the next frame, or {@code null} if no more
+     * complete frames have been read
+     * @throws IOException if the frame length is corrupt
+     */
+    public Frame next() throws IOException {
+        ByteBuffer buf = this.chunk.buf();
+        int avail = buf.position() - this.readPos;
+        if (avail < HEADER_LEN) {
+            return null;
+        }
+
+        int len = buf.getInt(this.readPos);
+        if (!isValid(len)) {
+            throw new IOException("corrupt frame length: " + len);
+        }
+
+        if (avail < HEADER_LEN + len) {
+            return null;
+        }
+
+        int id = buf.getInt(this.readPos + HEADER_LEN);
+        int correlationId = buf.getInt(this.readPos + HEADER_LEN + 4);
+        ByteBuffer payload = buf.duplicate();
+        payload.limit(this.readPos + HEADER_LEN + len);
+        payload.position(this.readPos + HEADER_LEN + ID_LEN);
+
+        this.chunk.retain();
+        this.readPos += HEADER_LEN + len;
+        return new Frame(id, correlationId, payload.slice(), this.chunk);
+    }
+
+    private static boolean isValid(int len) {
+        return len >= ID_LEN && len <= MAX_FRAME;
+    }
+
+    /**
+     * Releases the read buffer once the connection has
+     * been closed.
+     */
+    public void close() {
+        if (this.chunk != null) {
+            this.chunk.release();
+            this.chunk = null;
+        }
+    }
+}
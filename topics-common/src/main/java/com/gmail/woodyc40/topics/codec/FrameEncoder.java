@@ -0,0 +1,130 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.codec;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes frames directly into pooled buffers.
+ *
+ * <p>A frame is started with {@link #begin(int, int)}, its
+ * payload is written to the returned stream, and the
+ * buffer returned by {@link #finish()} is passed back to
+ * {@link #release(ByteBuffer)} once it has been written
+ * to the connection.</p>
+ */
+@NotThreadSafe
+public final class FrameEncoder {
+    /** The capacity of a fresh frame buffer */
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    /** The pool from which frame buffers are obtained */
+    private final BufferPool pool;
+    /** The stream writing to the current frame buffer */
+    private final ByteBufferOutputStream stream;
+    /** The data view over the frame stream */
+    private final DataOutputStream out;
+
+    public FrameEncoder(BufferPool pool) {
+        this.pool = pool;
+        this.stream = new ByteBufferOutputStream(pool);
+        this.out = new DataOutputStream(this.stream);
+    }
+
+    /**
+     * Begins a new frame with the given signal ID.
+     *
+     * @param id the signal ID
+     * @param correlationId the ID of the request, or 0
+     * @return the stream to which the payload is written
+     * @throws IOException should not occur
+     */
+    public DataOutputStream begin(int id, int correlationId) throws IOException {
+        this.stream.begin(DEFAULT_CAPACITY);
+        this.out.writeInt(0);
+        this.out.writeInt(id);
+        this.out.writeInt(correlationId);
+        return this.out;
+    }
+
+    /**
+     * Obtains the current offset into the frame, which may
+     * later be passed to {@link #patchInt(int, int)}.
+     *
+     * @return the frame offset
+     */
+    public int position() {
+        return this.stream.buf().position();
+    }
+
+    /**
+     * Overwrites a placeholder int previously written to
+     * the frame.
+     *
+     * @param pos the frame offset of the placeholder
+     * @param value the value to write
+     */
+    public void patchInt(int pos, int value) {
+        this.stream.buf().putInt(pos, value);
+    }
+
+    /**
+     * Copies the remaining contents of the given stream to
+     * the frame payload.
+     *
+     * @param in the stream to copy
+     * @return the number of bytes copied
+     * @throws IOException if the stream cannot be read
+     */
+    public int transferFrom(InputStream in) throws IOException {
+        return this.stream.transferFrom(in);
+    }
+
+    /**
+     * Completes the current frame.
+     *
+     * @return the frame buffer, flipped for writing
+     * @throws IOException if the frame is longer than the
+     * decoder accepts
+     */
+    public ByteBuffer finish() throws IOException {
+        ByteBuffer buf = this.stream.detach();
+        int len = buf.position() - FrameDecoder.HEADER_LEN;
+        if (len > FrameDecoder.MAX_FRAME) {
+            this.pool.release(buf);
+            throw new IOException("frame of " + len + " bytes is longer than " + FrameDecoder.MAX_FRAME);
+        }
+
+        buf.putInt(0, len);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Returns a frame buffer to the pool once it has been
+     * written.
+     *
+     * @param frame the frame buffer
+     */
+    public void release(ByteBuffer frame) {
+        this.pool.release(frame);
+    }
+}
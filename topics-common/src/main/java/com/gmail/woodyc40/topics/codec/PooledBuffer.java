@@ -0,0 +1,77 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.codec;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted pool buffer, which is returned to
+ * its pool once every frame sliced from it and its owner
+ * have released it.
+ */
+@ThreadSafe
+final class PooledBuffer {
+    /** The pool from which the buffer was obtained */
+    private final BufferPool pool;
+    /** The underlying buffer */
+    private final ByteBuffer buf;
+    /** The number of holders of the buffer */
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    PooledBuffer(BufferPool pool, int capacity) {
+        this.pool = pool;
+        this.buf = pool.acquire(capacity);
+    }
+
+    /**
+     * Obtains the underlying buffer.
+     *
+     * @return the pooled buffer
+     */
+    ByteBuffer buf() {
+        return this.buf;
+    }
+
+    /**
+     * Determines whether the caller is the only remaining
+     * holder of this buffer.
+     *
+     * @return {@code true} if no slices are outstanding
+     */
+    boolean isExclusive() {
+        return this.refs.get() == 1;
+    }
+
+    /**
+     * Adds a holder to this buffer.
+     */
+    void retain() {
+        this.refs.incrementAndGet();
+    }
+
+    /**
+     * Removes a holder from this buffer, returning it to
+     * the pool if it was the last.
+     */
+    void release() {
+        if (this.refs.decrementAndGet() == 0) {
+            this.pool.release(this.buf);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.codec;
+
+import com.google.common.base.Charsets;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.zip.CRC32;
+
+/**
+ * The signal table shared by the agent and the debugger.
+ *
+ * <p>Both sides dispatch on these IDs, and the agent sends
+ * the {@link #VERSION} and {@link #SCHEMA_HASH} in its
+ * init signal so that the debugger can reject an agent
+ * built against a different table. New signals must be
+ * appended so that the existing IDs do not shift.</p>
+ *
+ * <p>Strings are always written as an int byte length
+ * followed by the UTF-8 bytes.</p>
+ */
+@Immutable
+public final class Protocol {
+    /** The protocol version, bumped on incompatible changes */
+    public static final int VERSION = 4;
+
+    /** Agent to debugger: the agent has started */
+    public static final int INIT = 0;
+    /** Debugger to agent: the agent has been accepted */
+    public static final int RESP_INIT = 1;
+    /** Debugger to agent: too many agents are connected */
+    public static final int BUSY = 2;
+    /** Agent to debugger: the calls made by a method */
+    public static final int RESP_CALL_SITES = 3;
+    /** Debugger to agent: requests the calls made by a method */
+    public static final int REQ_METHOD = 4;
+    /** Debugger to agent: exit the VM */
+    public static final int EXIT = 5;
+    /** Agent to debugger: a request could not be served */
+    public static final int ERROR = 6;
+    /** Debugger to agent: the agent's protocol is incompatible */
+    public static final int REJECT = 7;
+    /** Debugger to agent: inject the condition of a breakpoint */
+    public static final int REQ_CONDITION = 8;
+    /** Agent to debugger: where a condition was injected or removed */
+    public static final int RESP_CONDITION = 9;
+    /** Debugger to agent: remove the condition of a breakpoint */
+    public static final int CLEAR_CONDITION = 10;
+    /** Debugger to agent: record the calls made by a method */
+    public static final int REQ_CAPTURE = 11;
+    /** Agent to debugger: the calls of a method are recorded */
+    public static final int RESP_CAPTURE = 12;
+    /** Debugger to agent: stop recording the calls of a method */
+    public static final int CLEAR_CAPTURE = 13;
+
+    /** The layout of each signal, by ID */
+    private static final String[] SCHEMA = {
+            "INIT int:pid int:version int:schemaHash",
+            "RESP_INIT",
+            "BUSY",
+            "RESP_CALL_SITES int:stringCount str[]:strings int:siteCount int[]:ownerNameDescIdx",
+            "REQ_METHOD str:cls str:name str:desc",
+            "EXIT int:code str:message",
+            "ERROR str:message",
+            "REJECT str:reason",
+            "REQ_CONDITION int:conditionId str:cls int:line str:expression",
+            "RESP_CONDITION str:status",
+            "CLEAR_CONDITION int:conditionId",
+            "REQ_CAPTURE str:cls str:name str:desc",
+            "RESP_CAPTURE str:status",
+            "CLEAR_CAPTURE str:cls str:name str:desc"
+    };
+
+    /** The number of signals in the table */
+    public static final int SIGNALS = SCHEMA.length;
+    /** The hash of the signal layouts */
+    public static final int SCHEMA_HASH = hash();
+
+    private Protocol() {
+    }
+
+    private static int hash() {
+        CRC32 crc = new CRC32();
+        for (String signal : SCHEMA) {
+            crc.update(signal.getBytes(Charsets.UTF_8));
+            crc.update('\n');
+        }
+
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Obtains the layout of the signal with the given ID.
+     *
+     * @param id the signal ID
+     * @return the signal layout
+     */
+    public static String schemaOf(int id) {
+        return SCHEMA[id];
+    }
+}
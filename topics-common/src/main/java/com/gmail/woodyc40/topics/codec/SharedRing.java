@@ -0,0 +1,170 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.codec;
+
+import sun.misc.Unsafe;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * A single-producer, single-consumer byte ring laid out in
+ * a shared memory mapping.
+ *
+ * <p>The producer and consumer positions are each on their
+ * own cache line and only ever increase. The producer
+ * publishes bytes with an ordered store to its position
+ * after copying them, and the consumer frees space the
+ * same way, so neither side ever takes a lock.</p>
+ *
+ * <p>SCHEMA (from the base offset):
+ * - long:head (consumer position), padded to 64 bytes
+ * - long:tail (producer position), padded to 64 bytes
+ * - byte[capacity]:data</p>
+ */
+@NotThreadSafe
+final class SharedRing {
+    /** The size of the ring header */
+    static final int HEADER_LEN = 128;
+    /** Offset of the consumer position */
+    private static final int HEAD = 0;
+    /** Offset of the producer position */
+    private static final int TAIL = 64;
+
+    /** Used for ordered access to the positions */
+    static final Unsafe UNSAFE;
+    /** The offset of the native address of a buffer */
+    private static final long ADDRESS;
+
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = (Unsafe) field.get(null);
+            ADDRESS = UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** The view of the ring data, used by one side */
+    private final ByteBuffer data;
+    /** The number of bytes the ring can hold */
+    private final int capacity;
+    /** The native address of the head position */
+    private final long headAddress;
+    /** The native address of the tail position */
+    private final long tailAddress;
+
+    SharedRing(ByteBuffer mapping, int base, int capacity) {
+        this.capacity = capacity;
+        long address = address(mapping);
+        this.headAddress = address + base + HEAD;
+        this.tailAddress = address + base + TAIL;
+
+        ByteBuffer data = mapping.duplicate();
+        data.limit(base + HEADER_LEN + capacity);
+        data.position(base + HEADER_LEN);
+        this.data = data.slice();
+    }
+
+    /**
+     * Obtains the native address of a direct buffer.
+     *
+     * @param buf the buffer
+     * @return the address of its first byte
+     */
+    static long address(ByteBuffer buf) {
+        return UNSAFE.getLong(buf, ADDRESS);
+    }
+
+    /**
+     * Copies as many bytes as the ring has space for from
+     * the given buffer, and publishes them to the consumer.
+     *
+     * @param src the bytes to write
+     * @return the number of bytes written
+     */
+    int write(ByteBuffer src) {
+        long tail = UNSAFE.getLong(this.tailAddress);
+        long head = UNSAFE.getLongVolatile(null, this.headAddress);
+        int len = (int) Math.min(src.remaining(), this.capacity - (tail - head));
+        if (len == 0) {
+            return 0;
+        }
+
+        int idx = (int) (tail % this.capacity);
+        int first = Math.min(len, this.capacity - idx);
+        int limit = src.limit();
+
+        src.limit(src.position() + first);
+        this.data.position(idx);
+        this.data.put(src);
+
+        src.limit(src.position() + len - first);
+        this.data.position(0);
+        this.data.put(src);
+        src.limit(limit);
+
+        UNSAFE.putOrderedLong(null, this.tailAddress, tail + len);
+        return len;
+    }
+
+    /**
+     * Copies as many published bytes as will fit into the
+     * given buffer, and frees their space for the producer.
+     *
+     * @param dst the buffer to read into
+     * @return the number of bytes read
+     */
+    int read(ByteBuffer dst) {
+        long head = UNSAFE.getLong(this.headAddress);
+        long tail = UNSAFE.getLongVolatile(null, this.tailAddress);
+        int len = (int) Math.min(dst.remaining(), tail - head);
+        if (len == 0) {
+            return 0;
+        }
+
+        int idx = (int) (head % this.capacity);
+        int first = Math.min(len, this.capacity - idx);
+
+        ByteBuffer data = this.data;
+        data.limit(idx + first);
+        data.position(idx);
+        dst.put(data);
+
+        data.limit(len - first);
+        data.position(0);
+        dst.put(data);
+        data.limit(this.capacity);
+
+        UNSAFE.putOrderedLong(null, this.headAddress, head + len);
+        return len;
+    }
+
+    /**
+     * Determines whether any published bytes are waiting to
+     * be read.
+     *
+     * @return {@code true} if the ring is not empty
+     */
+    boolean hasData() {
+        return UNSAFE.getLongVolatile(null, this.tailAddress) != UNSAFE.getLong(this.headAddress);
+    }
+}
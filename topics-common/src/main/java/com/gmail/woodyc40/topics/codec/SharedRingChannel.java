@@ -0,0 +1,378 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.codec;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A byte channel between the agent and the debugger on the
+ * same host, made of two {@link SharedRing}s in a memory
+ * mapped file.
+ *
+ * <p>The channel carries the same frames as the socket, so
+ * it may be used in its place by the frame codec. In
+ * blocking mode, reads and writes spin briefly and then
+ * back off until they can make progress.</p>
+ *
+ * <p>The ring file is named after the PID of the VM and a
+ * random suffix, created anew with owner only permissions
+ * and never opened through a link, so another user can
+ * neither read the frames nor plant a file for the agent to
+ * use. The debugger only opens the rings of a PID which are
+ * private to its own user, newest first.</p>
+ *
+ * <p>SCHEMA:
+ * - int:magic
+ * - int:capacity (of each ring)
+ * - long:agentClosed (at 64)
+ * - long:serverClosed (at 128)
+ * - ring:agent to server (at 256)
+ * - ring:server to agent</p>
+ */
+@NotThreadSafe
+public final class SharedRingChannel implements ByteChannel {
+    /** The identifier of a ring file */
+    private static final int MAGIC = 0x4A444252;
+    /** The offset of the agent's closed flag */
+    private static final int AGENT_CLOSED = 64;
+    /** The offset of the server's closed flag */
+    private static final int SERVER_CLOSED = 128;
+    /** The offset of the first ring */
+    private static final int RINGS = 256;
+    /** The default capacity of each ring */
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+    /** The idle attempts which spin */
+    private static final int SPINS = 100;
+    /** The idle attempts which yield after spinning */
+    private static final int YIELDS = 100;
+    /** The shortest park once idle */
+    private static final long MIN_PARK_NANOS = 50_000L;
+    /** The longest park once idle */
+    private static final long MAX_PARK_NANOS = 10_000_000L;
+    /** The idle parks before the park time doubles */
+    private static final int PARKS_PER_DOUBLING = 100;
+    /** The most times the park time is doubled */
+    private static final int MAX_DOUBLINGS = 8;
+    /** The permissions of a ring file, which only its owner may use */
+    private static final Set<PosixFilePermission> PRIVATE = PosixFilePermissions.fromString("rw-------");
+    /** The source of the suffixes of ring files */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /** The mapping of the ring file, kept reachable */
+    private final MappedByteBuffer mapping;
+    /** The file holding the rings */
+    private final Path path;
+    /** The ring read by this side */
+    private final SharedRing in;
+    /** The ring written by this side */
+    private final SharedRing out;
+    /** The native address of this side's closed flag */
+    private final long closedAddress;
+    /** The native address of the other side's closed flag */
+    private final long peerClosedAddress;
+    /** Whether reads and writes wait for progress */
+    private volatile boolean blocking = true;
+    /** Whether this side has closed the channel */
+    private volatile boolean closed;
+
+    private SharedRingChannel(Path path, MappedByteBuffer mapping, int capacity, boolean agent) {
+        this.path = path;
+        this.mapping = mapping;
+
+        SharedRing toServer = new SharedRing(mapping, RINGS, capacity);
+        SharedRing toAgent = new SharedRing(mapping, RINGS + SharedRing.HEADER_LEN + capacity, capacity);
+        this.in = agent ? toAgent : toServer;
+        this.out = agent ? toServer : toAgent;
+
+        long address = SharedRing.address(mapping);
+        this.closedAddress = address + (agent ? AGENT_CLOSED : SERVER_CLOSED);
+        this.peerClosedAddress = address + (agent ? SERVER_CLOSED : AGENT_CLOSED);
+    }
+
+    /**
+     * Obtains the path of a ring file used by the agent in
+     * the VM with the given PID.
+     *
+     * @param pid the PID of the VM
+     * @param suffix the suffix of the file, which may be
+     * {@code null} for a random one
+     * @return the ring file path
+     */
+    public static Path pathFor(int pid, String suffix) {
+        if (suffix == null) {
+            suffix = Long.toHexString(RANDOM.nextLong() & Long.MAX_VALUE);
+        } else if (!suffix.matches("[A-Za-z0-9]+")) {
+            throw new IllegalArgumentException("ring suffix must be alphanumeric: " + suffix);
+        }
+        return dir().resolve(prefix(pid) + suffix + ".ring");
+    }
+
+    private static Path dir() {
+        Path shm = Paths.get("/dev/shm");
+        return Files.isDirectory(shm) ? shm : Paths.get(System.getProperty("java.io.tmpdir"));
+    }
+
+    private static String prefix(int pid) {
+        return "topics-" + pid + "-";
+    }
+
+    /**
+     * Finds the ring files of the VM with the given PID which
+     * are private to the user running this VM.
+     *
+     * @param pid the PID of the VM
+     * @return the ring files, newest first
+     * @throws IOException if the directory cannot be listed
+     */
+    public static List<Path> find(int pid) throws IOException {
+        List<Path> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir(), prefix(pid) + "*.ring")) {
+            for (Path path : files) {
+                if (isPrivate(path)) {
+                    found.add(path);
+                }
+            }
+        }
+
+        Map<Path, FileTime> modified = new HashMap<>();
+        for (Path path : found) {
+            modified.put(path, Files.getLastModifiedTime(path, LinkOption.NOFOLLOW_LINKS));
+        }
+        found.sort(Comparator.comparing(modified::get, Comparator.reverseOrder()));
+        return found;
+    }
+
+    /**
+     * Removes the ring files left by an earlier VM with the
+     * same PID, which can never be opened by its agent.
+     *
+     * @param pid the PID of this VM
+     * @throws IOException if the directory cannot be listed
+     */
+    public static void removeStale(int pid) throws IOException {
+        for (Path path : find(pid)) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Determines whether a ring file is a regular file owned
+     * by the user running this VM, which no other user may
+     * read or write.
+     *
+     * @param path the ring file path
+     * @return {@code true} if the file may be trusted
+     * @throws IOException if the file cannot be read
+     */
+    private static boolean isPrivate(Path path) throws IOException {
+        PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class,
+                LinkOption.NOFOLLOW_LINKS);
+        if (view == null) {
+            // Only the owner check is available
+            return Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS) &&
+                    Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).getName().equals(System.getProperty("user.name"));
+        }
+
+        PosixFileAttributes attributes = view.readAttributes();
+        return attributes.isRegularFile() && PRIVATE.equals(attributes.permissions()) &&
+                attributes.owner().getName().equals(System.getProperty("user.name"));
+    }
+
+    /**
+     * Creates the ring file on the agent side. The file must
+     * not already exist.
+     *
+     * @param path the ring file path
+     * @param capacity the capacity of each ring
+     * @return the agent end of the channel
+     * @throws IOException if the file exists or cannot be
+     * mapped
+     */
+    public static SharedRingChannel create(Path path, int capacity) throws IOException {
+        int size = RINGS + 2 * (SharedRing.HEADER_LEN + capacity);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PRIVATE));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(path);
+        }
+
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                LinkOption.NOFOLLOW_LINKS)) {
+            MappedByteBuffer mapping = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            mapping.putInt(4, capacity);
+            SharedRing.UNSAFE.putOrderedInt(null, SharedRing.address(mapping), MAGIC);
+
+            return new SharedRingChannel(path, mapping, capacity, true);
+        }
+    }
+
+    /**
+     * Opens a ring file created by an agent.
+     *
+     * @param path the ring file path
+     * @return the server end of the channel
+     * @throws IOException if the file is not a ring file
+     */
+    public static SharedRingChannel open(Path path) throws IOException {
+        if (!isPrivate(path)) {
+            throw new IOException("ring file is not private to " + System.getProperty("user.name") + ": " + path);
+        }
+
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                LinkOption.NOFOLLOW_LINKS)) {
+            MappedByteBuffer mapping = ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+            if (SharedRing.UNSAFE.getIntVolatile(null, SharedRing.address(mapping)) != MAGIC) {
+                throw new IOException("not a ring file: " + path);
+            }
+
+            return new SharedRingChannel(path, mapping, mapping.getInt(4), false);
+        }
+    }
+
+    /**
+     * Waits in proportion to the number of consecutive
+     * attempts which made no progress, spinning first, then
+     * yielding and finally parking for longer and longer,
+     * so that an idle channel wakes each side about a
+     * hundred times a second rather than continuously.
+     *
+     * @param idleCount the number of idle attempts
+     */
+    public static void idle(int idleCount) {
+        if (idleCount < SPINS) {
+            return;
+        }
+
+        if (idleCount < SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            int doublings = Math.min((idleCount - SPINS - YIELDS) / PARKS_PER_DOUBLING, MAX_DOUBLINGS);
+            LockSupport.parkNanos(Math.min(MIN_PARK_NANOS << doublings, MAX_PARK_NANOS));
+        }
+    }
+
+    /**
+     * Sets whether reads and writes wait for progress.
+     *
+     * @param blocking {@code true} to block
+     */
+    public void configureBlocking(boolean blocking) {
+        this.blocking = blocking;
+    }
+
+    /**
+     * Determines whether the other side has closed the
+     * channel.
+     *
+     * @return {@code true} if the peer has closed
+     */
+    private boolean isPeerClosed() {
+        return SharedRing.UNSAFE.getLongVolatile(null, this.peerClosedAddress) != 0;
+    }
+
+    /**
+     * Determines whether there are bytes waiting to be
+     * read.
+     *
+     * @return {@code true} if a read would make progress
+     */
+    public boolean hasData() {
+        return this.in.hasData();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (this.closed) {
+            throw new ClosedChannelException();
+        }
+
+        for (int idle = 0; ; idle++) {
+            int read = this.in.read(dst);
+            if (read > 0 || !dst.hasRemaining()) {
+                return read;
+            }
+
+            // Only report the end of stream once everything
+            // the peer wrote has been read
+            if (this.isPeerClosed()) {
+                return this.in.hasData() ? this.in.read(dst) : -1;
+            }
+
+            if (!this.blocking) {
+                return 0;
+            }
+            idle(idle);
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (this.closed || this.isPeerClosed()) {
+            throw new ClosedChannelException();
+        }
+
+        int written = 0;
+        for (int idle = 0; src.hasRemaining(); idle++) {
+            int len = this.out.write(src);
+            written += len;
+            if (len > 0) {
+                idle = 0;
+            } else if (!this.blocking) {
+                break;
+            } else if (this.isPeerClosed()) {
+                throw new ClosedChannelException();
+            } else {
+                idle(idle);
+            }
+        }
+
+        return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !this.closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+
+        this.closed = true;
+        SharedRing.UNSAFE.putLongVolatile(null, this.closedAddress, 1L);
+        if (this.isPeerClosed()) {
+            Files.deleteIfExists(this.path);
+        }
+    }
+}
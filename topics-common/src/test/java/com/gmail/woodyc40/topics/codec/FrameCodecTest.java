@@ -0,0 +1,158 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.codec;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameCodecTest {
+    private final BufferPool pool = BufferPool.shared();
+
+    /**
+     * Encodes frames carrying a run of bytes each into one
+     * stream, as they would be written to a connection.
+     */
+    private ByteBuffer encode(int... lengths) throws IOException {
+        FrameEncoder encoder = new FrameEncoder(this.pool);
+        ByteBuffer stream = ByteBuffer.allocate(1 << 20);
+        for (int i = 0; i < lengths.length; i++) {
+            DataOutputStream out = encoder.begin(i + 1, 100 + i);
+            for (int j = 0; j < lengths[i]; j++) {
+                out.writeByte(j);
+            }
+
+            ByteBuffer frame = encoder.finish();
+            stream.put(frame);
+            encoder.release(frame);
+        }
+
+        stream.flip();
+        return stream;
+    }
+
+    /**
+     * Feeds a stream to a decoder at most the given number
+     * of bytes per read, draining the frames after each. The
+     * frames are only released once every one is read, so
+     * their slices must outlive the buffers they were read
+     * into.
+     */
+    private List<Frame> decode(ByteBuffer stream, int chunk) throws IOException {
+        FrameDecoder decoder = new FrameDecoder(this.pool);
+        List<Frame> frames = new ArrayList<>();
+        while (stream.hasRemaining()) {
+            ByteBuffer buf = decoder.buffer();
+            int n = Math.min(chunk, Math.min(buf.remaining(), stream.remaining()));
+            ByteBuffer read = stream.duplicate();
+            read.limit(read.position() + n);
+            buf.put(read);
+            stream.position(stream.position() + n);
+
+            Frame frame;
+            while ((frame = decoder.next()) != null) {
+                frames.add(frame);
+            }
+        }
+
+        decoder.close();
+        return frames;
+    }
+
+    private static void assertFrames(List<Frame> frames, int... lengths) {
+        assertEquals(lengths.length, frames.size());
+        for (int i = 0; i < lengths.length; i++) {
+            Frame frame = frames.get(i);
+            assertEquals(i + 1, frame.getId());
+            assertEquals(100 + i, frame.getCorrelationId());
+
+            ByteBuffer payload = frame.getPayload();
+            assertEquals(lengths[i], payload.remaining());
+            for (int j = 0; j < lengths[i]; j++) {
+                assertEquals((byte) j, payload.get());
+            }
+            frame.release();
+        }
+    }
+
+    @Test
+    public void decodeWholeFrames() throws IOException {
+        assertFrames(this.decode(this.encode(0, 5, 300), Integer.MAX_VALUE), 0, 5, 300);
+    }
+
+    @Test
+    public void decodeOneByteAtATime() throws IOException {
+        assertFrames(this.decode(this.encode(3, 0, 17), 1), 3, 0, 17);
+    }
+
+    @Test
+    public void decodeFramesSplitAcrossReads() throws IOException {
+        int[] lengths = { 100, 7000, 12, 9000, 1 };
+        for (int chunk : new int[] { 3, 11, 4095, 8191 }) {
+            assertFrames(this.decode(this.encode(lengths), chunk), lengths);
+        }
+    }
+
+    @Test
+    public void decodeFrameLargerThanBuffer() throws IOException {
+        assertFrames(this.decode(this.encode(50_000), 1000), 50_000);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectNegativeLength() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(this.pool);
+        decoder.buffer().putInt(-1).putInt(1).putInt(0);
+        decoder.next();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectLengthShorterThanIds() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(this.pool);
+        decoder.buffer().putInt(FrameDecoder.ID_LEN - 1);
+        decoder.next();
+    }
+
+    @Test
+    public void rejectOversizedLengthWithoutGrowing() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(this.pool);
+        ByteBuffer buf = decoder.buffer();
+        int capacity = buf.capacity();
+        buf.putInt(FrameDecoder.MAX_FRAME + 1);
+        assertEquals(capacity, decoder.buffer().capacity());
+
+        try {
+            decoder.next();
+            fail("oversized frame was accepted");
+        } catch (IOException expected) {
+            // Corrupt
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void refuseToEncodeOversizedFrame() throws IOException {
+        FrameEncoder encoder = new FrameEncoder(this.pool);
+        DataOutputStream out = encoder.begin(1, 0);
+        out.write(new byte[FrameDecoder.MAX_FRAME]);
+        encoder.finish();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.codec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SharedRingTest {
+    private static final int CAPACITY = 64;
+
+    /** The mapping shared by both ends of the ring */
+    private final ByteBuffer mapping = ByteBuffer.allocateDirect(SharedRing.HEADER_LEN + CAPACITY);
+    /** The producer end */
+    private final SharedRing producer = new SharedRing(this.mapping, 0, CAPACITY);
+    /** The consumer end */
+    private final SharedRing consumer = new SharedRing(this.mapping, 0, CAPACITY);
+
+    private static ByteBuffer bytes(int from, int n) {
+        ByteBuffer buf = ByteBuffer.allocate(n);
+        for (int i = 0; i < n; i++) {
+            buf.put((byte) (from + i));
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static void assertBytes(ByteBuffer buf, int from, int n) {
+        buf.flip();
+        assertEquals(n, buf.remaining());
+        for (int i = 0; i < n; i++) {
+            assertEquals((byte) (from + i), buf.get());
+        }
+    }
+
+    @Test
+    public void readWhatWasWritten() {
+        assertFalse(this.consumer.hasData());
+        assertEquals(10, this.producer.write(bytes(0, 10)));
+        assertTrue(this.consumer.hasData());
+
+        ByteBuffer dst = ByteBuffer.allocate(CAPACITY);
+        assertEquals(10, this.consumer.read(dst));
+        assertBytes(dst, 0, 10);
+        assertFalse(this.consumer.hasData());
+    }
+
+    @Test
+    public void writeOnlyWhatFits() {
+        ByteBuffer src = bytes(0, CAPACITY + 10);
+        assertEquals(CAPACITY, this.producer.write(src));
+        assertEquals(10, src.remaining());
+        assertEquals(0, this.producer.write(src));
+
+        ByteBuffer dst = ByteBuffer.allocate(16);
+        assertEquals(16, this.consumer.read(dst));
+        assertEquals(10, this.producer.write(src));
+    }
+
+    @Test
+    public void wrapAroundTheEnd() {
+        // Moves both positions near the end of the data
+        ByteBuffer dst = ByteBuffer.allocate(CAPACITY);
+        this.producer.write(bytes(0, CAPACITY - 5));
+        this.consumer.read(dst);
+
+        // Split across the end and the start of the data
+        assertEquals(20, this.producer.write(bytes(50, 20)));
+        dst.clear();
+        assertEquals(20, this.consumer.read(dst));
+        assertBytes(dst, 50, 20);
+    }
+
+    @Test
+    public void readIntoSmallBuffersAcrossTheEnd() {
+        int from = 0;
+        int expected = 0;
+        ByteBuffer dst = ByteBuffer.allocate(7);
+        for (int round = 0; round < 50; round++) {
+            ByteBuffer src = bytes(from, 23);
+            from += this.producer.write(src);
+
+            while (this.consumer.hasData()) {
+                dst.clear();
+                int n = this.consumer.read(dst);
+                assertBytes(dst, expected, n);
+                expected += n;
+            }
+        }
+        assertEquals(from, expected);
+    }
+}
@@ -22,6 +22,7 @@ import com.gmail.woodyc40.topics.infra.Platform;
 import com.gmail.woodyc40.topics.infra.command.CmdManager;
 import com.gmail.woodyc40.topics.protocol.SignalRegistry;
 import com.gmail.woodyc40.topics.server.AgentServer;
+import com.gmail.woodyc40.topics.server.QueueLimits;
 import org.jline.reader.LineReader;
 import org.jline.reader.LineReaderBuilder;
 import org.jline.terminal.Terminal;
@@ -185,6 +186,20 @@ public final class Main {
     private static final ArgParser SERVER_PORT = ArgParser.newParser("port", "port",
             s -> port = Integer.parseInt(s));
 
+    private static QueueLimits queueLimits = new QueueLimits();
+    /**
+     * --queue-capacity [out=n,outgoing=n,incoming=n]
+     * -qc [out=n,outgoing=n,incoming=n]
+     * Sets the capacities of the agent signal queues
+     */
+    private static final ArgParser QUEUE_CAPACITY = ArgParser.newParser("queue-capacity", "qc", s -> {
+        try {
+            queueLimits = QueueLimits.parse(s);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid queue capacity " + s + ": " + e.getMessage());
+        }
+    });
+
     static {
         try {
             TERM = TerminalBuilder.
@@ -223,18 +238,29 @@ public final class Main {
         manager.register(new Dump());
         manager.register(new Proceed());
         manager.register(new See());
+        manager.register(new Queues());
+        manager.register(new NetStats());
+        manager.register(new Pipeline());
+        manager.register(new Stack());
+        manager.register(new History());
+        manager.register(new ThreadSelect());
+        manager.register(new Breaks());
+        manager.register(new Log());
+        manager.register(new Govern());
 
         PRINT_SIGNALS.parse(args);
         SPAWN_PROC_JOIN.parse(args);
         SPAWN_PROC.parse(args);
         SERVER_PORT.parse(args);
+        QUEUE_CAPACITY.parse(args);
 
-        AgentServer client = AgentServer.initServer(port);
+        AgentServer client = AgentServer.initServer(port, queueLimits);
         JvmContext.init(client);
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("Process terminating");
             JvmContext.getContext().detach();
+            client.close();
         }, "Detach hook"));
 
         PrintStream out = new PrintStream(TERM.output());
@@ -16,14 +16,109 @@
  */
 package com.gmail.woodyc40.topics.cmd;
 
+import com.gmail.woodyc40.topics.Main;
+import com.gmail.woodyc40.topics.infra.BreakpointRegistry;
 import com.gmail.woodyc40.topics.infra.JvmContext;
+import com.gmail.woodyc40.topics.infra.SamplePolicy;
+import com.gmail.woodyc40.topics.infra.Sampler;
 import com.gmail.woodyc40.topics.infra.command.CmdProcessor;
-import com.gmail.woodyc40.topics.protocol.SignalOutReqMethod;
 import com.sun.jdi.*;
 import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.EventRequest;
 import com.sun.jdi.request.EventRequestManager;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
 public class BreakAfter implements CmdProcessor {
+    /**
+     * Sets a breakpoint at every location of the given line
+     * in a loaded class, and if asked, asks the agent to
+     * record the calls made by each method so their returns
+     * are captured.
+     *
+     * @param type the loaded class
+     * @param lineNumber the line to break at
+     * @param suspendPolicy the suspend policy of the
+     * breakpoint
+     * @param samplePolicy which hits suspend the thread
+     * @param captureReturns whether the returns before the
+     * breakpoint are captured, which replaces the code of
+     * the class
+     * @param out the sink for messages to the user
+     * @return {@code true} if the line has any code
+     */
+    public static boolean install(ReferenceType type, int lineNumber, int suspendPolicy,
+                                  SamplePolicy samplePolicy, boolean captureReturns, Consumer<String> out) {
+        JvmContext context = JvmContext.getContext();
+        VirtualMachine vm = context.getVm();
+        EventRequestManager manager = vm.eventRequestManager();
+
+        List<Location> locations;
+        try {
+            locations = type.locationsOfLine(lineNumber);
+        } catch (AbsentInformationException e) {
+            out.accept("abort: " + type.name() + " has no line information (was -g specified when compiled?)");
+            return false;
+        }
+
+        if (locations.isEmpty()) {
+            out.accept("abort: no code at " + type.name() + ":" + lineNumber);
+            return false;
+        }
+
+        for (Location location : locations) {
+            BreakpointRequest req = manager.createBreakpointRequest(location);
+            Sampler.apply(req, samplePolicy, suspendPolicy);
+            req.enable();
+            BreakpointRegistry.Entry entry = context.getBreakpoints().add(req);
+            if (captureReturns) {
+                // The calls before it are recorded once the
+                // agent responds
+                context.getReturnCapture().acquire(vm, entry);
+            }
+
+            Method method = location.method();
+            out.accept("Breakpoint #" + entry.getId() + " after " + type.name() + "." + method.name() + ":" + lineNumber +
+                    (samplePolicy.getMode() == SamplePolicy.Mode.ALWAYS ? "" : ", " + samplePolicy));
+
+            String line = context.lookupLine(type.name(), lineNumber, 1);
+            if (line != null && !line.isEmpty()) {
+                out.accept("Code sample:");
+                out.accept(line);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Asks the agent to inject a condition at the given
+     * line, which raises a breakpoint event only when it
+     * holds.
+     *
+     * @param className the name of the class
+     * @param lineNumber the line to test the condition at
+     * @param condition the condition
+     */
+    private static void setConditional(String className, int lineNumber, String condition) {
+        String at = className + ":" + lineNumber;
+        try {
+            JvmContext.getContext().getConditional().add(className, lineNumber, condition).
+                    whenComplete((status, t) -> {
+                        if (t == null) {
+                            Main.printAsync("Conditional breakpoint at " + at + " if " + condition + ", " + status);
+                        } else {
+                            Throwable cause = t.getCause() == null ? t : t.getCause();
+                            Main.printAsync("abort: condition at " + at + " not set: " + cause.getMessage());
+                        }
+                    });
+        } catch (IllegalStateException e) {
+            System.out.println("abort: " + e.getMessage());
+        }
+    }
+
     @Override
     public String name() {
         return "ba";
@@ -31,35 +126,76 @@ public class BreakAfter implements CmdProcessor {
 
     @Override
     public String help() {
-        return "Sets a breakpoint after a given line";
+        return "Sets a breakpoint after a given line, suspending only the hitting thread unless \"all\" is given. " +
+                "Breakpoints in classes which are not loaded are set once they load. A condition given after " +
+                "\"if\" is tested inside the VM by the agent. \"returns\" captures the calls made before each hit " +
+                "for the returns command, at the cost of replacing the code of the class. " +
+                "\"nth n\" breaks on the nth hit only, " +
+                "\"every n\" on every nth hit and \"rate n\" on at most n hits per second";
     }
 
     @Override
     public void process(String alias, String[] args) {
-        if (args.length != 1) {
-            System.out.println("ba <file:>[line]");
+        String condition = null;
+        int ifAt = Arrays.asList(args).indexOf("if");
+        if (ifAt >= 0) {
+            condition = String.join(" ", Arrays.copyOfRange(args, ifAt + 1, args.length));
+            args = Arrays.copyOf(args, ifAt);
+        }
+
+        // Only the hitting thread is suspended unless asked,
+        // so the rest of the VM keeps running
+        int suspendPolicy = EventRequest.SUSPEND_EVENT_THREAD;
+        SamplePolicy samplePolicy = SamplePolicy.ALWAYS;
+        boolean captureReturns = false;
+        boolean valid = args.length >= 1 && !"".equals(condition);
+        for (int i = 1; valid && i < args.length; i++) {
+            if (args[i].equals("all")) {
+                suspendPolicy = EventRequest.SUSPEND_ALL;
+            } else if (args[i].equals("returns")) {
+                captureReturns = true;
+            } else if (i + 1 < args.length) {
+                try {
+                    samplePolicy = SamplePolicy.parse(args[i], args[++i]);
+                } catch (NumberFormatException e) {
+                    samplePolicy = null;
+                }
+                valid = samplePolicy != null;
+            } else {
+                valid = false;
+            }
+        }
+
+        if (!valid) {
+            System.out.println("ba <file:>[line] [all] [returns] [nth|every|rate <n>] [if <condition>]");
+            return;
+        }
+
+        JvmContext context = JvmContext.getContext();
+        if (context.getVm() == null) {
+            System.out.println("abort: not attached");
             return;
         }
 
         ReferenceType type;
+        String className = null;
         String parseLn;
         if (args[0].contains(":")) {
             String[] split = args[0].split(":");
 
-            type = Enter.getReference(split[0]);
+            className = split[0];
+            List<ReferenceType> matches = Enter.findMatches(className);
+            type = matches.isEmpty() ? null : Enter.choose(className, matches);
             parseLn = split[1];
         } else {
-            type = JvmContext.getContext().getCurrentRef();
+            type = context.getCurrentRef();
             if (type == null) {
                 System.out.println("abort: no class entered");
+                return;
             }
             parseLn = args[0];
         }
 
-        if (type == null) {
-            return;
-        }
-
         int lineNumber;
         try {
             lineNumber = Integer.parseInt(parseLn);
@@ -68,30 +204,22 @@ public class BreakAfter implements CmdProcessor {
             return;
         }
 
-        VirtualMachine vm = JvmContext.getContext().getVm();
-        EventRequestManager manager = vm.eventRequestManager();
-
-        try {
-            for (Location location : type.locationsOfLine(lineNumber)) {
-                BreakpointRequest req = manager.createBreakpointRequest(location);
-                req.enable();
-                JvmContext.getContext().getBreakpoints().put(
-                        location.sourceName() + ':' + lineNumber, req);
-
-                Method method = location.method();
-                JvmContext.getContext().getServer().write(new SignalOutReqMethod(
-                        location.declaringType().name(), method.name(), method.signature()));
-                System.out.println("Breakpoint after " + type.name() + "." + method.name() + ":" + lineNumber);
-                System.out.println();
-
-                String line = JvmContext.getContext().lookupLine(type.name(), lineNumber, 1);
-                if (line != null && !line.isEmpty()) {
-                    System.out.println("Code sample:");
-                    System.out.println(line);
-                }
+        if (condition != null) {
+            if (suspendPolicy == EventRequest.SUSPEND_ALL) {
+                System.out.println("warn: conditional breakpoints only suspend the hitting thread");
             }
-        } catch (AbsentInformationException e) {
-            throw new RuntimeException(e);
+            if (samplePolicy != SamplePolicy.ALWAYS) {
+                System.out.println("warn: conditional breakpoints break on every hit where the condition holds");
+            }
+            if (captureReturns) {
+                System.out.println("warn: returns are not captured at conditional breakpoints");
+            }
+            setConditional(type != null ? type.name() : className, lineNumber, condition);
+        } else if (type != null) {
+            install(type, lineNumber, suspendPolicy, samplePolicy, captureReturns, System.out::println);
+        } else if (className != null) {
+            context.getDeferred().defer(className, lineNumber, suspendPolicy, samplePolicy, captureReturns);
+            System.out.println("Deferred breakpoint at " + className + ":" + lineNumber + " until the class loads");
         }
     }
-}
\ No newline at end of file
+}
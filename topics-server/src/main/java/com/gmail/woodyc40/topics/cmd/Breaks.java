@@ -0,0 +1,100 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.cmd;
+
+import com.gmail.woodyc40.topics.infra.BreakpointRegistry;
+import com.gmail.woodyc40.topics.infra.ConditionalBreakpoints;
+import com.gmail.woodyc40.topics.infra.DeferredBreakpoints;
+import com.gmail.woodyc40.topics.infra.JvmContext;
+import com.gmail.woodyc40.topics.infra.Logpoints;
+import com.gmail.woodyc40.topics.infra.Sampler;
+import com.gmail.woodyc40.topics.infra.command.CmdProcessor;
+
+public class Breaks implements CmdProcessor {
+    @Override
+    public String name() {
+        return "breaks";
+    }
+
+    @Override
+    public String[] aliases() {
+        return new String[] { "bl" };
+    }
+
+    @Override
+    public String help() {
+        return "Lists the breakpoints and logpoints with the number of hits which suspended and which were skipped, " +
+                "or enables or disables a breakpoint: breaks [enable|disable] [id]";
+    }
+
+    @Override
+    public void process(String alias, String[] args) {
+        JvmContext context = JvmContext.getContext();
+        BreakpointRegistry breakpoints = context.getBreakpoints();
+        if (args.length == 2 && (args[0].equals("enable") || args[0].equals("disable"))) {
+            BreakpointRegistry.Entry entry = null;
+            try {
+                entry = breakpoints.get(Integer.parseInt(args[1].replace("#", "")));
+            } catch (NumberFormatException e) {
+            }
+
+            if (entry == null) {
+                System.out.println("abort: no breakpoint " + args[1]);
+                return;
+            }
+            breakpoints.setEnabled(entry, args[0].equals("enable"));
+        } else if (args.length != 0) {
+            System.out.println("abort: usage is breaks [enable|disable] [id]");
+            return;
+        }
+
+        for (BreakpointRegistry.Entry entry : breakpoints.all()) {
+            StringBuilder line = new StringBuilder("#").append(entry.getId()).append(' ').append(entry.getKey());
+            if (!entry.getRequest().isEnabled()) {
+                line.append(" (disabled)");
+            }
+
+            Object property = entry.getRequest().getProperty(Sampler.PROPERTY);
+            if (property instanceof Sampler) {
+                Sampler sampler = (Sampler) property;
+                line.append(": ").append(sampler.getPolicy()).
+                        append(" hits=").append(sampler.getHits()).
+                        append(" skipped=").append(sampler.getSkipped());
+            }
+            System.out.println(line);
+        }
+
+        for (DeferredBreakpoints.Pending pending : context.getDeferred().getPending()) {
+            System.out.println(pending.getClassName() + ":" + pending.getLine() + ": " +
+                    pending.getSamplePolicy() + ", deferred until loaded");
+        }
+
+        for (ConditionalBreakpoints.Conditional cond : context.getConditional().getConditions()) {
+            System.out.println(cond.getClassName() + ":" + cond.getLine() + ": if " + cond.getExpression());
+        }
+
+        for (Logpoints.Logpoint logpoint : context.getLogpoints().getLogpoints()) {
+            System.out.println(logpoint.getKey() + ": log \"" + logpoint.getTemplate() + "\"" +
+                    (logpoint.getFile() == null ? "" : " > " + logpoint.getFile()) +
+                    " hits=" + logpoint.getHits() +
+                    (logpoint.getDropped() == 0 ? "" : " dropped=" + logpoint.getDropped()));
+        }
+
+        context.getReturnCapture().getOwners().forEach((owner, count) ->
+                System.out.println("returns of " + owner + " captured for " + count + " breakpoint(s)"));
+    }
+}
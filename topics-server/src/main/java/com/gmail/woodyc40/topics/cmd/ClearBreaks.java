@@ -16,34 +16,60 @@
  */
 package com.gmail.woodyc40.topics.cmd;
 
+import com.gmail.woodyc40.topics.infra.BreakpointRegistry;
+import com.gmail.woodyc40.topics.infra.ConditionalBreakpoints;
+import com.gmail.woodyc40.topics.infra.DeferredBreakpoints;
 import com.gmail.woodyc40.topics.infra.JvmContext;
+import com.gmail.woodyc40.topics.infra.Logpoints;
 import com.gmail.woodyc40.topics.infra.command.CmdProcessor;
 import com.sun.jdi.ReferenceType;
-import com.sun.jdi.request.BreakpointRequest;
 
-import java.util.Iterator;
-import java.util.Map;
-import java.util.function.Function;
+import java.util.Collections;
+import java.util.List;
 
 public class ClearBreaks implements CmdProcessor {
     /**
-     * Removes and disables all of the breakpoints from the
-     * scope defined by the filter function.
+     * Removes the given breakpoints, deleting them from the
+     * VM in a single request.
      *
-     * @param filter whether or not to disable a given
-     * breakpoint
+     * @param entries the breakpoints to remove
+     * @return {@code true} if any breakpoint was removed
      */
-    private static void clearBreaks(Function<BreakpointRequest, Boolean> filter) {
-        Map<String, BreakpointRequest> breakpoints = JvmContext.getContext().getBreakpoints();
-        for (Iterator<Map.Entry<String, BreakpointRequest>> it = breakpoints.entrySet().iterator();
-             it.hasNext(); ) {
-            Map.Entry<String, BreakpointRequest> next = it.next();
-            if (filter.apply(next.getValue())) {
-                next.getValue().disable();
-                it.remove();
-                System.out.println("Clear break at " + next.getKey());
-            }
+    private static boolean clearBreaks(List<BreakpointRegistry.Entry> entries) {
+        JvmContext context = JvmContext.getContext();
+        List<BreakpointRegistry.Entry> removed = context.getBreakpoints().remove(entries, context.getVm());
+        context.getReturnCapture().release(removed, context.getVm());
+        context.getGovernor().forget(removed);
+        for (BreakpointRegistry.Entry entry : removed) {
+            System.out.println("Clear break #" + entry.getId() + " at " + entry.getKey());
         }
+        return !removed.isEmpty();
+    }
+
+    /**
+     * Cancels the breakpoints waiting for their class to
+     * load, and removes the conditional breakpoints and the
+     * logpoints.
+     */
+    private static void clearDeferred() {
+        DeferredBreakpoints deferred = JvmContext.getContext().getDeferred();
+        for (DeferredBreakpoints.Pending pending : deferred.getPending()) {
+            System.out.println("Clear deferred break at " + pending.getClassName() + ":" + pending.getLine());
+        }
+        deferred.clear(true);
+
+        ConditionalBreakpoints conditional = JvmContext.getContext().getConditional();
+        for (ConditionalBreakpoints.Conditional cond : conditional.getConditions()) {
+            System.out.println("Clear conditional break at " + cond.getClassName() + ":" + cond.getLine() +
+                    " if " + cond.getExpression());
+        }
+        conditional.clear(true);
+
+        Logpoints logpoints = JvmContext.getContext().getLogpoints();
+        for (Logpoints.Logpoint logpoint : logpoints.getLogpoints()) {
+            System.out.println("Clear logpoint at " + logpoint.getKey());
+        }
+        logpoints.clear(true);
     }
 
     @Override
@@ -53,7 +79,7 @@ public class ClearBreaks implements CmdProcessor {
 
     @Override
     public String help() {
-        return "Clears a breakpoint a given point, file, or all";
+        return "Clears a breakpoint a given point, #id, file, or all";
     }
 
     @Override
@@ -63,57 +89,70 @@ public class ClearBreaks implements CmdProcessor {
 
     @Override
     public void process(String alias, String[] args) {
+        JvmContext context = JvmContext.getContext();
+        BreakpointRegistry breakpoints = context.getBreakpoints();
         if (args.length == 0) {
-            ReferenceType current = JvmContext.getContext().getCurrentRef();
+            ReferenceType current = context.getCurrentRef();
             if (current != null) {
                 System.out.println("Clear break from " + current.name());
-                clearBreaks(req -> req.location().declaringType().equals(current));
+                clearBreaks(breakpoints.inClass(current.name()));
             } else {
                 System.out.println("Clear all breaks");
-                clearBreaks(req -> true);
+                clearBreaks(breakpoints.all());
+                clearDeferred();
             }
         } else if (args.length == 1) {
             String scope = args[0];
 
             if (scope.equals("all")) {
                 System.out.println("Clear all breaks");
-                clearBreaks(req -> true);
+                clearBreaks(breakpoints.all());
+                clearDeferred();
+            } else if (scope.startsWith("#")) {
+                BreakpointRegistry.Entry entry = null;
+                try {
+                    entry = breakpoints.get(Integer.parseInt(scope.substring(1)));
+                } catch (NumberFormatException e) {
+                }
+
+                if (entry == null || !clearBreaks(Collections.singletonList(entry))) {
+                    System.out.println("No break " + scope);
+                }
+            } else if (scope.contains(":")) {
+                String[] split = scope.split(":");
+                boolean line = split.length == 2 && split[1].matches("\\d+");
+                if (line && clearBreaks(breakpoints.at(split[0], Integer.parseInt(split[1])))) {
+                    return;
+                }
+
+                if (line && context.getConditional().remove(split[0], Integer.parseInt(split[1]))) {
+                    System.out.println("Clear conditional break at " + scope);
+                } else if (context.getLogpoints().remove(scope)) {
+                    System.out.println("Clear logpoint at " + scope);
+                } else {
+                    System.out.println("No break found at " + scope);
+                }
             } else {
-                if (scope.contains(":")) {
-                    BreakpointRequest rem = JvmContext.getContext().getBreakpoints().remove(scope);
-                    if (rem != null) {
-                        System.out.println("Clear break at " + scope);
-                        rem.disable();
+                int lnumber = -1;
+                try {
+                    lnumber = Integer.parseInt(scope);
+                } catch (NumberFormatException e) {
+                }
+
+                if (lnumber == -1) {
+                    ReferenceType reference = Enter.getReference(scope);
+                    if (reference == null) {
+                        System.out.println("no reference for " + scope);
                     } else {
-                        System.out.println("No break found at " + scope);
+                        System.out.println("Clear breaks from " + reference.name());
+                        clearBreaks(breakpoints.inClass(reference.name()));
                     }
                 } else {
-                    int lnumber = -1;
-                    try {
-                        lnumber = Integer.parseInt(scope);
-                    } catch (NumberFormatException e) {
-                    }
-
-                    if (lnumber == -1) {
-                        ReferenceType reference = Enter.getReference(scope);
-                        if (reference == null) {
-                            System.out.println("no reference for " + scope);
-                        } else {
-                            System.out.println("Clear breaks from " + reference.name());
-                            clearBreaks(req -> req.location().declaringType().equals(reference));
-                        }
-                    } else {
-                        ReferenceType current = JvmContext.getContext().getCurrentRef();
-                        if (current != null) {
-                            String key = current.name() + ':' + lnumber;
-                            BreakpointRequest rem = JvmContext.getContext().getBreakpoints().remove(key);
-                            if (rem != null) {
-                                System.out.println("Clear break from " + key);
-                                rem.disable();
-                            }
-                        } else {
-                            System.out.println("no class entered");
-                        }
+                    ReferenceType current = context.getCurrentRef();
+                    if (current == null) {
+                        System.out.println("no class entered");
+                    } else if (!clearBreaks(breakpoints.at(current.name(), lnumber))) {
+                        System.out.println("No break found at " + current.name() + ':' + lnumber);
                     }
                 }
             }
@@ -121,4 +160,4 @@ public class ClearBreaks implements CmdProcessor {
             System.out.println("clearbreaks");
         }
     }
-}
\ No newline at end of file
+}
@@ -20,9 +20,7 @@ import com.gmail.woodyc40.topics.Main;
 import com.gmail.woodyc40.topics.infra.JvmContext;
 import com.gmail.woodyc40.topics.infra.command.CmdProcessor;
 import com.sun.jdi.ReferenceType;
-import com.sun.jdi.VirtualMachine;
 
-import java.util.ArrayList;
 import java.util.List;
 
 public class Enter implements CmdProcessor {
@@ -33,14 +31,30 @@ public class Enter implements CmdProcessor {
      * @return the reference type as represented in the JDI
      */
     public static ReferenceType getReference(String name) {
-        VirtualMachine vm = JvmContext.getContext().getVm();
-        List<ReferenceType> matches = new ArrayList<>();
-        for (ReferenceType type : vm.allClasses()) {
-            if (type.name().toLowerCase().contains(name.toLowerCase())) {
-                matches.add(type);
-            }
-        }
+        return choose(name, findMatches(name));
+    }
+
+    /**
+     * Finds the loaded classes matching the given name, best
+     * match first.
+     *
+     * @param name the name of the reference to find
+     * @return the matching reference types
+     * @see com.gmail.woodyc40.topics.infra.ClassIndex#find(String)
+     */
+    public static List<ReferenceType> findMatches(String name) {
+        return JvmContext.getContext().getClasses().find(name);
+    }
 
+    /**
+     * Picks a single class from the matches for a name,
+     * prompting the user if there is more than one.
+     *
+     * @param name the name which was looked up
+     * @param matches the matching reference types
+     * @return the chosen reference type, or {@code null}
+     */
+    public static ReferenceType choose(String name, List<ReferenceType> matches) {
         if (matches.isEmpty()) {
             System.out.println("abort: no class for " + name);
         } else if (matches.size() == 1) {
@@ -0,0 +1,93 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.cmd;
+
+import com.gmail.woodyc40.topics.infra.Governor;
+import com.gmail.woodyc40.topics.infra.JvmContext;
+import com.gmail.woodyc40.topics.infra.command.CmdProcessor;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class Govern implements CmdProcessor {
+    @Override
+    public String name() {
+        return "governor";
+    }
+
+    @Override
+    public String[] aliases() {
+        return new String[] { "gov" };
+    }
+
+    @Override
+    public String help() {
+        return "Displays the safety governor, or sets it: governor [on|off], governor hold [ms], " +
+                "governor rate [hits/s], governor session [ms]. Limits are off until set, 0 turns a limit off";
+    }
+
+    @Override
+    public void process(String alias, String[] args) {
+        Governor governor = JvmContext.getContext().getGovernor();
+        if (args.length == 1 && (args[0].equals("on") || args[0].equals("off"))) {
+            governor.setEnabled(args[0].equals("on"));
+        } else if (args.length == 2) {
+            long value;
+            try {
+                value = Long.parseLong(args[1]);
+            } catch (NumberFormatException e) {
+                System.out.println("abort: " + args[1] + " not a number");
+                return;
+            }
+
+            switch (args[0]) {
+                case "hold":
+                    governor.setHoldBudgetMillis(value);
+                    break;
+                case "rate":
+                    governor.setMaxRate((int) Math.min(Integer.MAX_VALUE, value));
+                    break;
+                case "session":
+                    governor.setSessionBudgetMillis(value);
+                    break;
+                default:
+                    System.out.println("abort: no limit named " + args[0]);
+                    return;
+            }
+        } else if (args.length != 0) {
+            System.out.println("abort: usage is governor [on|off|hold|rate|session] [value]");
+            return;
+        }
+
+        System.out.println("governor " + (governor.isEnabled() ? "on" : "off") +
+                ": hold " + limit(governor.getHoldBudgetMillis(), " ms") +
+                ", rate " + limit(governor.getMaxRate(), " hits/s") +
+                ", session " + limit(governor.getSessionBudgetMillis(), " ms"));
+        System.out.println("session: held " + TimeUnit.NANOSECONDS.toMillis(governor.getSessionHeldNanos()) + " ms, " +
+                governor.getResumes() + " threads resumed, " + governor.getDisables() + " breakpoints disabled");
+        for (Map.Entry<String, Governor.Stats> entry : governor.getStats().entrySet()) {
+            Governor.Stats stats = entry.getValue();
+            System.out.println(entry.getKey() + ": hits=" + stats.getHits() +
+                    " held=" + TimeUnit.NANOSECONDS.toMillis(stats.getHeldNanos()) + " ms" +
+                    (stats.isDisabled() ? " (disabled by governor)" : ""));
+        }
+    }
+
+    private static String limit(long value, String unit) {
+        return value <= 0 ? "off" : value + unit;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.cmd;
+
+import com.gmail.woodyc40.topics.infra.HistoryRing;
+import com.gmail.woodyc40.topics.infra.JvmContext;
+import com.gmail.woodyc40.topics.infra.ReturnStore;
+import com.gmail.woodyc40.topics.infra.command.CmdProcessor;
+
+public class History implements CmdProcessor {
+    @Override
+    public String name() {
+        return "history";
+    }
+
+    @Override
+    public String[] aliases() {
+        return new String[] { "hs" };
+    }
+
+    @Override
+    public String help() {
+        return "Displays the retained breakpoint history: history stats, or history limit [frames|returns] [entries] [KB]";
+    }
+
+    @Override
+    public void process(String alias, String[] args) {
+        JvmContext context = JvmContext.getContext();
+        if (args.length == 0 || args[0].equals("stats")) {
+            print(context.getPreviousFrames().stats());
+            print(context.getReturns().stats());
+            return;
+        }
+
+        if (!args[0].equals("limit") || args.length < 3) {
+            System.out.println("abort: usage is history limit [frames|returns] [entries] [KB]");
+            return;
+        }
+
+        if (args[1].equals("returns")) {
+            // Records have a fixed size, so only the smaller
+            // of the limits applies
+            try {
+                int entries = Integer.parseInt(args[2]);
+                if (args.length > 3) {
+                    entries = (int) Math.min(entries, (Long.parseLong(args[3]) << 10) / ReturnStore.RECORD_BYTES);
+                }
+                context.getReturns().limit(entries);
+            } catch (IllegalArgumentException e) {
+                System.out.println("abort: " + e.getMessage());
+                return;
+            }
+
+            print(context.getReturns().stats());
+            return;
+        }
+
+        if (!args[1].equals("frames")) {
+            System.out.println("abort: no history named " + args[1]);
+            return;
+        }
+
+        HistoryRing<?> ring = context.getPreviousFrames();
+        try {
+            int entries = Integer.parseInt(args[2]);
+            long bytes = args.length > 3 ? Long.parseLong(args[3]) << 10 : ring.stats().getMaxBytes();
+            ring.limit(entries, bytes);
+        } catch (IllegalArgumentException e) {
+            System.out.println("abort: " + e.getMessage());
+            return;
+        }
+
+        print(ring.stats());
+    }
+
+    private static void print(HistoryRing.Stats stats) {
+        System.out.println(String.format("%-8s %d/%d entries, %d/%d KB, %d evicted of %d added",
+                stats.getName() + ":",
+                stats.getEntries(), stats.getMaxEntries(),
+                stats.getBytes() >> 10, stats.getMaxBytes() >> 10,
+                stats.getEvictions(), stats.getAdded()));
+    }
+}
@@ -17,9 +17,9 @@
 package com.gmail.woodyc40.topics.cmd;
 
 import com.gmail.woodyc40.topics.infra.JvmContext;
+import com.gmail.woodyc40.topics.infra.Suspension;
 import com.gmail.woodyc40.topics.infra.command.CmdProcessor;
 import com.sun.jdi.*;
-import com.sun.jdi.event.BreakpointEvent;
 
 import java.util.List;
 import java.util.Map;
@@ -37,12 +37,8 @@ public class Inspect implements CmdProcessor {
      * setup to send stack info
      */
     private static void inspect(String scope) {
-        BreakpointEvent event;
-        synchronized (JvmContext.getContext().getLock()) {
-            event = JvmContext.getContext().getCurrentBreakpoint();
-        }
-
-        if (event == null) {
+        Suspension suspension = JvmContext.getContext().getSelected();
+        if (suspension == null) {
             System.out.println("no breakpoint");
             return;
         }
@@ -50,7 +46,7 @@ public class Inspect implements CmdProcessor {
 
         StackFrame frame;
         try {
-            frame = event.thread().frame(0);
+            frame = suspension.frame();
         } catch (IncompatibleThreadStateException e) {
             System.out.println("abort: thread not at breakpoint");
             return;
@@ -17,10 +17,10 @@
 package com.gmail.woodyc40.topics.cmd;
 
 import com.gmail.woodyc40.topics.infra.JvmContext;
+import com.gmail.woodyc40.topics.infra.Suspension;
 import com.gmail.woodyc40.topics.infra.Var;
 import com.gmail.woodyc40.topics.infra.command.CmdProcessor;
 import com.sun.jdi.*;
-import com.sun.jdi.event.BreakpointEvent;
 
 public class InspectVar implements CmdProcessor {
     /**
@@ -32,17 +32,13 @@ public class InspectVar implements CmdProcessor {
      * a thread that is unsuspended or something lol
      */
     private static Var findVar(String varName) throws IncompatibleThreadStateException, AbsentInformationException, ClassNotLoadedException {
-        BreakpointEvent event;
-        synchronized (JvmContext.getContext().getLock()) {
-            event = JvmContext.getContext().getCurrentBreakpoint();
-        }
-
-        if (event == null) {
+        Suspension suspension = JvmContext.getContext().getSelected();
+        if (suspension == null) {
             System.out.println("no breakpoint");
             return null;
         }
 
-        StackFrame frame = event.thread().frame(0);
+        StackFrame frame = suspension.frame();
         if (frame == null) {
             throw new RuntimeException("invalid frame");
         }
@@ -0,0 +1,107 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.cmd;
+
+import com.gmail.woodyc40.topics.infra.JvmContext;
+import com.gmail.woodyc40.topics.infra.Logpoints;
+import com.gmail.woodyc40.topics.infra.command.CmdProcessor;
+import com.sun.jdi.AbsentInformationException;
+import com.sun.jdi.ReferenceType;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+public class Log implements CmdProcessor {
+    @Override
+    public String name() {
+        return "log";
+    }
+
+    @Override
+    public String help() {
+        return "Sets a logpoint which prints the {names} in the template from the frame and resumes at once, " +
+                "appending to a file if one is given after \">\"";
+    }
+
+    @Override
+    public void process(String alias, String[] args) {
+        String rest = args.length < 2 ? "" : String.join(" ", Arrays.copyOfRange(args, 1, args.length)).trim();
+        int end = rest.lastIndexOf('"');
+        if (!rest.startsWith("\"") || end == 0) {
+            System.out.println("log <file:>[line] \"<template>\" [> <path>]");
+            return;
+        }
+
+        String template = rest.substring(1, end);
+        String redirect = rest.substring(end + 1).trim();
+        Path file = null;
+        if (!redirect.isEmpty()) {
+            if (!redirect.startsWith(">") || redirect.substring(1).trim().isEmpty()) {
+                System.out.println("log <file:>[line] \"<template>\" [> <path>]");
+                return;
+            }
+            file = Paths.get(redirect.substring(1).trim());
+        }
+
+        JvmContext context = JvmContext.getContext();
+        if (context.getVm() == null) {
+            System.out.println("abort: not attached");
+            return;
+        }
+
+        ReferenceType type;
+        String parseLn;
+        if (args[0].contains(":")) {
+            String[] split = args[0].split(":");
+            List<ReferenceType> matches = Enter.findMatches(split[0]);
+            type = matches.isEmpty() ? null : Enter.choose(split[0], matches);
+            if (type == null) {
+                System.out.println("abort: " + split[0] + " is not loaded");
+                return;
+            }
+            parseLn = split[1];
+        } else {
+            type = context.getCurrentRef();
+            if (type == null) {
+                System.out.println("abort: no class entered");
+                return;
+            }
+            parseLn = args[0];
+        }
+
+        int lineNumber;
+        try {
+            lineNumber = Integer.parseInt(parseLn);
+        } catch (NumberFormatException e) {
+            System.out.println("abort: " + parseLn + " not a number");
+            return;
+        }
+
+        try {
+            Logpoints.Logpoint logpoint = context.getLogpoints().add(context.getVm(), type, lineNumber, template, file);
+            System.out.println("Logpoint at " + logpoint.getKey() + (file == null ? "" : ", appending to " + file));
+        } catch (AbsentInformationException e) {
+            System.out.println("abort: " + (e.getMessage() == null ?
+                    type.name() + " has no line information (was -g specified when compiled?)" : e.getMessage()));
+        } catch (IOException e) {
+            System.out.println("abort: cannot open " + file + ": " + e.getMessage());
+        }
+    }
+}
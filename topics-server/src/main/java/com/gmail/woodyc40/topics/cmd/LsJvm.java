@@ -16,8 +16,10 @@
  */
 package com.gmail.woodyc40.topics.cmd;
 
+import com.gmail.woodyc40.topics.infra.JvmContext;
 import com.gmail.woodyc40.topics.infra.Platform;
 import com.gmail.woodyc40.topics.infra.command.CmdProcessor;
+import com.gmail.woodyc40.topics.server.AgentServer;
 import com.google.common.collect.Maps;
 
 import java.io.BufferedReader;
@@ -92,8 +94,10 @@ public class LsJvm implements CmdProcessor {
     public void process(String alias, String[] args) {
         try {
             Map<Integer, String> availablePids = getAvailablePids();
+            AgentServer server = JvmContext.getContext().getServer();
             for (Map.Entry<Integer, String> entry : availablePids.entrySet()) {
-                System.out.println(entry.getKey() + " - " + entry.getValue());
+                String agent = server.getAgent(entry.getKey()) != null ? " [agent]" : "";
+                System.out.println(entry.getKey() + agent + " - " + entry.getValue());
             }
         } catch (IOException | InterruptedException e) {
             throw new RuntimeException(e);
@@ -0,0 +1,89 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.cmd;
+
+import com.gmail.woodyc40.topics.infra.JvmContext;
+import com.gmail.woodyc40.topics.infra.command.CmdProcessor;
+import com.gmail.woodyc40.topics.protocol.SignalRegistry;
+import com.gmail.woodyc40.topics.server.AgentConnection;
+import com.gmail.woodyc40.topics.server.AgentServer;
+import com.gmail.woodyc40.topics.server.LatencyHistogram;
+import com.gmail.woodyc40.topics.server.QueueStats;
+import com.gmail.woodyc40.topics.server.WireStats;
+
+public class NetStats implements CmdProcessor {
+    @Override
+    public String name() {
+        return "netstats";
+    }
+
+    @Override
+    public String[] aliases() {
+        return new String[] { "ns" };
+    }
+
+    @Override
+    public String help() {
+        return "Displays agent link statistics, or resets them with \"netstats reset\"";
+    }
+
+    @Override
+    public void process(String alias, String[] args) {
+        AgentServer server = JvmContext.getContext().getServer();
+        WireStats stats = server.getStats();
+        if (args.length > 0 && args[0].equals("reset")) {
+            stats.reset();
+            System.out.println("Reset agent link statistics");
+            return;
+        }
+
+        System.out.println(String.format("%-3s %-24s %10s %12s %10s %12s %10s %10s",
+                "ID", "SIGNAL", "FRAMES IN", "BYTES IN", "FRAMES OUT", "BYTES OUT", "DEC us", "ENC us"));
+        for (int id = 0; id < stats.size(); id++) {
+            long framesIn = stats.getFramesIn(id);
+            long framesOut = stats.getFramesOut(id);
+            System.out.println(String.format("%-3d %-24s %10d %12d %10d %12d %10.1f %10.1f",
+                    id, SignalRegistry.nameOf(id),
+                    framesIn, stats.getBytesIn(id),
+                    framesOut, stats.getBytesOut(id),
+                    average(stats.getDecodeNanos(id), framesIn),
+                    average(stats.getEncodeNanos(id), framesOut)));
+        }
+        System.out.println();
+
+        QueueStats incoming = server.getIncomingStats();
+        System.out.println("Queue depth: incoming " + incoming.getSize() + "/" + incoming.getCapacity());
+        for (AgentConnection conn : server.getAgents()) {
+            QueueStats out = conn.getOutStats();
+            System.out.println("Queue depth: agent " + conn.getPid() + " out " + out.getSize() + "/" + out.getCapacity() +
+                    ", " + conn.getPendingCount() + " requests in flight");
+        }
+        System.out.println();
+
+        LatencyHistogram latency = stats.getWriteLatency();
+        System.out.println(String.format("Write latency (%d frames): p50 <= %.1fus, p90 <= %.1fus, p99 <= %.1fus, max %.1fus",
+                latency.count(),
+                latency.percentile(50) / 1000D,
+                latency.percentile(90) / 1000D,
+                latency.percentile(99) / 1000D,
+                latency.max() / 1000D));
+    }
+
+    private static double average(long nanos, long count) {
+        return count == 0 ? 0 : nanos / 1000D / count;
+    }
+}
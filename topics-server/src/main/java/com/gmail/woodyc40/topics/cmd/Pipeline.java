@@ -0,0 +1,62 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.cmd;
+
+import com.gmail.woodyc40.topics.infra.EventPipeline;
+import com.gmail.woodyc40.topics.infra.JvmContext;
+import com.gmail.woodyc40.topics.infra.command.CmdProcessor;
+import com.gmail.woodyc40.topics.server.LatencyHistogram;
+
+public class Pipeline implements CmdProcessor {
+    @Override
+    public String name() {
+        return "pipeline";
+    }
+
+    @Override
+    public String[] aliases() {
+        return new String[] { "pl" };
+    }
+
+    @Override
+    public String help() {
+        return "Displays the time spent in each stage of event processing";
+    }
+
+    @Override
+    public void process(String alias, String[] args) {
+        EventPipeline pipeline = JvmContext.getContext().getPipeline();
+        if (pipeline == null) {
+            System.out.println("abort: not attached");
+            return;
+        }
+
+        print("drain", pipeline.getDrainTime());
+        print("enrich wait", pipeline.getEnrichLag());
+        print("enrich", pipeline.getEnrichTime());
+        print("hit to print", pipeline.getRenderLag());
+        System.out.println("Backlog: " + pipeline.getBacklog() + " hits waiting to be printed");
+    }
+
+    private static void print(String stage, LatencyHistogram histogram) {
+        System.out.println(String.format("%-13s %6d events, p50 <= %.1fus, p99 <= %.1fus, max %.1fus",
+                stage + ":", histogram.count(),
+                histogram.percentile(50) / 1000D,
+                histogram.percentile(99) / 1000D,
+                histogram.max() / 1000D));
+    }
+}
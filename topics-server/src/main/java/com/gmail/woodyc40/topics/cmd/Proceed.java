@@ -48,7 +48,9 @@ public class Proceed implements CmdProcessor {
 
         for (ThreadReference threadReference : vm.allThreads()) {
             if (threadReference.name().equals(args[0])) {
-                threadReference.resume();
+                if (context.resume(threadReference) == null) {
+                    threadReference.resume();
+                }
                 System.out.println("Attempted to resume " + args[0]);
                 return;
             }
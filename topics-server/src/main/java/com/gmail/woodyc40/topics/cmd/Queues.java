@@ -0,0 +1,57 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.cmd;
+
+import com.gmail.woodyc40.topics.infra.JvmContext;
+import com.gmail.woodyc40.topics.infra.command.CmdProcessor;
+import com.gmail.woodyc40.topics.server.AgentConnection;
+import com.gmail.woodyc40.topics.server.AgentServer;
+import com.gmail.woodyc40.topics.server.QueueStats;
+
+public class Queues implements CmdProcessor {
+    @Override
+    public String name() {
+        return "queues";
+    }
+
+    @Override
+    public String[] aliases() {
+        return new String[] { "qs" };
+    }
+
+    @Override
+    public String help() {
+        return "Displays the agent signal queues and their overflow counts";
+    }
+
+    @Override
+    public void process(String alias, String[] args) {
+        AgentServer server = JvmContext.getContext().getServer();
+        print("incoming", server.getIncomingStats());
+
+        for (AgentConnection conn : server.getAgents()) {
+            print("agent " + conn.getPid() + " out", conn.getOutStats());
+        }
+    }
+
+    private static void print(String name, QueueStats stats) {
+        System.out.println(name + ": " + stats.getSize() + "/" + stats.getCapacity() +
+                " dropped=" + stats.getDropped() +
+                " coalesced=" + stats.getCoalesced() +
+                " blocked=" + stats.getBlocked());
+    }
+}
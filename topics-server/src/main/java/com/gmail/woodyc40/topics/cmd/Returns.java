@@ -16,13 +16,19 @@
  */
 package com.gmail.woodyc40.topics.cmd;
 
-import com.gmail.woodyc40.topics.infra.Frame;
+import com.gmail.woodyc40.topics.infra.CallRecord;
 import com.gmail.woodyc40.topics.infra.JvmContext;
+import com.gmail.woodyc40.topics.infra.ReturnStore;
+import com.gmail.woodyc40.topics.infra.Suspension;
 import com.gmail.woodyc40.topics.infra.command.CmdProcessor;
+import com.sun.jdi.Field;
 import com.sun.jdi.Method;
-import com.sun.jdi.event.BreakpointEvent;
+import com.sun.jdi.ObjectReference;
+import com.sun.jdi.StringReference;
+import com.sun.jdi.Value;
 
-import java.util.Queue;
+import java.util.List;
+import java.util.StringJoiner;
 
 public class Returns implements CmdProcessor {
     @Override
@@ -37,42 +43,94 @@ public class Returns implements CmdProcessor {
 
     @Override
     public String help() {
-        return "Views return values before the current breakpoint";
+        return "Views the calls and return values before the current breakpoint, or before every hit, if it was " +
+                "set with \"ba ... returns\": returns [all]";
+    }
+
+    /**
+     * Describes a recorded value, unboxing the primitives
+     * which the agent boxed.
+     *
+     * @param value the value
+     * @return the description
+     */
+    private static String describe(Value value) {
+        if (value == null) {
+            return "null";
+        }
+        if (value instanceof StringReference) {
+            return '"' + ((StringReference) value).value() + '"';
+        }
+
+        if (value instanceof ObjectReference) {
+            ObjectReference ref = (ObjectReference) value;
+            String type = ref.referenceType().name();
+            Field field = ref.referenceType().fieldByName("value");
+            if (field != null && type.startsWith("java.lang.") && !type.equals("java.lang.String")) {
+                return String.valueOf(ref.getValue(field));
+            }
+        }
+        return value.toString();
     }
 
     @Override
     public void process(String alias, String[] args) {
         JvmContext context = JvmContext.getContext();
-        BreakpointEvent breakpointEvent;
-        synchronized (context.getLock()) {
-            breakpointEvent = context.getCurrentBreakpoint();
-        }
-
-        if (breakpointEvent == null) {
+        Suspension suspension = context.getSelected();
+        if (suspension == null) {
             System.out.println("abort: no breakpoint");
             return;
         }
 
-        Method method = breakpointEvent.location().method();
+        Method method = suspension.getLocation().method();
         if (method == null) {
             System.out.println("abort: breakpoint has no previous calls");
             return;
         }
 
-        boolean found = false;
-        Queue<Frame> returns = JvmContext.getContext().getReturns();
-        String string = method.toString();
-        for (Frame aReturn : returns) {
-            String loc = aReturn.getCallerSignature();
-            if (loc.equals(string)) {
-                found = true;
+        List<CallRecord> calls = suspension.getCalls();
+        if (calls != null) {
+            if (calls.isEmpty()) {
+                System.out.println("No calls found");
+            }
+
+            for (CallRecord call : calls) {
+                String site = call.getSite();
+                int paren = site.indexOf('(');
+                StringJoiner text = new StringJoiner(", ", (paren < 0 ? site : site.substring(0, paren)) + "(", ")");
+                for (Value arg : call.getArgs()) {
+                    text.add(describe(arg));
+                }
 
-                System.out.println(aReturn.getResultLocation().method() + " = " + aReturn.getResult());
+                if (!call.isReturned()) {
+                    System.out.println(text + " threw");
+                } else if (site.endsWith(")V")) {
+                    System.out.println(text);
+                } else {
+                    System.out.println(text + " = " + describe(call.getResult()));
+                }
             }
+            return;
         }
 
-        if (!found) {
+        if (!context.getReturnCapture().isCaptured(method)) {
+            System.out.println("Returns are not captured at this breakpoint, set it with \"ba ... returns\"");
+            return;
+        }
+
+        boolean all = args.length > 0 && args[0].equals("all");
+        List<ReturnStore.Record> records = context.getReturns().lookup(method, all ? ReturnStore.ALL : suspension.getEpoch());
+        if (records.isEmpty()) {
             System.out.println("No returns found");
         }
+
+        int epoch = -1;
+        for (ReturnStore.Record record : records) {
+            if (all && record.getEpoch() != epoch) {
+                epoch = record.getEpoch();
+                System.out.println("Before hit " + (epoch + 1) + ":");
+            }
+            System.out.println(record.getCallee() + " = " + record.getValue());
+        }
     }
 }
\ No newline at end of file
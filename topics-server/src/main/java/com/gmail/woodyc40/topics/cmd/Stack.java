@@ -0,0 +1,103 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.cmd;
+
+import com.gmail.woodyc40.topics.infra.CapturedStack;
+import com.gmail.woodyc40.topics.infra.JvmContext;
+import com.gmail.woodyc40.topics.infra.command.CmdProcessor;
+import com.sun.jdi.IncompatibleThreadStateException;
+import com.sun.jdi.Location;
+import com.sun.jdi.StackFrame;
+
+import java.util.List;
+
+public class Stack implements CmdProcessor {
+    @Override
+    public String name() {
+        return "stack";
+    }
+
+    @Override
+    public String[] aliases() {
+        return new String[] { "bt" };
+    }
+
+    @Override
+    public String help() {
+        return "Displays the stack of the last breakpoint hit: stack [frames|all], or stack depth [n] to set how many frames are read on hit";
+    }
+
+    @Override
+    public void process(String alias, String[] args) {
+        JvmContext context = JvmContext.getContext();
+        if (args.length > 0 && args[0].equals("depth")) {
+            if (args.length > 1) {
+                try {
+                    context.setCaptureDepth(Math.max(1, Integer.parseInt(args[1])));
+                } catch (NumberFormatException e) {
+                    System.out.println("abort: " + args[1] + " is not a number");
+                    return;
+                }
+            }
+
+            System.out.println("Reading " + context.getCaptureDepth() + " frames on breakpoint hit");
+            return;
+        }
+
+        CapturedStack stack = context.getCurrentStack();
+        if (stack == null) {
+            System.out.println("abort: no breakpoint");
+            return;
+        }
+
+        int count = stack.getCaptured();
+        if (args.length > 0) {
+            if (args[0].equals("all")) {
+                count = stack.getDepth();
+            } else {
+                try {
+                    count = Integer.parseInt(args[0]);
+                } catch (NumberFormatException e) {
+                    System.out.println("abort: " + args[0] + " is not a number");
+                    return;
+                }
+            }
+        }
+
+        List<StackFrame> frames;
+        if (count <= stack.getCaptured()) {
+            frames = stack.captured().subList(0, Math.max(0, count));
+        } else {
+            try {
+                frames = stack.frames(0, count);
+            } catch (IncompatibleThreadStateException e) {
+                System.out.println("abort: thread has resumed, only " + stack.getCaptured() + " frames were read");
+                frames = stack.captured();
+            }
+        }
+
+        for (int i = 0; i < frames.size(); i++) {
+            Location loc = frames.get(i).location();
+            System.out.println("#" + i + " " + loc.method() + ":" + loc.lineNumber());
+        }
+
+        int hidden = stack.getDepth() - frames.size();
+        if (hidden > 0) {
+            System.out.println("... " + hidden + " more frames, use \"stack all\" to read them");
+        }
+    }
+}
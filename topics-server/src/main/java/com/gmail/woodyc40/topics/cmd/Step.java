@@ -18,7 +18,7 @@ package com.gmail.woodyc40.topics.cmd;
 
 import com.gmail.woodyc40.topics.infra.JvmContext;
 import com.gmail.woodyc40.topics.infra.command.CmdProcessor;
-import com.sun.jdi.event.BreakpointEvent;
+import com.gmail.woodyc40.topics.infra.Suspension;
 
 public class Step implements CmdProcessor {
     @Override
@@ -33,19 +33,18 @@ public class Step implements CmdProcessor {
 
     @Override
     public void process(String alias, String[] args) {
-        BreakpointEvent bp;
-        synchronized (JvmContext.getContext().getLock()) {
-            bp = JvmContext.getContext().getCurrentBreakpoint();
-            if (bp == null) {
-                System.out.println("no breakpoint");
-                return;
-            }
-
-            JvmContext.getContext().getResumeSet().resume();
+        JvmContext context = JvmContext.getContext();
+        Suspension resumed = context.resumeSelected();
+        if (resumed == null) {
+            System.out.println("no breakpoint");
+            return;
+        }
+        System.out.println("resumed thread " + resumed.getThread().name());
 
-            JvmContext.getContext().setCurrentBreakpoint(null);
-            JvmContext.getContext().setResumeSet(null);
+        Suspension next = context.getSelected();
+        if (next != null) {
+            System.out.println("selected thread " + next.getThread().name() + ", suspended at " +
+                    next.getLocation());
         }
-        System.out.println("resumed thread " + bp.thread().name());
     }
 }
\ No newline at end of file
@@ -0,0 +1,87 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.cmd;
+
+import com.gmail.woodyc40.topics.infra.JvmContext;
+import com.gmail.woodyc40.topics.infra.Suspension;
+import com.gmail.woodyc40.topics.infra.command.CmdProcessor;
+
+import java.util.List;
+
+public class ThreadSelect implements CmdProcessor {
+    @Override
+    public String name() {
+        return "thread";
+    }
+
+    @Override
+    public String[] aliases() {
+        return new String[] { "t" };
+    }
+
+    @Override
+    public String help() {
+        return "Lists the threads suspended at breakpoints, or selects one: thread select [index|name]";
+    }
+
+    @Override
+    public void process(String alias, String[] args) {
+        JvmContext context = JvmContext.getContext();
+        List<Suspension> suspensions = context.getSuspensions();
+        if (args.length == 0 || args[0].equals("list")) {
+            if (suspensions.isEmpty()) {
+                System.out.println("No threads suspended at a breakpoint");
+                return;
+            }
+
+            Suspension selected = context.getSelected();
+            for (int i = 0; i < suspensions.size(); i++) {
+                Suspension suspension = suspensions.get(i);
+                System.out.println((suspension == selected ? "* " : "  ") + i + " " +
+                        suspension.getThread().name() + " at " + suspension.getLocation());
+            }
+            return;
+        }
+
+        if (!args[0].equals("select") || args.length != 2) {
+            System.out.println("thread [list|select <index|name>]");
+            return;
+        }
+
+        Suspension target = null;
+        try {
+            int index = Integer.parseInt(args[1]);
+            if (index >= 0 && index < suspensions.size()) {
+                target = suspensions.get(index);
+            }
+        } catch (NumberFormatException e) {
+            for (Suspension suspension : suspensions) {
+                if (suspension.getThread().name().equals(args[1])) {
+                    target = suspension;
+                    break;
+                }
+            }
+        }
+
+        if (target == null || !context.select(target.getThread())) {
+            System.out.println("abort: no thread " + args[1] + " is suspended at a breakpoint");
+            return;
+        }
+
+        System.out.println("Selected thread " + target.getThread().name() + " at " + target.getLocation());
+    }
+}
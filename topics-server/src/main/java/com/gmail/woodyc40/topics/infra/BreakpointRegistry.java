@@ -0,0 +1,380 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.infra;
+
+import com.sun.jdi.AbsentInformationException;
+import com.sun.jdi.Location;
+import com.sun.jdi.Method;
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.VirtualMachine;
+import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.EventRequest;
+import lombok.Getter;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.*;
+
+/**
+ * The breakpoints set by the user, each with a numeric ID
+ * which stays the same for as long as it is set.
+ *
+ * <p>Breakpoints are indexed by ID, by request, by class,
+ * by line and by whether they are enabled, so finding the
+ * breakpoints to clear never scans the others. Removed
+ * breakpoints are deleted from the VM in a single
+ * request.</p>
+ */
+@ThreadSafe
+public class BreakpointRegistry {
+    /** The source of breakpoint IDs */
+    @GuardedBy("this")
+    private int nextId = 1;
+    /** The breakpoints, by ID in the order they were set */
+    @GuardedBy("this")
+    private final SortedMap<Integer, Entry> byId = new TreeMap<>();
+    /** The breakpoints, by request */
+    @GuardedBy("this")
+    private final Map<EventRequest, Entry> byRequest = new HashMap<>();
+    /** The breakpoints, by fully qualified class name */
+    @GuardedBy("this")
+    private final Map<String, Set<Entry>> byClass = new HashMap<>();
+    /** The breakpoints, by line number */
+    @GuardedBy("this")
+    private final Map<Integer, Set<Entry>> byLine = new HashMap<>();
+    /** The breakpoints which are enabled */
+    @GuardedBy("this")
+    private final Set<Entry> enabled = new LinkedHashSet<>();
+    /** The breakpoints which are disabled */
+    @GuardedBy("this")
+    private final Set<Entry> disabled = new LinkedHashSet<>();
+
+    /**
+     * Adds a breakpoint which has been enabled.
+     *
+     * @param request the breakpoint request
+     * @return the registered breakpoint
+     */
+    public synchronized Entry add(BreakpointRequest request) {
+        Entry entry = new Entry(this.nextId++, request);
+        this.byId.put(entry.id, entry);
+        this.byRequest.put(request, entry);
+        this.byClass.computeIfAbsent(entry.className, k -> new LinkedHashSet<>()).add(entry);
+        this.byLine.computeIfAbsent(entry.line, k -> new LinkedHashSet<>()).add(entry);
+        (request.isEnabled() ? this.enabled : this.disabled).add(entry);
+        return entry;
+    }
+
+    /**
+     * Obtains a breakpoint by ID.
+     *
+     * @param id the breakpoint ID
+     * @return the breakpoint, or {@code null}
+     */
+    public synchronized Entry get(int id) {
+        return this.byId.get(id);
+    }
+
+    /**
+     * Obtains the breakpoint of a request.
+     *
+     * @param request the breakpoint request
+     * @return the breakpoint, or {@code null} if it was not
+     * set by the user
+     */
+    public synchronized Entry get(EventRequest request) {
+        return this.byRequest.get(request);
+    }
+
+    /**
+     * Obtains every breakpoint.
+     *
+     * @return the breakpoints, in the order they were set
+     */
+    public synchronized List<Entry> all() {
+        return new ArrayList<>(this.byId.values());
+    }
+
+    /**
+     * Obtains the breakpoints in a class.
+     *
+     * @param className the fully qualified class name
+     * @return the breakpoints in the class
+     */
+    public synchronized List<Entry> inClass(String className) {
+        Set<Entry> entries = this.byClass.get(className);
+        return entries == null ? Collections.emptyList() : new ArrayList<>(entries);
+    }
+
+    /**
+     * Obtains the breakpoints at a line.
+     *
+     * @param name the source file name, with or without its
+     * extension, or the simple or fully qualified class name
+     * @param line the line number
+     * @return the breakpoints at the line
+     */
+    public synchronized List<Entry> at(String name, int line) {
+        Set<Entry> entries = this.byLine.get(line);
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+
+        List<Entry> matches = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.matches(name)) {
+                matches.add(entry);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Obtains the breakpoints which are enabled or disabled.
+     *
+     * @param enabled whether to obtain the enabled
+     * breakpoints
+     * @return the breakpoints
+     */
+    public synchronized List<Entry> withEnabled(boolean enabled) {
+        return new ArrayList<>(enabled ? this.enabled : this.disabled);
+    }
+
+    /**
+     * Enables or disables a breakpoint.
+     *
+     * @param entry the breakpoint
+     * @param enabled whether it should be enabled
+     */
+    public synchronized void setEnabled(Entry entry, boolean enabled) {
+        if (this.byId.get(entry.id) != entry) {
+            return;
+        }
+
+        entry.request.setEnabled(enabled);
+        (enabled ? this.disabled : this.enabled).remove(entry);
+        (enabled ? this.enabled : this.disabled).add(entry);
+    }
+
+    /**
+     * Disables a request, through the registry if it is a
+     * breakpoint set by the user.
+     *
+     * @param request the request to disable
+     */
+    public void disable(EventRequest request) {
+        Entry entry = this.get(request);
+        if (entry == null) {
+            request.disable();
+        } else {
+            this.setEnabled(entry, false);
+        }
+    }
+
+    /**
+     * Removes breakpoints, deleting them from the VM with a
+     * single request.
+     *
+     * @param entries the breakpoints to remove
+     * @param vm the VM to delete the requests from, or
+     * {@code null} if it is no longer attached
+     * @return the breakpoints which were removed
+     */
+    public List<Entry> remove(Collection<Entry> entries, VirtualMachine vm) {
+        List<Entry> removed = new ArrayList<>(entries.size());
+        List<BreakpointRequest> requests = new ArrayList<>(entries.size());
+        synchronized (this) {
+            for (Entry entry : entries) {
+                if (this.byId.remove(entry.id, entry)) {
+                    this.byRequest.remove(entry.request);
+                    unindex(this.byClass, entry.className, entry);
+                    unindex(this.byLine, entry.line, entry);
+                    this.enabled.remove(entry);
+                    this.disabled.remove(entry);
+
+                    removed.add(entry);
+                    requests.add(entry.request);
+                }
+            }
+        }
+
+        if (vm != null && !requests.isEmpty()) {
+            vm.eventRequestManager().deleteEventRequests(requests);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every breakpoint.
+     *
+     * @param vm the VM to delete the requests from, or
+     * {@code null} if it is no longer attached
+     * @return the breakpoints which were removed
+     */
+    public List<Entry> clear(VirtualMachine vm) {
+        return this.remove(this.all(), vm);
+    }
+
+    /**
+     * Sets the breakpoints of a class again after the agent
+     * has replaced its code, which clears every breakpoint
+     * in the class without the debugger being told. The
+     * breakpoints keep their IDs, sample policies and
+     * whether they are enabled.
+     *
+     * @param type the class whose code was replaced
+     * @param vm the VM the class is loaded in
+     * @return the breakpoints which could not be set again,
+     * and were removed
+     */
+    public List<Entry> rearm(ReferenceType type, VirtualMachine vm) {
+        List<Entry> entries = this.inClass(type.name());
+        if (entries.isEmpty()) {
+            return entries;
+        }
+
+        List<Entry> lost = new ArrayList<>();
+        List<BreakpointRequest> replaced = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            BreakpointRequest old = entry.request;
+            Location location = relocate(type, old.location());
+            if (location == null) {
+                lost.add(entry);
+                continue;
+            }
+
+            BreakpointRequest request = vm.eventRequestManager().createBreakpointRequest(location);
+            Object sampler = old.getProperty(Sampler.PROPERTY);
+            if (sampler instanceof Sampler) {
+                Sampler.apply(request, ((Sampler) sampler).getPolicy(), ((Sampler) sampler).getSuspendPolicy());
+            } else {
+                request.setSuspendPolicy(old.suspendPolicy());
+            }
+
+            synchronized (this) {
+                if (this.byId.get(entry.id) != entry) {
+                    vm.eventRequestManager().deleteEventRequest(request);
+                    continue;
+                }
+
+                boolean enabled = this.enabled.contains(entry);
+                Entry rearmed = new Entry(entry.id, request);
+                this.byId.put(entry.id, rearmed);
+                this.byRequest.remove(old);
+                this.byRequest.put(request, rearmed);
+                unindex(this.byClass, entry.className, entry);
+                unindex(this.byLine, entry.line, entry);
+                this.byClass.computeIfAbsent(rearmed.className, k -> new LinkedHashSet<>()).add(rearmed);
+                this.byLine.computeIfAbsent(rearmed.line, k -> new LinkedHashSet<>()).add(rearmed);
+                (enabled ? this.enabled : this.disabled).remove(entry);
+                (enabled ? this.enabled : this.disabled).add(rearmed);
+                request.setEnabled(enabled);
+            }
+            replaced.add(old);
+        }
+
+        vm.eventRequestManager().deleteEventRequests(replaced);
+        this.remove(lost, vm);
+        return lost;
+    }
+
+    /**
+     * Finds the location at the same line of the same
+     * method in the replaced code of a class.
+     *
+     * @param type the class
+     * @param old the location in the code which was replaced
+     * @return the location, or {@code null} if the line has
+     * no code in the method
+     */
+    private static Location relocate(ReferenceType type, Location old) {
+        Method method = old.method();
+        try {
+            for (Location location : type.locationsOfLine(old.lineNumber())) {
+                Method candidate = location.method();
+                if (candidate.name().equals(method.name()) && candidate.signature().equals(method.signature())) {
+                    return location;
+                }
+            }
+        } catch (AbsentInformationException e) {
+            return null;
+        }
+        return null;
+    }
+
+    private static <K> void unindex(Map<K, Set<Entry>> index, K key, Entry entry) {
+        Set<Entry> entries = index.get(key);
+        if (entries != null && entries.remove(entry) && entries.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    /**
+     * A breakpoint set by the user.
+     */
+    public static class Entry {
+        /** The breakpoint ID */
+        @Getter
+        private final int id;
+        /** The breakpoint request */
+        @Getter
+        private final BreakpointRequest request;
+        /** The fully qualified name of the class */
+        @Getter
+        private final String className;
+        /** The source file name, or the class name */
+        @Getter
+        private final String sourceName;
+        /** The line number */
+        @Getter
+        private final int line;
+
+        private Entry(int id, BreakpointRequest request) {
+            Location location = request.location();
+            String sourceName;
+            try {
+                sourceName = location.sourceName();
+            } catch (AbsentInformationException e) {
+                sourceName = location.declaringType().name();
+            }
+
+            this.id = id;
+            this.request = request;
+            this.className = location.declaringType().name();
+            this.sourceName = sourceName;
+            this.line = location.lineNumber();
+        }
+
+        /**
+         * Obtains the file and line of the breakpoint.
+         *
+         * @return the source name and line, separated by a
+         * colon
+         */
+        public String getKey() {
+            return this.sourceName + ':' + this.line;
+        }
+
+        private boolean matches(String name) {
+            int dot = this.sourceName.lastIndexOf('.');
+            return name.equals(this.sourceName) ||
+                    (dot > 0 && name.equals(this.sourceName.substring(0, dot))) ||
+                    name.equals(this.className) ||
+                    this.className.endsWith("." + name) || this.className.endsWith("$" + name);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.infra;
+
+import com.sun.jdi.Value;
+import lombok.Data;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.List;
+
+/**
+ * A call made before a breakpoint, as recorded by the
+ * agent in the method of the breakpoint.
+ */
+@Data
+@Immutable
+public class CallRecord {
+    /** The method called, with its descriptor */
+    private final String site;
+    /** The boxed arguments, up to the number the agent keeps */
+    private final List<Value> args;
+    /** The boxed return value, {@code null} if there is none */
+    private final Value result;
+    /** Whether the call returned rather than threw */
+    private final boolean returned;
+}
@@ -0,0 +1,124 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.infra;
+
+import com.sun.jdi.IncompatibleThreadStateException;
+import com.sun.jdi.StackFrame;
+import com.sun.jdi.ThreadReference;
+import lombok.Getter;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The stack of a thread which hit a breakpoint.
+ *
+ * <p>Only the top frames are read when the breakpoint is
+ * hit, using a single bulk request. Deeper frames are read
+ * in one more bulk request the first time they are asked
+ * for, which is only possible while the thread is still
+ * suspended at the breakpoint.</p>
+ */
+@ThreadSafe
+public class CapturedStack {
+    /** The thread whose stack this is */
+    @Getter
+    private final ThreadReference thread;
+    /** The number of frames above the first captured frame */
+    private final int skip;
+    /** The total number of frames below the skipped frames */
+    @Getter
+    private final int depth;
+    /** The frames which have been read, from the top */
+    @GuardedBy("this")
+    private final List<StackFrame> frames;
+
+    private CapturedStack(ThreadReference thread, int skip, int depth, List<StackFrame> frames) {
+        this.thread = thread;
+        this.skip = skip;
+        this.depth = depth;
+        this.frames = new ArrayList<>(frames);
+    }
+
+    /**
+     * Reads the top frames of a suspended thread.
+     *
+     * @param thread the suspended thread
+     * @param skip the number of top frames to leave out,
+     * such as those of a hook
+     * @param limit the maximum number of frames to read
+     * @return the captured stack
+     * @throws IncompatibleThreadStateException if the
+     * thread is not suspended
+     */
+    public static CapturedStack capture(ThreadReference thread, int skip, int limit) throws IncompatibleThreadStateException {
+        int depth = Math.max(0, thread.frameCount() - skip);
+        return new CapturedStack(thread, skip, depth, thread.frames(skip, Math.min(limit, depth)));
+    }
+
+    /**
+     * Estimates the debugger heap retained by this stack,
+     * counting each frame mirror with its location.
+     *
+     * @return the estimated size, in bytes
+     */
+    public synchronized long estimateSize() {
+        return 64L + this.frames.size() * 160L;
+    }
+
+    /**
+     * Obtains the number of frames which have been read.
+     *
+     * @return the number of captured frames
+     */
+    public synchronized int getCaptured() {
+        return this.frames.size();
+    }
+
+    /**
+     * Obtains the frames which have already been read.
+     *
+     * @return the captured frames, from the top
+     */
+    public synchronized List<StackFrame> captured() {
+        return Collections.unmodifiableList(new ArrayList<>(this.frames));
+    }
+
+    /**
+     * Obtains a range of frames, reading those below the
+     * captured frames if necessary.
+     *
+     * @param start the index of the first frame, from the
+     * top
+     * @param length the maximum number of frames
+     * @return the frames in the range
+     * @throws IncompatibleThreadStateException if deeper
+     * frames are needed but the thread has resumed
+     */
+    public synchronized List<StackFrame> frames(int start, int length) throws IncompatibleThreadStateException {
+        int end = Math.min(this.depth, start + length);
+        if (end > this.frames.size()) {
+            int from = this.frames.size();
+            this.frames.addAll(this.thread.frames(this.skip + from, end - from));
+        }
+
+        return Collections.unmodifiableList(new ArrayList<>(this.frames.subList(Math.min(start, end), end)));
+    }
+}
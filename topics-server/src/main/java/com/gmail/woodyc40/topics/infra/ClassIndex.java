@@ -0,0 +1,561 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.infra;
+
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.VirtualMachine;
+import com.sun.jdi.event.ClassPrepareEvent;
+import com.sun.jdi.event.ClassUnloadEvent;
+import com.sun.jdi.request.ClassPrepareRequest;
+import com.sun.jdi.request.ClassUnloadRequest;
+import com.sun.jdi.request.EventRequest;
+import com.sun.jdi.request.EventRequestManager;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.*;
+
+/**
+ * An index of the names of the classes loaded in the VM,
+ * so that finding a class never lists every class.
+ *
+ * <p>The index is built once on attach and kept current by
+ * class prepare and unload events. A name is looked up as
+ * the exact class name, then as a simple name, then as the
+ * prefix of a simple name through a trie if it is too short
+ * to have trigrams, then as a part of any name, through the
+ * trigrams which every match must contain. If nothing
+ * contains the name, the simple names which contain its
+ * characters in order are ranked instead.</p>
+ */
+@ThreadSafe
+public class ClassIndex {
+    /** The most matches returned by a lookup */
+    private static final int MAX_MATCHES = 50;
+    /** The length of the grams of the names */
+    private static final int GRAM = 3;
+    /** The unloaded names kept before the grams are rebuilt */
+    private static final int MAX_DEAD = 4096;
+
+    /** The loaded classes, by name */
+    @GuardedBy("this")
+    private final Map<String, List<ReferenceType>> byName = new HashMap<>();
+    /** The names, by lower case simple name */
+    @GuardedBy("this")
+    private final Map<String, SimpleName> bySimpleName = new HashMap<>();
+    /** The names, by the prefixes of their lower case simple names */
+    @GuardedBy("this")
+    private final Trie prefixes = new Trie();
+    /** The names, by ID, {@code null} once unloaded */
+    @GuardedBy("this")
+    private final List<String> names = new ArrayList<>();
+    /** The ID of each name */
+    @GuardedBy("this")
+    private final Map<String, Integer> ids = new HashMap<>();
+    /** The IDs of the names containing each gram, ascending */
+    @GuardedBy("this")
+    private final Map<Long, IntList> grams = new HashMap<>();
+    /** The number of unloaded names still in the grams */
+    @GuardedBy("this")
+    private int dead;
+    /** The requests keeping the index current */
+    @GuardedBy("this")
+    private final List<EventRequest> requests = new ArrayList<>();
+
+    /**
+     * Indexes the classes loaded in a VM, and requests the
+     * events which keep the index current.
+     *
+     * @param vm the attached VM
+     */
+    public void attach(VirtualMachine vm) {
+        // Requested first so that no class is missed, as
+        // adding a class twice has no effect
+        EventRequestManager erm = vm.eventRequestManager();
+        ClassPrepareRequest prepare = erm.createClassPrepareRequest();
+        prepare.setSuspendPolicy(EventRequest.SUSPEND_NONE);
+        prepare.enable();
+        ClassUnloadRequest unload = erm.createClassUnloadRequest();
+        unload.setSuspendPolicy(EventRequest.SUSPEND_NONE);
+        unload.enable();
+
+        List<ReferenceType> loaded = vm.allClasses();
+        synchronized (this) {
+            this.requests.add(prepare);
+            this.requests.add(unload);
+            for (ReferenceType type : loaded) {
+                this.add(type);
+            }
+        }
+    }
+
+    /**
+     * Indexes a class which has been loaded. Called by the
+     * drain stage.
+     *
+     * @param event the class prepare event
+     */
+    synchronized void prepared(ClassPrepareEvent event) {
+        this.add(event.referenceType());
+    }
+
+    /**
+     * Removes a class which has been unloaded from the
+     * index. Called by the drain stage.
+     *
+     * @param event the class unload event
+     */
+    void unloaded(ClassUnloadEvent event) {
+        // Only the name is known, so the classes of that name
+        // which are still loaded are found again
+        String name = event.className();
+        List<ReferenceType> remaining = event.virtualMachine().classesByName(name);
+        synchronized (this) {
+            if (!remaining.isEmpty()) {
+                this.byName.put(name, new ArrayList<>(remaining));
+                return;
+            }
+
+            this.remove(name);
+        }
+    }
+
+    @GuardedBy("this")
+    private void add(ReferenceType type) {
+        String name = type.name();
+        List<ReferenceType> types = this.byName.get(name);
+        if (types != null) {
+            if (!types.contains(type)) {
+                types.add(type);
+            }
+            return;
+        }
+
+        types = new ArrayList<>(1);
+        types.add(type);
+        this.byName.put(name, types);
+
+        for (String simple : simpleNames(name)) {
+            this.bySimpleName.computeIfAbsent(simple, SimpleName::new).names.add(name);
+            this.prefixes.add(simple, name);
+        }
+
+        int id = this.names.size();
+        this.names.add(name);
+        this.ids.put(name, id);
+        this.addGrams(name, id);
+    }
+
+    @GuardedBy("this")
+    private void addGrams(String name, int id) {
+        String lower = name.toLowerCase();
+        Set<Long> seen = new HashSet<>();
+        for (int i = 0; i + GRAM <= lower.length(); i++) {
+            long gram = gram(lower, i);
+            if (seen.add(gram)) {
+                this.grams.computeIfAbsent(gram, k -> new IntList()).add(id);
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private void remove(String name) {
+        if (this.byName.remove(name) == null) {
+            return;
+        }
+
+        for (String simple : simpleNames(name)) {
+            SimpleName names = this.bySimpleName.get(simple);
+            if (names != null && names.names.remove(name) && names.names.isEmpty()) {
+                this.bySimpleName.remove(simple);
+            }
+            this.prefixes.remove(simple, name);
+        }
+
+        Integer id = this.ids.remove(name);
+        if (id != null) {
+            this.names.set(id, null);
+            this.dead++;
+        }
+
+        // Unloaded names are skipped by lookups until there
+        // are enough of them to renumber the rest
+        if (this.dead > MAX_DEAD && this.dead > this.ids.size()) {
+            List<String> live = new ArrayList<>(this.ids.size());
+            for (String n : this.names) {
+                if (n != null) {
+                    live.add(n);
+                }
+            }
+
+            this.names.clear();
+            this.ids.clear();
+            this.grams.clear();
+            this.dead = 0;
+            for (String n : live) {
+                this.ids.put(n, this.names.size());
+                this.addGrams(n, this.names.size());
+                this.names.add(n);
+            }
+        }
+    }
+
+    /**
+     * Finds the loaded classes matching a name, best first.
+     *
+     * @param name the exact, simple or partial class name
+     * @return the matching classes
+     */
+    public List<ReferenceType> find(String name) {
+        List<String> names;
+        synchronized (this) {
+            List<ReferenceType> exact = this.byName.get(name);
+            if (exact != null) {
+                return new ArrayList<>(exact);
+            }
+
+            String lower = name.toLowerCase();
+            SimpleName simple = this.bySimpleName.get(lower);
+            if (simple != null) {
+                names = new ArrayList<>(simple.names);
+            } else if (lower.length() < GRAM) {
+                names = this.prefixes.collect(lower, MAX_MATCHES);
+            } else {
+                names = this.containing(lower);
+            }
+
+            if (names.isEmpty()) {
+                names = this.fuzzy(lower);
+            }
+        }
+
+        List<ReferenceType> matches = new ArrayList<>();
+        synchronized (this) {
+            for (String n : names) {
+                List<ReferenceType> types = this.byName.get(n);
+                if (types != null) {
+                    matches.addAll(types);
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Finds the names containing a string, through the grams
+     * which each of them must contain.
+     *
+     * @param lower the lower case string
+     * @return the names, ranked by where they contain it
+     */
+    @GuardedBy("this")
+    private List<String> containing(String lower) {
+        List<IntList> postings = new ArrayList<>();
+        for (int i = 0; i + GRAM <= lower.length(); i++) {
+            IntList ids = this.grams.get(gram(lower, i));
+            if (ids == null) {
+                return Collections.emptyList();
+            }
+            postings.add(ids);
+        }
+        postings.sort(Comparator.comparingInt(list -> list.size));
+
+        IntList smallest = postings.get(0);
+        List<String> found = new ArrayList<>();
+        candidates:
+        for (int i = 0; i < smallest.size; i++) {
+            int id = smallest.values[i];
+            for (int j = 1; j < postings.size(); j++) {
+                if (!postings.get(j).contains(id)) {
+                    continue candidates;
+                }
+            }
+
+            String name = this.names.get(id);
+            if (name != null && name.toLowerCase().contains(lower)) {
+                found.add(name);
+            }
+        }
+
+        found.sort(Comparator.<String>comparingInt(n -> rank(n, lower)).
+                thenComparingInt(String::length).
+                thenComparing(Comparator.naturalOrder()));
+        return found.size() > MAX_MATCHES ? new ArrayList<>(found.subList(0, MAX_MATCHES)) : found;
+    }
+
+    /**
+     * Finds the names whose simple names contain the
+     * characters of a string in order.
+     *
+     * @param lower the lower case string
+     * @return the names, the most compact matches first
+     */
+    @GuardedBy("this")
+    private List<String> fuzzy(String lower) {
+        long mask = mask(lower);
+        Map<String, Integer> spans = new HashMap<>();
+        for (SimpleName simple : this.bySimpleName.values()) {
+            if ((simple.mask & mask) != mask) {
+                continue;
+            }
+
+            int span = span(simple.name, lower);
+            if (span >= 0) {
+                for (String name : simple.names) {
+                    spans.merge(name, span, Math::min);
+                }
+            }
+        }
+
+        List<String> found = new ArrayList<>(spans.keySet());
+        found.sort(Comparator.<String>comparingInt(spans::get).
+                thenComparingInt(String::length).
+                thenComparing(Comparator.naturalOrder()));
+        return found.size() > MAX_MATCHES ? new ArrayList<>(found.subList(0, MAX_MATCHES)) : found;
+    }
+
+    /**
+     * Removes every class and the requests keeping the index
+     * current.
+     *
+     * @param vm the VM to delete the requests from, or
+     * {@code null} if it is no longer attached
+     */
+    public void clear(VirtualMachine vm) {
+        List<EventRequest> requests;
+        synchronized (this) {
+            requests = new ArrayList<>(this.requests);
+            this.requests.clear();
+            this.byName.clear();
+            this.bySimpleName.clear();
+            this.prefixes.clear();
+            this.names.clear();
+            this.ids.clear();
+            this.grams.clear();
+            this.dead = 0;
+        }
+
+        if (vm != null) {
+            vm.eventRequestManager().deleteEventRequests(requests);
+        }
+    }
+
+    /**
+     * Obtains the number of class names in the index.
+     *
+     * @return the number of names
+     */
+    public synchronized int size() {
+        return this.byName.size();
+    }
+
+    private static Set<String> simpleNames(String name) {
+        Set<String> simple = new LinkedHashSet<>(2);
+        String afterDot = name.substring(name.lastIndexOf('.') + 1);
+        simple.add(afterDot.toLowerCase());
+        simple.add(afterDot.substring(afterDot.lastIndexOf('$') + 1).toLowerCase());
+        return simple;
+    }
+
+    /**
+     * Obtains the set of characters in a string, folded into
+     * the bits of a long, which a string containing another
+     * in order must be a superset of.
+     */
+    private static long mask(String s) {
+        long mask = 0;
+        for (int i = 0; i < s.length(); i++) {
+            mask |= 1L << (s.charAt(i) & 63);
+        }
+        return mask;
+    }
+
+    private static long gram(String s, int at) {
+        return (long) s.charAt(at) << 32 | (long) s.charAt(at + 1) << 16 | s.charAt(at + 2);
+    }
+
+    /**
+     * Ranks where a name contains a string: at the start of
+     * its simple name, within its simple name, or elsewhere.
+     */
+    private static int rank(String name, String lower) {
+        String simple = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+        if (simple.startsWith(lower)) {
+            return 0;
+        }
+        return simple.contains(lower) ? 1 : 2;
+    }
+
+    /**
+     * Measures the shortest run of a string containing the
+     * characters of another in order.
+     *
+     * @return the length of the run, or -1 if there is none
+     */
+    private static int span(String s, String chars) {
+        int best = -1;
+        for (int start = s.indexOf(chars.charAt(0)); start >= 0; start = s.indexOf(chars.charAt(0), start + 1)) {
+            int at = start;
+            for (int i = 1; i < chars.length() && at >= 0; i++) {
+                at = s.indexOf(chars.charAt(i), at + 1);
+            }
+            if (at < 0) {
+                break;
+            }
+
+            int span = at - start + 1;
+            if (best < 0 || span < best) {
+                best = span;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The class names sharing a lower case simple name.
+     */
+    private static final class SimpleName {
+        /** The lower case simple name */
+        final String name;
+        /** The characters of the simple name */
+        final long mask;
+        /** The class names */
+        final Set<String> names = new TreeSet<>();
+
+        SimpleName(String name) {
+            this.name = name;
+            this.mask = mask(name);
+        }
+    }
+
+    /**
+     * A growable list of ascending IDs.
+     */
+    private static final class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.values[this.size++] = value;
+        }
+
+        boolean contains(int value) {
+            return Arrays.binarySearch(this.values, 0, this.size, value) >= 0;
+        }
+    }
+
+    /**
+     * A trie of lower case simple names, holding the class
+     * names at the node of each simple name.
+     */
+    private static final class Trie {
+        /** The characters of the children, ascending */
+        private char[] keys = new char[0];
+        /** The children */
+        private Trie[] children = new Trie[0];
+        /** The class names with the simple name ending here */
+        private Set<String> names;
+
+        void add(String key, String name) {
+            Trie node = this;
+            for (int i = 0; i < key.length(); i++) {
+                node = node.child(key.charAt(i), true);
+            }
+            if (node.names == null) {
+                node.names = new TreeSet<>();
+            }
+            node.names.add(name);
+        }
+
+        void remove(String key, String name) {
+            Trie node = this;
+            for (int i = 0; i < key.length() && node != null; i++) {
+                node = node.child(key.charAt(i), false);
+            }
+            if (node != null && node.names != null) {
+                node.names.remove(name);
+            }
+        }
+
+        List<String> collect(String prefix, int limit) {
+            Trie node = this;
+            for (int i = 0; i < prefix.length() && node != null; i++) {
+                node = node.child(prefix.charAt(i), false);
+            }
+
+            List<String> names = new ArrayList<>();
+            if (node != null) {
+                node.collect(names, limit);
+            }
+            return names;
+        }
+
+        /**
+         * Collects the names below this node, shorter simple
+         * names first within each branch.
+         */
+        private void collect(List<String> out, int limit) {
+            if (this.names != null) {
+                for (String name : this.names) {
+                    if (out.size() >= limit) {
+                        return;
+                    }
+                    out.add(name);
+                }
+            }
+            for (Trie child : this.children) {
+                if (out.size() >= limit) {
+                    return;
+                }
+                child.collect(out, limit);
+            }
+        }
+
+        private Trie child(char c, boolean create) {
+            int at = Arrays.binarySearch(this.keys, c);
+            if (at >= 0) {
+                return this.children[at];
+            }
+            if (!create) {
+                return null;
+            }
+
+            at = -at - 1;
+            Trie child = new Trie();
+            char[] keys = new char[this.keys.length + 1];
+            Trie[] children = new Trie[this.children.length + 1];
+            System.arraycopy(this.keys, 0, keys, 0, at);
+            System.arraycopy(this.children, 0, children, 0, at);
+            keys[at] = c;
+            children[at] = child;
+            System.arraycopy(this.keys, at, keys, at + 1, this.keys.length - at);
+            System.arraycopy(this.children, at, children, at + 1, this.children.length - at);
+            this.keys = keys;
+            this.children = children;
+            return child;
+        }
+
+        void clear() {
+            this.keys = new char[0];
+            this.children = new Trie[0];
+            this.names = null;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.infra;
+
+import com.gmail.woodyc40.topics.Main;
+import com.gmail.woodyc40.topics.protocol.SignalInRespCondition;
+import com.gmail.woodyc40.topics.protocol.SignalOutClearCondition;
+import com.gmail.woodyc40.topics.protocol.SignalOutReqCondition;
+import com.sun.jdi.*;
+import com.sun.jdi.event.BreakpointEvent;
+import com.sun.jdi.event.EventSet;
+import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.EventRequest;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Breakpoints whose condition is tested inside the VM.
+ *
+ * <p>The agent compiles each condition and injects it at
+ * its line, calling a hook method in the agent when it
+ * holds. A single breakpoint is set in that hook, so the
+ * VM only raises an event once a condition holds rather
+ * than the debugger testing it on every hit. The hitting
+ * thread is shown at the line of the condition, two frames
+ * below the hook.</p>
+ *
+ * <p>The agent replaces the code of the class to inject or
+ * remove a condition, which clears the breakpoints set in
+ * it, so they are set again once it responds.</p>
+ */
+@ThreadSafe
+@RequiredArgsConstructor
+public class ConditionalBreakpoints {
+    /** The agent class holding the hooks */
+    private static final String HOOKS = "com.gmail.woodyc40.topics.Hooks";
+    /** The hook called when a condition holds */
+    private static final String HIT = "hit";
+    /** The frame of the line, below the two hook frames */
+    private static final int CALLER = 2;
+
+    /** The context which holds the attached VM */
+    private final JvmContext context;
+    /** The source of condition IDs */
+    private final AtomicInteger ids = new AtomicInteger();
+    /** The conditions which have been set, by ID */
+    @GuardedBy("this")
+    private final Map<Integer, Conditional> conditions = new LinkedHashMap<>();
+    /** The breakpoint in the hook, if any condition is set */
+    @GuardedBy("this")
+    private BreakpointRequest hook;
+
+    /**
+     * Sets a conditional breakpoint, which the agent injects
+     * once the class is loaded.
+     *
+     * @param className the fully qualified or simple name
+     * of the class
+     * @param line the line to test the condition at
+     * @param expression the condition
+     * @return where the agent injected the condition, or
+     * the reason it could not
+     * @throws IllegalStateException if the agent is not
+     * loaded in the VM
+     */
+    public CompletableFuture<String> add(String className, int line, String expression) {
+        Conditional conditional = new Conditional(this.ids.incrementAndGet(), className, line, expression);
+        VirtualMachine vm = this.context.getVm();
+        synchronized (this) {
+            // The hook is set first so that no hit is missed
+            if (this.hook == null) {
+                this.hook = this.installHook();
+            }
+            this.conditions.put(conditional.getId(), conditional);
+        }
+
+        return this.context.request(new SignalOutReqCondition(conditional.getId(), className, line, expression),
+                SignalInRespCondition.class).
+                thenApply(SignalInRespCondition::getStatus).
+                whenComplete((status, t) -> {
+                    if (t != null) {
+                        this.forget(conditional.getId());
+                    } else {
+                        this.context.retransformed(className, vm);
+                    }
+                });
+    }
+
+    private BreakpointRequest installHook() {
+        VirtualMachine vm = this.context.getVm();
+        List<ReferenceType> types = vm.classesByName(HOOKS);
+        if (types.isEmpty()) {
+            throw new IllegalStateException("the agent is not loaded in the VM");
+        }
+
+        Method hit = types.get(0).methodsByName(HIT).get(0);
+        BreakpointRequest request = vm.eventRequestManager().createBreakpointRequest(hit.location());
+        request.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+        request.enable();
+        return request;
+    }
+
+    /**
+     * Determines whether an event was raised by the hook of
+     * the conditional breakpoints.
+     *
+     * @param request the request of the event
+     * @return {@code true} if a condition held
+     */
+    public synchronized boolean isHook(EventRequest request) {
+        return this.hook != null && this.hook == request;
+    }
+
+    /**
+     * Suspends the thread in which a condition held. Called
+     * by the drain stage.
+     *
+     * @param event the event raised in the hook
+     * @param eventSet the set to resume the thread with
+     * @return the suspension, or {@code null} if the
+     * condition has been removed or holds too often, and the
+     * thread should be resumed
+     */
+    Suspension hit(BreakpointEvent event, EventSet eventSet) {
+        ThreadReference thread = event.thread();
+        Location location;
+        int id;
+        try {
+            id = ((IntegerValue) thread.frame(0).getArgumentValues().get(0)).value();
+            location = thread.frame(CALLER).location();
+        } catch (IncompatibleThreadStateException e) {
+            return null;
+        }
+
+        Conditional conditional;
+        synchronized (this) {
+            conditional = this.conditions.get(id);
+        }
+        if (conditional == null || !this.context.getGovernor().hit(conditional)) {
+            return null;
+        }
+
+        Suspension suspension = this.context.suspend(event, eventSet, location, CALLER);
+        suspension.setConditional(conditional);
+        return suspension;
+    }
+
+    /**
+     * Obtains the conditions which have been set.
+     *
+     * @return the conditional breakpoints
+     */
+    public synchronized List<Conditional> getConditions() {
+        return new ArrayList<>(this.conditions.values());
+    }
+
+    /**
+     * Removes the conditional breakpoints at a line.
+     *
+     * @param className the class name the breakpoint was
+     * set with
+     * @param line the line
+     * @return {@code true} if any breakpoint was removed
+     */
+    public boolean remove(String className, int line) {
+        boolean removed = false;
+        for (Conditional conditional : this.getConditions()) {
+            if (conditional.getClassName().equals(className) && conditional.getLine() == line) {
+                removed |= this.remove(conditional);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes a conditional breakpoint.
+     *
+     * @param conditional the conditional breakpoint
+     * @return {@code true} if it had not been removed yet
+     */
+    public boolean remove(Conditional conditional) {
+        synchronized (this) {
+            if (!this.conditions.containsKey(conditional.getId())) {
+                return false;
+            }
+        }
+
+        VirtualMachine vm = this.context.getVm();
+        String at = conditional.getClassName() + ":" + conditional.getLine();
+        this.forget(conditional.getId());
+        this.context.request(new SignalOutClearCondition(conditional.getId()), SignalInRespCondition.class).
+                whenComplete((resp, t) -> {
+                    if (t != null) {
+                        Main.printAsync("warn: condition at " + at + " is still tested: " + t.getMessage());
+                    } else {
+                        this.context.retransformed(conditional.getClassName(), vm);
+                    }
+                });
+        return true;
+    }
+
+    private void forget(int id) {
+        this.context.getGovernor().forgetCondition(id);
+        BreakpointRequest unused = null;
+        synchronized (this) {
+            this.conditions.remove(id);
+            if (this.conditions.isEmpty()) {
+                unused = this.hook;
+                this.hook = null;
+            }
+        }
+
+        VirtualMachine vm = this.context.getVm();
+        if (unused != null && vm != null) {
+            vm.eventRequestManager().deleteEventRequest(unused);
+        }
+    }
+
+    /**
+     * Removes every conditional breakpoint.
+     *
+     * @param attached whether the VM is still attached so
+     * the conditions should be removed from it
+     */
+    public void clear(boolean attached) {
+        List<Conditional> cleared;
+        BreakpointRequest hook;
+        synchronized (this) {
+            cleared = new ArrayList<>(this.conditions.values());
+            hook = this.hook;
+            this.conditions.clear();
+            this.hook = null;
+        }
+
+        for (Conditional conditional : cleared) {
+            this.context.getGovernor().forgetCondition(conditional.getId());
+        }
+
+        if (attached) {
+            for (Conditional conditional : cleared) {
+                this.context.send(new SignalOutClearCondition(conditional.getId()));
+            }
+            if (hook != null) {
+                this.context.getVm().eventRequestManager().deleteEventRequest(hook);
+            }
+        }
+    }
+
+    /**
+     * A breakpoint whose condition is tested by the agent.
+     */
+    @Data
+    public static class Conditional {
+        private final int id;
+        private final String className;
+        private final int line;
+        private final String expression;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.infra;
+
+import com.gmail.woodyc40.topics.Main;
+import com.gmail.woodyc40.topics.cmd.BreakAfter;
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.VirtualMachine;
+import com.sun.jdi.event.ClassPrepareEvent;
+import com.sun.jdi.request.ClassPrepareRequest;
+import com.sun.jdi.request.EventRequest;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Breakpoints in classes which have not been loaded yet.
+ *
+ * <p>Each deferred breakpoint has a class prepare request
+ * filtered to its class name, so the VM reports the class
+ * as soon as it loads instead of the debugger scanning
+ * every loaded class for it. The loading thread is
+ * suspended until the breakpoint is set, so the line
+ * cannot run before then.</p>
+ */
+@ThreadSafe
+@RequiredArgsConstructor
+public class DeferredBreakpoints {
+    /** The request property holding the pending breakpoint */
+    private static final String PENDING = "pending";
+
+    /** The context which holds the attached VM */
+    private final JvmContext context;
+    /** The breakpoints waiting for their class */
+    @GuardedBy("this")
+    private final List<Pending> pending = new ArrayList<>();
+
+    /**
+     * Defers a breakpoint until a class with the given name
+     * is loaded.
+     *
+     * @param className the fully qualified or simple name
+     * of the class
+     * @param line the line to break at
+     * @param suspendPolicy the suspend policy of the
+     * breakpoint
+     * @param samplePolicy which hits suspend the thread
+     * @param captureReturns whether the returns before the
+     * breakpoint are captured
+     */
+    public void defer(String className, int line, int suspendPolicy, SamplePolicy samplePolicy,
+                      boolean captureReturns) {
+        VirtualMachine vm = this.context.getVm();
+        ClassPrepareRequest request = vm.eventRequestManager().createClassPrepareRequest();
+        request.addClassFilter(className.contains(".") ? className : "*" + className);
+        request.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+
+        Pending pending = new Pending(className, line, suspendPolicy, samplePolicy, captureReturns, request);
+        request.putProperty(PENDING, pending);
+        synchronized (this) {
+            this.pending.add(pending);
+        }
+        request.enable();
+    }
+
+    /**
+     * Sets the breakpoints deferred until the prepared class
+     * was loaded. Called by the drain stage while the
+     * loading thread is suspended.
+     *
+     * @param event the class prepare event
+     */
+    void prepared(ClassPrepareEvent event) {
+        Object property = event.request().getProperty(PENDING);
+        if (!(property instanceof Pending)) {
+            return;
+        }
+
+        Pending pending = (Pending) property;
+        ReferenceType type = event.referenceType();
+        if (!matches(type.name(), pending.getClassName())) {
+            return;
+        }
+
+        synchronized (this) {
+            if (!this.pending.remove(pending)) {
+                return;
+            }
+        }
+
+        this.context.getVm().eventRequestManager().deleteEventRequest(pending.getRequest());
+        BreakAfter.install(type, pending.getLine(), pending.getSuspendPolicy(), pending.getSamplePolicy(),
+                pending.isCaptureReturns(), Main::printAsync);
+    }
+
+    /**
+     * Determines whether a loaded class is the one named by
+     * a deferred breakpoint, given that the simple name
+     * filter also matches longer names.
+     *
+     * @param loaded the name of the loaded class
+     * @param name the name given for the breakpoint
+     * @return {@code true} if the class was meant
+     */
+    private static boolean matches(String loaded, String name) {
+        return loaded.equals(name) || loaded.endsWith("." + name) || loaded.endsWith("$" + name);
+    }
+
+    /**
+     * Obtains the breakpoints which are waiting for their
+     * class to load.
+     *
+     * @return the deferred breakpoints
+     */
+    public synchronized List<Pending> getPending() {
+        return new ArrayList<>(this.pending);
+    }
+
+    /**
+     * Cancels every deferred breakpoint.
+     *
+     * @param deleteRequests whether the VM is still attached
+     * so the prepare requests should be deleted
+     */
+    public void clear(boolean deleteRequests) {
+        List<Pending> cleared;
+        synchronized (this) {
+            cleared = new ArrayList<>(this.pending);
+            this.pending.clear();
+        }
+
+        if (deleteRequests) {
+            for (Pending pending : cleared) {
+                this.context.getVm().eventRequestManager().deleteEventRequest(pending.getRequest());
+            }
+        }
+    }
+
+    /**
+     * A breakpoint waiting for its class to load.
+     */
+    @Data
+    public static class Pending {
+        private final String className;
+        private final int line;
+        private final int suspendPolicy;
+        private final SamplePolicy samplePolicy;
+        private final boolean captureReturns;
+        private final ClassPrepareRequest request;
+    }
+}
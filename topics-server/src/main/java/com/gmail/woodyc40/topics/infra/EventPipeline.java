@@ -0,0 +1,338 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.infra;
+
+import com.gmail.woodyc40.topics.Main;
+import com.gmail.woodyc40.topics.server.LatencyHistogram;
+import com.sun.jdi.*;
+import com.sun.jdi.event.*;
+import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.EventRequest;
+import lombok.Getter;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Processes the events of the attached VM in three stages,
+ * so that slow work never delays the next event.
+ *
+ * <p>The drain stage removes event sets from the VM's
+ * queue, records breakpoint hits and return values, arms
+ * return capture, keeps the index of class names current,
+ * sets deferred breakpoints, captures the values of
+ * logpoints and resumes any set which does not need the
+ * user, doing no other work. Breakpoint hits,
+ * including conditions which held in the VM, are passed to
+ * a pool which reads the top of the stack, the calls the
+ * agent recorded and the source context, and a renderer
+ * prints them in the order they were hit.</p>
+ *
+ * <p>The time spent in each stage and waiting between them
+ * is recorded so that a backed up stage can be found.</p>
+ */
+@ThreadSafe
+public class EventPipeline {
+    /** The number of threads enriching breakpoint hits */
+    private static final int ENRICHERS = 2;
+    /** The number of lines of source context to print */
+    private static final int CONTEXT_LINES = 3;
+
+    /** The context which holds the breakpoint state */
+    private final JvmContext context;
+    /** The VM whose events are processed */
+    private final VirtualMachine vm;
+    /** The drain stage thread */
+    private final Thread drain;
+    /** The enrich stage pool */
+    private final ExecutorService enrichers;
+    /** The render stage thread */
+    private final Thread renderer;
+    /** The enriched hits, in the order they were drained */
+    private final BlockingQueue<CompletableFuture<Hit>> rendering = new LinkedBlockingQueue<>();
+
+    /** The time from removing an event set to deciding it */
+    @Getter
+    private final LatencyHistogram drainTime = new LatencyHistogram();
+    /** The time a hit waits for an enrich thread */
+    @Getter
+    private final LatencyHistogram enrichLag = new LatencyHistogram();
+    /** The time spent enriching a hit */
+    @Getter
+    private final LatencyHistogram enrichTime = new LatencyHistogram();
+    /** The time from draining a hit to it being printed */
+    @Getter
+    private final LatencyHistogram renderLag = new LatencyHistogram();
+
+    EventPipeline(JvmContext context, VirtualMachine vm) {
+        this.context = context;
+        this.vm = vm;
+
+        this.drain = new Thread(this::runDrain, "JDB event drain");
+        this.enrichers = Executors.newFixedThreadPool(ENRICHERS, r -> {
+            Thread thread = new Thread(r, "JDB event enricher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.renderer = new Thread(this::runRender, "JDB event renderer");
+        this.drain.setDaemon(true);
+        this.renderer.setDaemon(true);
+    }
+
+    /**
+     * Begins processing events.
+     */
+    void start() {
+        this.drain.start();
+        this.renderer.start();
+    }
+
+    /**
+     * Stops every stage, discarding the events which have
+     * not yet been processed.
+     */
+    void close() {
+        this.drain.interrupt();
+        this.enrichers.shutdownNow();
+        this.renderer.interrupt();
+    }
+
+    /**
+     * Obtains the number of hits which have been drained but
+     * not yet printed.
+     *
+     * @return the number of hits in the later stages
+     */
+    public int getBacklog() {
+        return this.rendering.size();
+    }
+
+    /**
+     * The drain stage, which only classifies and records
+     * events so that suspended threads are decided on as
+     * soon as possible.
+     */
+    private void runDrain() {
+        EventQueue queue = this.vm.eventQueue();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                EventSet eventSet;
+                try {
+                    eventSet = queue.remove();
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                long start = System.nanoTime();
+                boolean hold = false;
+                for (Event event : eventSet) {
+                    hold |= this.drain(event, eventSet, start);
+                }
+
+                // Only breakpoints wait for the user to proceed
+                if (!hold) {
+                    eventSet.resume();
+                }
+                this.drainTime.record(System.nanoTime() - start);
+            } catch (VMDisconnectedException e) {
+                this.context.disconnected(this);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Classifies and records one event. A failure is printed
+     * rather than ending the stage, so that the other events
+     * of the set are still handled and the set is resumed.
+     *
+     * @param event the event
+     * @param eventSet the set containing the event
+     * @param start the time the set was removed from the
+     * queue
+     * @return {@code true} if the event suspended a thread
+     * for the user
+     * @throws VMDisconnectedException if the VM has
+     * disconnected
+     */
+    private boolean drain(Event event, EventSet eventSet, long start) {
+        Suspension suspension;
+        try {
+            suspension = this.classify(event, eventSet);
+        } catch (VMDisconnectedException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            Main.printAsync("warn: failed to handle " + event + ": " + e);
+            return false;
+        }
+
+        if (suspension == null) {
+            return false;
+        }
+
+        // Held even if it cannot be enriched, as it is
+        // already listed as suspended
+        try {
+            this.context.getReturnCapture().suspended(suspension);
+            this.rendering.add(CompletableFuture.supplyAsync(() -> this.enrich(suspension, start), this.enrichers));
+        } catch (VMDisconnectedException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            Main.printAsync("warn: failed to handle " + event + ": " + e);
+        }
+        return true;
+    }
+
+    /**
+     * Passes an event to the components which record it.
+     *
+     * @param event the event
+     * @param eventSet the set containing the event
+     * @return the suspension if the event suspended a thread
+     * for the user, or {@code null}
+     */
+    private Suspension classify(Event event, EventSet eventSet) {
+        if (event instanceof BreakpointEvent) {
+            BreakpointEvent breakpoint = (BreakpointEvent) event;
+            ConditionalBreakpoints conditional = this.context.getConditional();
+            if (this.context.getReturnCapture().entered(breakpoint) ||
+                    this.context.getLogpoints().capture(breakpoint)) {
+                return null;
+            } else if (conditional.isHook(breakpoint.request())) {
+                // Limited by condition, as every condition
+                // shares the hook
+                return conditional.hit(breakpoint, eventSet);
+            } else if (sample(breakpoint, eventSet) && this.context.getGovernor().hit(breakpoint.request())) {
+                return this.context.suspend(breakpoint, eventSet, breakpoint.location(), 0);
+            }
+        } else if (event instanceof MethodExitEvent) {
+            this.context.getReturnCapture().exited((MethodExitEvent) event);
+        } else if (event instanceof ClassPrepareEvent) {
+            this.context.getClasses().prepared((ClassPrepareEvent) event);
+            this.context.getDeferred().prepared((ClassPrepareEvent) event);
+        } else if (event instanceof ClassUnloadEvent) {
+            this.context.getClasses().unloaded((ClassUnloadEvent) event);
+        }
+        return null;
+    }
+
+    /**
+     * Decides whether a breakpoint hit should keep its
+     * thread suspended, according to the breakpoint's
+     * sampler.
+     *
+     * @param event the breakpoint event
+     * @param eventSet the set containing the event
+     * @return {@code true} if the hit was chosen
+     */
+    private static boolean sample(BreakpointEvent event, EventSet eventSet) {
+        Object sampler = event.request().getProperty(Sampler.PROPERTY);
+        return !(sampler instanceof Sampler) || ((Sampler) sampler).sample((BreakpointRequest) event.request(),
+                eventSet.suspendPolicy() != EventRequest.SUSPEND_NONE);
+    }
+
+    /**
+     * The enrich stage, which reads the stack and source
+     * context of a breakpoint hit while its thread is still
+     * suspended.
+     *
+     * @param suspension the suspended thread
+     * @param drainedNanos the time the hit was drained
+     * @return the enriched hit
+     */
+    private Hit enrich(Suspension suspension, long drainedNanos) {
+        BreakpointEvent e = suspension.getEvent();
+        long start = System.nanoTime();
+        this.enrichLag.record(start - drainedNanos);
+
+        CapturedStack stack;
+        try {
+            stack = CapturedStack.capture(e.thread(), suspension.getFrameIndex(), this.context.getCaptureDepth());
+        } catch (IncompatibleThreadStateException e1) {
+            throw new IllegalStateException("thread resumed before its stack was read", e1);
+        }
+        suspension.setStack(stack);
+        suspension.setCalls(this.context.getReturnCapture().fetch(suspension));
+
+        Location location = suspension.getLocation();
+        List<String> lines = new ArrayList<>();
+        String source;
+        try {
+            source = location.sourceName();
+        } catch (AbsentInformationException e1) {
+            source = location.declaringType().name();
+        }
+        lines.add("Hit breakpoint " + source + ":" + location.lineNumber() + " in thread " + e.thread().name());
+
+        String string = this.context.lookupLine(location.declaringType().name(), location.lineNumber(), CONTEXT_LINES);
+        if (string != null && !string.isEmpty()) {
+            lines.add("Code context:");
+            lines.add(string);
+        }
+
+        this.enrichTime.record(System.nanoTime() - start);
+        return new Hit(stack, lines, drainedNanos);
+    }
+
+    /**
+     * The render stage, which prints the enriched hits in
+     * the order they were drained.
+     */
+    private void runRender() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Hit hit;
+            try {
+                hit = this.rendering.take().join();
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                Main.printAsync("abort: failed to read breakpoint: " + e.getMessage());
+                continue;
+            }
+
+            this.context.getPreviousFrames().add(hit.stack);
+            for (String line : hit.lines) {
+                Main.printAsync(line);
+            }
+            this.renderLag.record(System.nanoTime() - hit.drainedNanos);
+        }
+    }
+
+    /**
+     * A breakpoint hit which is ready to be printed.
+     */
+    private static final class Hit {
+        /** The stack of the thread which hit the breakpoint */
+        final CapturedStack stack;
+        /** The lines to print */
+        final List<String> lines;
+        /** The time the hit was drained */
+        final long drainedNanos;
+
+        Hit(CapturedStack stack, List<String> lines, long drainedNanos) {
+            this.stack = stack;
+            this.lines = lines;
+            this.drainedNanos = drainedNanos;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.infra;
+
+import com.gmail.woodyc40.topics.Main;
+import com.sun.jdi.VirtualMachine;
+import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.EventRequest;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the harm a debugging session can do to a live VM.
+ *
+ * <p>Threads held at a breakpoint for longer than the hold
+ * budget are resumed, breakpoints which suspend threads
+ * more often than the rate limit are disabled, and once the
+ * threads of a session have been held for longer than the
+ * session budget every breakpoint is disabled. Only hits
+ * which hold their thread for the user are limited, not
+ * logpoints or hits skipped by sampling. Conditional
+ * breakpoints share one request in the agent's hook, so
+ * they are limited by condition instead, and removed once
+ * they hold too often. Each action is printed, and the
+ * hits and held time are kept per breakpoint and for the
+ * session, until the breakpoint is removed.</p>
+ *
+ * <p>Every limit is off until it is set, so a session only
+ * behaves differently from plain JDI once the user asks the
+ * governor to limit it.</p>
+ */
+@ThreadSafe
+public class Governor {
+    /** The interval at which held threads are checked */
+    private static final long TICK_MILLIS = 100;
+    /** The length of a rate window */
+    private static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+    /** The context which holds the suspended threads */
+    private final JvmContext context;
+    /** The statistics of each breakpoint, by ID */
+    private final Map<Integer, Stats> breakpoints = new ConcurrentHashMap<>();
+    /** The statistics of each conditional breakpoint, by condition ID */
+    private final Map<Integer, Stats> conditions = new ConcurrentHashMap<>();
+    /** The total time threads were held this session */
+    private final AtomicLong sessionHeldNanos = new AtomicLong();
+    /** The number of threads resumed by the governor */
+    private final AtomicLong resumes = new AtomicLong();
+    /** The number of breakpoints disabled by the governor */
+    private final AtomicLong disables = new AtomicLong();
+
+    /** Whether the governor acts at all */
+    @Getter
+    @Setter
+    private volatile boolean enabled = true;
+    /** The longest a thread may be held, in ms, or 0 */
+    @Getter
+    @Setter
+    private volatile long holdBudgetMillis;
+    /** The most suspending hits per second, or 0 */
+    @Getter
+    @Setter
+    private volatile int maxRate;
+    /** The longest threads may be held in total, or 0 */
+    @Getter
+    @Setter
+    private volatile long sessionBudgetMillis;
+
+    Governor(JvmContext context) {
+        this.context = context;
+
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "JDB governor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Counts a breakpoint hit, disabling the breakpoint if
+     * it suspends threads too often. Called by the drain
+     * stage.
+     *
+     * @param request the breakpoint which was hit
+     * @return {@code false} if the breakpoint was disabled,
+     * so the thread should be resumed
+     */
+    boolean hit(EventRequest request) {
+        BreakpointRegistry.Entry entry = this.context.getBreakpoints().get(request);
+        if (entry == null) {
+            // Removed while the event was queued
+            return true;
+        }
+
+        Stats stats = this.breakpoints.computeIfAbsent(entry.getId(),
+                k -> new Stats("break #" + entry.getId() + " at " + entry.getKey()));
+        if (this.count(stats)) {
+            return true;
+        }
+
+        this.context.getBreakpoints().disable(entry.getRequest());
+        Main.printAsync("governor: disabled " + stats.description + " after " + stats.windowHits +
+                " hits in under a second (limit " + this.maxRate + "/s)");
+        return false;
+    }
+
+    /**
+     * Counts a hit of a conditional breakpoint whose
+     * condition held, removing the breakpoint if it holds
+     * too often. Called by the drain stage.
+     *
+     * @param conditional the conditional breakpoint
+     * @return {@code false} if the breakpoint was removed,
+     * so the thread should be resumed
+     */
+    boolean hit(ConditionalBreakpoints.Conditional conditional) {
+        Stats stats = this.conditions.computeIfAbsent(conditional.getId(),
+                k -> new Stats("conditional breakpoint at " + conditional.getClassName() + ":" +
+                        conditional.getLine() + " if " + conditional.getExpression()));
+        if (this.count(stats)) {
+            return true;
+        }
+
+        // Disabling the hook would disable every condition,
+        // so the condition is removed from the agent instead
+        this.context.getConditional().remove(conditional);
+        Main.printAsync("governor: removed " + stats.description + " after " + stats.windowHits +
+                " hits in under a second (limit " + this.maxRate + "/s)");
+        return false;
+    }
+
+    /**
+     * Counts a hit in the rate window of a breakpoint.
+     *
+     * @param stats the statistics of the breakpoint
+     * @return {@code true} if the hit is within the rate
+     * limit
+     */
+    private boolean count(Stats stats) {
+        stats.hits.incrementAndGet();
+
+        long now = System.nanoTime();
+        if (now - stats.windowStart >= WINDOW) {
+            stats.windowStart = now;
+            stats.windowHits = 0;
+        }
+
+        int maxRate = this.maxRate;
+        if (!this.enabled || maxRate <= 0 || ++stats.windowHits <= maxRate) {
+            return true;
+        }
+
+        stats.disabled = true;
+        this.disables.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Records the time a thread was held once it is resumed.
+     *
+     * @param suspension the resumed thread
+     */
+    void resumed(Suspension suspension) {
+        long held = System.nanoTime() - suspension.getSuspendedNanos();
+        this.sessionHeldNanos.addAndGet(held);
+
+        Stats stats;
+        if (suspension.getConditional() != null) {
+            stats = this.conditions.get(suspension.getConditional().getId());
+        } else {
+            BreakpointRegistry.Entry entry = this.context.getBreakpoints().get(suspension.getEvent().request());
+            stats = entry == null ? null : this.breakpoints.get(entry.getId());
+        }
+        if (stats != null) {
+            stats.heldNanos.addAndGet(held);
+        }
+    }
+
+    /**
+     * Forgets the statistics of removed breakpoints.
+     *
+     * @param removed the breakpoints which were removed
+     */
+    public void forget(Collection<BreakpointRegistry.Entry> removed) {
+        for (BreakpointRegistry.Entry entry : removed) {
+            this.breakpoints.remove(entry.getId());
+        }
+    }
+
+    /**
+     * Forgets the statistics of a removed conditional
+     * breakpoint.
+     *
+     * @param conditionId the ID of its condition
+     */
+    void forgetCondition(int conditionId) {
+        this.conditions.remove(conditionId);
+    }
+
+    /**
+     * Resumes the threads held for too long and enforces the
+     * session budget.
+     */
+    private void tick() {
+        try {
+            if (!this.enabled || this.context.getVm() == null) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            long holdBudget = TimeUnit.MILLISECONDS.toNanos(this.holdBudgetMillis);
+            long sessionHeld = this.sessionHeldNanos.get();
+            for (Suspension suspension : this.context.getSuspensions()) {
+                long held = now - suspension.getSuspendedNanos();
+                sessionHeld += held;
+                if (holdBudget > 0 && held > holdBudget && this.context.resume(suspension.getThread()) != null) {
+                    this.resumes.incrementAndGet();
+                    Main.printAsync("governor: resumed thread " + suspension.getThread().name() + " held " +
+                            TimeUnit.NANOSECONDS.toMillis(held) + " ms at " + suspension.getLocation() +
+                            " (budget " + this.holdBudgetMillis + " ms)");
+                }
+            }
+
+            long sessionBudget = TimeUnit.MILLISECONDS.toNanos(this.sessionBudgetMillis);
+            if (sessionBudget > 0 && sessionHeld > sessionBudget) {
+                this.shutOff(sessionHeld);
+            }
+        } catch (RuntimeException e) {
+            Main.printAsync("governor: check failed: " + e);
+        }
+    }
+
+    /**
+     * Disables every breakpoint and resumes every held
+     * thread once the session budget is spent.
+     */
+    private void shutOff(long sessionHeld) {
+        VirtualMachine vm = this.context.getVm();
+        int disabled = 0;
+        for (BreakpointRequest request : vm.eventRequestManager().breakpointRequests()) {
+            if (request.isEnabled()) {
+                this.context.getBreakpoints().disable(request);
+                disabled++;
+            }
+        }
+        this.disables.addAndGet(disabled);
+
+        for (Suspension suspension : this.context.getSuspensions()) {
+            this.context.resume(suspension.getThread());
+            this.resumes.incrementAndGet();
+        }
+
+        // Acts once, until a new budget is set
+        this.sessionBudgetMillis = 0;
+        Main.printAsync("governor: threads held " + TimeUnit.NANOSECONDS.toMillis(sessionHeld) +
+                " ms this session, disabled " + disabled + " breakpoints and resumed all threads");
+    }
+
+    /**
+     * Obtains the statistics of each breakpoint hit this
+     * session.
+     *
+     * @return the statistics, by breakpoint description
+     */
+    public Map<String, Stats> getStats() {
+        Map<String, Stats> stats = new HashMap<>();
+        this.breakpoints.values().forEach(s -> stats.put(s.description, s));
+        this.conditions.values().forEach(s -> stats.put(s.description, s));
+        return stats;
+    }
+
+    /**
+     * Obtains the total time threads were held this session,
+     * not counting the threads which are still held.
+     *
+     * @return the held time, in nanoseconds
+     */
+    public long getSessionHeldNanos() {
+        return this.sessionHeldNanos.get();
+    }
+
+    public long getResumes() {
+        return this.resumes.get();
+    }
+
+    public long getDisables() {
+        return this.disables.get();
+    }
+
+    /**
+     * Forgets the statistics of the session.
+     */
+    void reset() {
+        this.breakpoints.clear();
+        this.conditions.clear();
+        this.sessionHeldNanos.set(0);
+        this.resumes.set(0);
+        this.disables.set(0);
+    }
+
+    /**
+     * The hits and held time of a breakpoint.
+     */
+    @RequiredArgsConstructor
+    public static class Stats {
+        /** What the breakpoint is */
+        private final String description;
+        /** The suspending hits */
+        private final AtomicLong hits = new AtomicLong();
+        /** The time threads were held after a hit */
+        private final AtomicLong heldNanos = new AtomicLong();
+        /** The start of the current rate window */
+        private long windowStart;
+        /** The hits in the current rate window */
+        private int windowHits;
+        /** Whether the governor disabled the breakpoint */
+        @Getter
+        private volatile boolean disabled;
+
+        public long getHits() {
+            return this.hits.get();
+        }
+
+        public long getHeldNanos() {
+            return this.heldNanos.get();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.infra;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Queues;
+import lombok.Data;
+import lombok.Getter;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.function.ToLongFunction;
+
+/**
+ * A history which holds the most recent entries, evicting
+ * the oldest once it holds either too many entries or too
+ * many estimated bytes.
+ *
+ * <p>The byte sizes are estimates of the debugger heap that
+ * each entry retains, so that a session left attached for
+ * a long time keeps a flat footprint.</p>
+ *
+ * @param <E> the entry type
+ */
+@ThreadSafe
+public class HistoryRing<E> implements Iterable<E> {
+    /** The name shown in the history stats */
+    @Getter
+    private final String name;
+    /** Estimates the retained size of an entry */
+    private final ToLongFunction<? super E> sizer;
+    /** The entries, oldest first */
+    @GuardedBy("this")
+    private final Queue<Entry<E>> entries = Queues.newArrayDeque();
+    /** The maximum number of entries */
+    @GuardedBy("this")
+    private int maxEntries;
+    /** The maximum estimated bytes of all entries */
+    @GuardedBy("this")
+    private long maxBytes;
+    /** The estimated bytes of all entries */
+    @GuardedBy("this")
+    private long bytes;
+    /** The number of entries evicted to make space */
+    @GuardedBy("this")
+    private long evictions;
+    /** The number of entries ever added */
+    @GuardedBy("this")
+    private long added;
+
+    public HistoryRing(String name, int maxEntries, long maxBytes, ToLongFunction<? super E> sizer) {
+        this.name = name;
+        this.sizer = sizer;
+        this.limit(maxEntries, maxBytes);
+    }
+
+    /**
+     * Sets the maximum size of this history, evicting the
+     * oldest entries if it is already larger.
+     *
+     * @param maxEntries the maximum number of entries
+     * @param maxBytes the maximum estimated bytes
+     */
+    public synchronized void limit(int maxEntries, long maxBytes) {
+        Preconditions.checkArgument(maxEntries > 0 && maxBytes > 0, "limits must be positive");
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.trim();
+    }
+
+    /**
+     * Adds a new entry, evicting the oldest entries if the
+     * history becomes too large.
+     *
+     * @param entry the entry to add
+     */
+    public synchronized void add(E entry) {
+        long size = this.sizer.applyAsLong(entry);
+        this.entries.add(new Entry<>(entry, size));
+        this.bytes += size;
+        this.added++;
+        this.trim();
+    }
+
+    @GuardedBy("this")
+    private void trim() {
+        // The newest entry is kept even if it is larger than
+        // the byte limit on its own
+        while (this.entries.size() > this.maxEntries ||
+                this.bytes > this.maxBytes && this.entries.size() > 1) {
+            this.bytes -= this.entries.poll().size;
+            this.evictions++;
+        }
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        this.bytes = 0;
+    }
+
+    /**
+     * Iterates over a snapshot of the entries, oldest
+     * first.
+     *
+     * @return the entry iterator
+     */
+    @Override
+    public synchronized Iterator<E> iterator() {
+        ArrayList<E> snapshot = new ArrayList<>(this.entries.size());
+        for (Entry<E> entry : this.entries) {
+            snapshot.add(entry.value);
+        }
+
+        return snapshot.iterator();
+    }
+
+    /**
+     * Takes a snapshot of the occupancy of this history.
+     *
+     * @return the history stats
+     */
+    public synchronized Stats stats() {
+        return new Stats(this.name, this.entries.size(), this.maxEntries, this.bytes, this.maxBytes,
+                this.evictions, this.added);
+    }
+
+    /**
+     * A snapshot of the occupancy of a history.
+     */
+    @Data
+    @Immutable
+    public static class Stats {
+        private final String name;
+        private final int entries;
+        private final int maxEntries;
+        private final long bytes;
+        private final long maxBytes;
+        private final long evictions;
+        private final long added;
+    }
+
+    /**
+     * An entry together with its estimated size.
+     */
+    private static final class Entry<E> {
+        final E value;
+        final long size;
+
+        Entry(E value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+}
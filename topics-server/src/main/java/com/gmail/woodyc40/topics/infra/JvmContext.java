@@ -18,14 +18,20 @@ package com.gmail.woodyc40.topics.infra;
 
 import com.gmail.woodyc40.topics.Main;
 import com.gmail.woodyc40.topics.cmd.LsJvm;
+import com.gmail.woodyc40.topics.protocol.SignalIn;
+import com.gmail.woodyc40.topics.protocol.SignalOut;
 import com.gmail.woodyc40.topics.server.AgentServer;
 import com.google.common.collect.Maps;
-import com.sun.jdi.*;
+import com.sun.jdi.Bootstrap;
+import com.sun.jdi.Location;
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.ThreadReference;
+import com.sun.jdi.VirtualMachine;
 import com.sun.jdi.connect.AttachingConnector;
 import com.sun.jdi.connect.Connector;
 import com.sun.jdi.connect.IllegalConnectorArgumentsException;
-import com.sun.jdi.event.*;
-import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.event.BreakpointEvent;
+import com.sun.jdi.event.EventSet;
 import com.sun.tools.jdi.ProcessAttachingConnector;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
@@ -38,7 +44,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Holds the current state of the JVM which is being
@@ -52,20 +58,44 @@ public final class JvmContext {
     /** The collection of paths leading to class sources */
     @Getter
     private final Map<String, Path> sourcePath = Maps.newHashMap();
-    /** Mapping of FQN:LN breakpoint info to disable breakpoints */
+    /** The breakpoints set by the user */
     @Getter
-    private final Map<String, BreakpointRequest> breakpoints = new HashMap<>();
-    /** The previous breakpoint frames */
+    private final BreakpointRegistry breakpoints = new BreakpointRegistry();
+    /** The names of the classes loaded in the VM */
     @Getter
-    private final Queue<List<StackFrame>> previousFrames = new ConcurrentLinkedQueue<>();
+    private final ClassIndex classes = new ClassIndex();
+    /** The breakpoints waiting for their class to load */
     @Getter
-    private final Queue<Frame> returns = new ConcurrentLinkedQueue<>();
+    private final DeferredBreakpoints deferred = new DeferredBreakpoints(this);
+    /** The breakpoints whose condition is tested in the VM */
+    @Getter
+    private final ConditionalBreakpoints conditional = new ConditionalBreakpoints(this);
+    /** The breakpoints which log values without stopping */
+    @Getter
+    private final Logpoints logpoints = new Logpoints();
+    /** Captures the values returned before breakpoints */
+    @Getter
+    private final ReturnCapture returnCapture = new ReturnCapture(this);
+    /** Resumes held threads and disables hot breakpoints */
+    @Getter
+    private final Governor governor = new Governor(this);
+    /** The previous breakpoint stacks */
+    @Getter
+    private final HistoryRing<CapturedStack> previousFrames =
+            new HistoryRing<>("frames", 256, 16L << 20, CapturedStack::estimateSize);
+    /** The values returned before breakpoints */
+    @Getter
+    private final ReturnStore returns = new ReturnStore(4096);
     /** Lock used to protect the breakpoint events */
     @Getter
     private final Object lock = new Object();
-    /** The agent server used to receive method bytes */
+    /** The agent server used to receive method calls */
     @Getter
     private final AgentServer server;
+    /** The number of frames read when a breakpoint is hit */
+    @Getter
+    @Setter
+    private volatile int captureDepth = 32;
     /** Should the VM exit() when detached? */
     @Getter
     @Setter
@@ -76,22 +106,19 @@ public final class JvmContext {
     /** The virtual machine that is currently attached */
     @Getter
     private VirtualMachine vm;
-    /** The listener thread for VM breakpoints */
-    private volatile Thread breakpointListener;
+    /** The stages processing the VM's events */
+    @Getter
+    private volatile EventPipeline pipeline;
     /** The class that is currently being modified */
     @Getter
     @Setter
     private ReferenceType currentRef;
-    /** The current breakpoint that is active on the VM */
+    /** The threads suspended at a breakpoint, in hit order */
     @GuardedBy("lock")
-    @Getter
-    @Setter
-    private BreakpointEvent currentBreakpoint;
-    /** The current eventSet used by the current breakpoint */
+    private final Map<ThreadReference, Suspension> suspensions = new LinkedHashMap<>();
+    /** The suspended thread which commands act upon */
     @GuardedBy("lock")
-    @Getter
-    @Setter
-    private EventSet resumeSet;
+    private Suspension selected;
 
     /**
      * Initializes the context singleton.
@@ -176,83 +203,18 @@ public final class JvmContext {
         arg.setValue(String.valueOf(pid));
         try {
             this.vm = pac.attach(args);
-            this.breakpointListener = new Thread(new Runnable() {
-                final EventQueue queue = vm.eventQueue();
-
-                @Override
-                public void run() {
-                    while (!Thread.currentThread().isInterrupted()) {
-                        try {
-                            EventSet eventSet = this.queue.remove();
-
-                            for (Event event : eventSet) {
-                                if (event instanceof BreakpointEvent) {
-                                    BreakpointEvent e = (BreakpointEvent) event;
-
-                                    List<StackFrame> frames = new ArrayList<>();
-                                    for (int i = 0; i < Integer.MAX_VALUE; i++) {
-                                        try {
-                                            frames.add(e.thread().frame(i));
-                                        } catch (IncompatibleThreadStateException e1) {
-                                            e1.printStackTrace();
-                                        } catch (IndexOutOfBoundsException e1) {
-                                            break;
-                                        }
-                                    }
-                                    previousFrames.add(frames);
-
-                                    synchronized (lock) {
-                                        currentBreakpoint = e;
-                                        resumeSet = eventSet;
-                                    }
-                                    Main.printAsync("Hit breakpoint " + e.location().sourceName() + ":" + e.location().lineNumber());
-
-                                    String string = lookupLine(e.location().declaringType().name(), e.location().lineNumber(), 3);
-                                    if (string != null && !string.isEmpty()) {
-                                        Main.printAsync("Code context:");
-                                        Main.printAsync(string);
-                                    }
-                                } else if (event instanceof MethodEntryEvent) {
-                                } else if (event instanceof MethodExitEvent) {
-                                    MethodExitEvent exit = (MethodExitEvent) event;
-                                    Value value = exit.returnValue();
-                                    ThreadReference thread = exit.thread();
-                                    if (!thread.isAtBreakpoint()) {
-                                        eventSet.resume();
-                                        continue;
-                                    }
-
-                                    StackFrame frame;
-                                    try {
-                                        frame = thread.frames().get(0);
-                                    } catch (IncompatibleThreadStateException e) {
-                                        System.out.println("abort: wrong thread state");
-                                        continue;
-                                    }
-
-                                    returns.add(new Frame(exit.location(), value, frame.location().method().toString(), System.currentTimeMillis()));
-                                }
-                            }
-                        } catch (AbsentInformationException e) {
-                            throw new RuntimeException(e);
-                        } catch (VMDisconnectedException e) {
-                            breakpointListener = null;
-                            JvmContext.this.detach();
-                            break;
-                        } catch (InterruptedException e) {
-                            break;
-                        }
-                    }
-                }
-            });
-            this.breakpointListener.setDaemon(true);
-            this.breakpointListener.start();
+            this.classes.attach(this.vm);
+            this.pipeline = new EventPipeline(this, this.vm);
+            this.pipeline.start();
         } catch (IOException | IllegalConnectorArgumentsException e) {
             this.currentPid = -1;
             throw new RuntimeException(e);
         }
 
         System.out.println("Successfully attached to " + pid);
+        if (this.server.attachShared(pid)) {
+            System.out.println("Using shared memory agent transport");
+        }
     }
 
     /**
@@ -263,35 +225,278 @@ public final class JvmContext {
             return;
         }
 
-        System.out.println("Detached from JVM " + this.currentPid);
+        int pid = this.currentPid;
+        System.out.println("Detached from JVM " + pid);
         this.currentPid = -1;
 
-        if (this.breakpointListener != null) {
-            this.breakpointListener.interrupt();
+        this.server.disconnect(pid);
+        this.currentRef = null;
+        this.sourcePath.clear();
+        this.previousFrames.clear();
+        this.returns.clear();
+        synchronized (this.lock) {
+            this.suspensions.clear();
+            this.selected = null;
+        }
 
-            for (BreakpointRequest request : this.breakpoints.values()) {
-                request.disable();
-            }
-            this.breakpointListener = null;
+        VirtualMachine vm = null;
+        if (this.pipeline != null) {
+            this.pipeline.close();
+            this.deferred.clear(true);
+            this.conditional.clear(true);
+            this.logpoints.clear(true);
+            this.returnCapture.clear(true);
+
+            this.breakpoints.clear(this.vm);
+            this.classes.clear(this.vm);
+            this.pipeline = null;
+            vm = this.vm;
+        }
+
+        this.breakpoints.clear(null);
+        this.classes.clear(null);
+        this.deferred.clear(false);
+        this.conditional.clear(false);
+        this.logpoints.clear(false);
+        this.returnCapture.clear(false);
+        this.governor.reset();
+        this.vm = null;
 
+        // Only ended once nothing refers to it, so that the
+        // next attach starts from a clean state either way
+        if (vm != null) {
             if (this.closeOnDetach) {
-                this.vm.exit(3);
-                return;
+                vm.exit(3);
+            } else {
+                vm.dispose();
             }
+        }
+    }
 
-            this.vm.dispose();
+    /**
+     * Records a thread which has been suspended at a
+     * breakpoint, selecting it if no other thread is.
+     *
+     * @param event the breakpoint event
+     * @param eventSet the set to resume the thread with
+     * @param location the line the thread is suspended at
+     * @param frameIndex the index of the frame of the line
+     * @return the suspension
+     */
+    Suspension suspend(BreakpointEvent event, EventSet eventSet, Location location, int frameIndex) {
+        Suspension suspension = new Suspension(event, eventSet, location, frameIndex);
+        synchronized (this.lock) {
+            this.suspensions.put(event.thread(), suspension);
+            if (this.selected == null) {
+                this.selected = suspension;
+            }
         }
 
-        this.server.close();
-        this.currentRef = null;
-        this.sourcePath.clear();
-        this.previousFrames.clear();
+        return suspension;
+    }
+
+    /**
+     * Resumes the selected thread, and selects the thread
+     * which has been suspended the longest, if any.
+     *
+     * @return the resumed thread, or {@code null} if no
+     * thread was selected
+     */
+    public Suspension resumeSelected() {
+        Suspension selected = this.getSelected();
+        return selected == null ? null : this.resume(selected.getThread());
+    }
+
+    /**
+     * Resumes a thread suspended at a breakpoint. If it was
+     * selected, the thread which has been suspended the
+     * longest is selected instead.
+     *
+     * @param thread the thread to resume
+     * @return the resumed thread, or {@code null} if it was
+     * not suspended at a breakpoint
+     */
+    public Suspension resume(ThreadReference thread) {
+        Suspension resumed;
         synchronized (this.lock) {
-            this.currentBreakpoint = null;
-            this.resumeSet = null;
+            resumed = this.suspensions.remove(thread);
+            if (resumed == null) {
+                return null;
+            }
+
+            if (this.selected == resumed) {
+                Iterator<Suspension> it = this.suspensions.values().iterator();
+                this.selected = it.hasNext() ? it.next() : null;
+            }
         }
-        this.breakpoints.clear();
-        this.vm = null;
+
+        resumed.getEventSet().resume();
+        this.governor.resumed(resumed);
+        return resumed;
+    }
+
+    /**
+     * Selects the suspended thread which commands act upon.
+     *
+     * @param thread the suspended thread
+     * @return {@code true} if the thread is suspended at a
+     * breakpoint
+     */
+    public boolean select(ThreadReference thread) {
+        synchronized (this.lock) {
+            Suspension suspension = this.suspensions.get(thread);
+            if (suspension == null) {
+                return false;
+            }
+
+            this.selected = suspension;
+            return true;
+        }
+    }
+
+    /**
+     * Obtains the threads suspended at a breakpoint.
+     *
+     * @return the suspensions, in the order they were hit
+     */
+    public List<Suspension> getSuspensions() {
+        synchronized (this.lock) {
+            return new ArrayList<>(this.suspensions.values());
+        }
+    }
+
+    /**
+     * Obtains the selected suspended thread.
+     *
+     * @return the selected suspension, or {@code null}
+     */
+    public Suspension getSelected() {
+        synchronized (this.lock) {
+            return this.selected;
+        }
+    }
+
+    /**
+     * Obtains the breakpoint at which the selected thread is
+     * suspended.
+     *
+     * @return the breakpoint event, or {@code null}
+     */
+    public BreakpointEvent getCurrentBreakpoint() {
+        Suspension selected = this.getSelected();
+        return selected == null ? null : selected.getEvent();
+    }
+
+    /**
+     * Obtains the stack read when the selected thread hit
+     * its breakpoint.
+     *
+     * @return the stack, or {@code null} if it has not yet
+     * been read
+     */
+    public CapturedStack getCurrentStack() {
+        Suspension selected = this.getSelected();
+        return selected == null ? null : selected.getStack();
+    }
+
+    /**
+     * Detaches after the VM has disconnected on its own,
+     * without making any further requests to it.
+     *
+     * @param pipeline the pipeline of the disconnected VM
+     */
+    void disconnected(EventPipeline pipeline) {
+        if (this.pipeline != pipeline) {
+            return;
+        }
+
+        pipeline.close();
+        this.pipeline = null;
+        this.detach();
+    }
+
+    /**
+     * Sets the requests in the classes matching a name again
+     * after the agent has replaced their code.
+     *
+     * @param className the fully qualified or simple name
+     * which the agent matched the classes with
+     * @param vm the VM the classes are loaded in
+     */
+    public void retransformed(String className, VirtualMachine vm) {
+        if (this.vm != vm) {
+            return;
+        }
+
+        List<ReferenceType> types = className.indexOf('.') >= 0 ?
+                vm.classesByName(className) : this.classes.find(className);
+        for (ReferenceType type : types) {
+            String name = type.name();
+            if (name.equals(className) || name.endsWith("." + className) || name.endsWith("$" + className)) {
+                this.retransformed(type, vm);
+            }
+        }
+    }
+
+    /**
+     * Sets every request in a class again after the agent
+     * has replaced its code, which clears the breakpoints set
+     * in it without the debugger being told: those set by the
+     * user, the logpoints and the entries of capture scopes.
+     *
+     * @param type the class whose code was replaced
+     * @param vm the VM the class is loaded in
+     */
+    public void retransformed(ReferenceType type, VirtualMachine vm) {
+        if (this.vm != vm) {
+            return;
+        }
+
+        // The locations are resolved from the class as the VM
+        // now reports it, loaded by the same loader
+        for (ReferenceType fresh : vm.classesByName(type.name())) {
+            if (Objects.equals(fresh.classLoader(), type.classLoader())) {
+                type = fresh;
+                break;
+            }
+        }
+
+        List<BreakpointRegistry.Entry> lost = this.breakpoints.rearm(type, vm);
+        for (BreakpointRegistry.Entry entry : lost) {
+            Main.printAsync("warn: break #" + entry.getId() + " at " + entry.getKey() + " was lost, no code at its line");
+        }
+        this.returnCapture.release(lost, vm);
+        this.governor.forget(lost);
+
+        for (Logpoints.Logpoint logpoint : this.logpoints.rearm(type, vm)) {
+            Main.printAsync("warn: logpoint at " + logpoint.getKey() + " was lost, no code at its line");
+        }
+        this.returnCapture.rearm(type);
+    }
+
+    /**
+     * Sends a signal to the agent running in the attached
+     * VM.
+     *
+     * @param signal the signal to send
+     * @return {@code true} if the attached VM has a
+     * connected agent
+     */
+    public boolean send(SignalOut signal) {
+        return this.currentPid != -1 && this.server.write(this.currentPid, signal);
+    }
+
+    /**
+     * Sends a request to the agent running in the attached
+     * VM.
+     *
+     * @param signal the request signal
+     * @param responseType the type of the response signal
+     * @param <T> the response type
+     * @return the future response
+     */
+    public <T extends SignalIn> CompletableFuture<T> request(SignalOut signal, Class<T> responseType) {
+        return this.server.request(this.currentPid, signal, responseType);
     }
 
     /**
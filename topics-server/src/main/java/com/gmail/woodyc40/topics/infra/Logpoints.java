@@ -0,0 +1,532 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.infra;
+
+import com.gmail.woodyc40.topics.Main;
+import com.gmail.woodyc40.topics.cmd.Inspect;
+import com.sun.jdi.*;
+import com.sun.jdi.event.BreakpointEvent;
+import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.EventRequest;
+import com.sun.jdi.request.EventRequestManager;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Breakpoints which log values from the frame instead of
+ * waiting for the user.
+ *
+ * <p>A hit only suspends its own thread for as long as it
+ * takes to fetch the values, using one request each for the
+ * locals, the instance fields and the static fields which
+ * are logged, after which the drain stage resumes it. The
+ * records are formatted by a separate thread, which reads
+ * strings from the VM while the thread runs on and writes
+ * each batch of records before flushing the log file.</p>
+ *
+ * <p>At most {@link #CAPACITY} records wait to be
+ * formatted. Hits beyond that are dropped without reading
+ * any values, and counted per logpoint, so a hot logpoint
+ * cannot grow the debugger's heap faster than the console
+ * and files are written.</p>
+ */
+@ThreadSafe
+public class Logpoints {
+    /** The request property holding the logpoint */
+    private static final String PROPERTY = "logpoint";
+    /** The most records formatted before flushing */
+    private static final int BATCH = 256;
+    /** The most records waiting to be formatted */
+    private static final int CAPACITY = 16 * BATCH;
+
+    /** The captured records waiting to be formatted */
+    private final BlockingQueue<Record> records = new LinkedBlockingQueue<>(CAPACITY);
+    /** The logpoints which have been set */
+    @GuardedBy("this")
+    private final List<Logpoint> logpoints = new ArrayList<>();
+
+    public Logpoints() {
+        Thread formatter = new Thread(this::runFormatter, "JDB logpoint formatter");
+        formatter.setDaemon(true);
+        formatter.start();
+    }
+
+    /**
+     * Sets a logpoint at every location of a line.
+     *
+     * @param vm the attached VM
+     * @param type the loaded class
+     * @param line the line to log at
+     * @param template the record template, in which each
+     * {@code {name}} is replaced by the value of a local or
+     * field
+     * @param file the file to append records to as well as
+     * the console, or {@code null}
+     * @return the logpoint
+     * @throws AbsentInformationException if the class has
+     * no line information
+     * @throws IOException if the file cannot be opened
+     */
+    public Logpoint add(VirtualMachine vm, ReferenceType type, int line, String template, Path file)
+            throws AbsentInformationException, IOException {
+        List<Location> locations = type.locationsOfLine(line);
+        if (locations.isEmpty()) {
+            throw new AbsentInformationException("no code at " + type.name() + ":" + line);
+        }
+
+        BufferedWriter writer = file == null ? null : Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        Logpoint logpoint = new Logpoint(type.name(), line, template, file, writer);
+        logpoint.set(vm, locations);
+
+        synchronized (this) {
+            this.logpoints.add(logpoint);
+        }
+        return logpoint;
+    }
+
+    /**
+     * Sets the logpoints in a class again after the agent has
+     * replaced its code, which clears the breakpoints set in
+     * it.
+     *
+     * @param type the class whose code was replaced
+     * @param vm the VM the class is loaded in
+     * @return the logpoints which could not be set again,
+     * and were removed
+     */
+    public List<Logpoint> rearm(ReferenceType type, VirtualMachine vm) {
+        List<Logpoint> lost = new ArrayList<>();
+        for (Logpoint logpoint : this.getLogpoints()) {
+            if (!logpoint.className.equals(type.name())) {
+                continue;
+            }
+
+            List<Location> locations;
+            try {
+                locations = type.locationsOfLine(logpoint.line);
+            } catch (AbsentInformationException e) {
+                locations = Collections.emptyList();
+            }
+
+            if (locations.isEmpty()) {
+                synchronized (this) {
+                    this.logpoints.remove(logpoint);
+                }
+                logpoint.close(true);
+                lost.add(logpoint);
+            } else {
+                logpoint.set(vm, locations);
+            }
+        }
+        return lost;
+    }
+
+    /**
+     * Captures the values logged by a logpoint hit. Called
+     * by the drain stage, which resumes the thread after.
+     *
+     * @param event the breakpoint event
+     * @return {@code true} if the breakpoint is a logpoint,
+     * so the thread should be resumed
+     */
+    boolean capture(BreakpointEvent event) {
+        Object property = event.request().getProperty(PROPERTY);
+        if (!(property instanceof Logpoint)) {
+            return false;
+        }
+
+        Logpoint logpoint = (Logpoint) property;
+        if (this.records.remainingCapacity() == 0) {
+            logpoint.dropped.incrementAndGet();
+            return true;
+        }
+
+        try {
+            if (!this.records.offer(logpoint.capture(event))) {
+                logpoint.dropped.incrementAndGet();
+            }
+        } catch (IncompatibleThreadStateException e) {
+            Main.printAsync("abort: logpoint " + logpoint.key + " failed: " + e);
+        }
+        return true;
+    }
+
+    /**
+     * Obtains the logpoints which have been set.
+     *
+     * @return the logpoints
+     */
+    public synchronized List<Logpoint> getLogpoints() {
+        return new ArrayList<>(this.logpoints);
+    }
+
+    /**
+     * Removes the logpoints at a line.
+     *
+     * @param key the class name and line, separated by a
+     * colon
+     * @return {@code true} if any logpoint was removed
+     */
+    public boolean remove(String key) {
+        boolean removed = false;
+        for (Logpoint logpoint : this.getLogpoints()) {
+            if (logpoint.key.equals(key) || logpoint.key.endsWith("." + key)) {
+                synchronized (this) {
+                    this.logpoints.remove(logpoint);
+                }
+                logpoint.close(true);
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes every logpoint.
+     *
+     * @param attached whether the VM is still attached so
+     * the requests should be deleted
+     */
+    public void clear(boolean attached) {
+        List<Logpoint> cleared;
+        synchronized (this) {
+            cleared = new ArrayList<>(this.logpoints);
+            this.logpoints.clear();
+        }
+
+        for (Logpoint logpoint : cleared) {
+            logpoint.close(attached);
+        }
+    }
+
+    /**
+     * Formats records in batches, flushing the log files
+     * once per batch.
+     */
+    private void runFormatter() {
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss.SSS");
+        List<Record> batch = new ArrayList<>(BATCH);
+        Set<Logpoint> written = new HashSet<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(this.records.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            this.records.drainTo(batch, BATCH - 1);
+
+            for (Record record : batch) {
+                String line = time.format(new Date(record.timeMillis)) + " [" + threadName(record.thread) + "] " +
+                        record.logpoint.format(record.values);
+                Main.printAsync(line);
+                if (record.logpoint.write(line)) {
+                    written.add(record.logpoint);
+                }
+            }
+
+            for (Logpoint logpoint : written) {
+                logpoint.flush();
+            }
+            batch.clear();
+            written.clear();
+        }
+    }
+
+    private static String threadName(ThreadReference thread) {
+        try {
+            return thread.name();
+        } catch (ObjectCollectedException | VMDisconnectedException e) {
+            return "thread " + thread.uniqueID();
+        }
+    }
+
+    /**
+     * A line at which values are logged.
+     */
+    public static class Logpoint {
+        /** The class name and line */
+        @Getter
+        private final String key;
+        /** The name of the class */
+        private final String className;
+        /** The line */
+        private final int line;
+        /** The record template */
+        @Getter
+        private final String template;
+        /** The file records are appended to, if any */
+        @Getter
+        private final Path file;
+        /** The text between the logged values */
+        private final String[] literals;
+        /** The names of the logged values */
+        private final String[] names;
+        /** The variables of each name, by hit location */
+        private final Map<Location, Resolved> resolved = new ConcurrentHashMap<>();
+        /** The breakpoints at each location of the line */
+        @GuardedBy("this")
+        private final List<BreakpointRequest> requests = new ArrayList<>();
+        /** The writer of the file */
+        @GuardedBy("this")
+        private BufferedWriter writer;
+        /** The number of records captured */
+        @Getter
+        private volatile long hits;
+        /** The number of hits dropped as the formatter fell behind */
+        private final AtomicLong dropped = new AtomicLong();
+
+        Logpoint(String className, int line, String template, Path file, BufferedWriter writer) {
+            this.key = className + ":" + line;
+            this.className = className;
+            this.line = line;
+            this.template = template;
+            this.file = file;
+            this.writer = writer;
+
+            List<String> literals = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            int from = 0;
+            for (int open; (open = template.indexOf('{', from)) >= 0; ) {
+                int close = template.indexOf('}', open);
+                if (close < 0) {
+                    break;
+                }
+                literals.add(template.substring(from, open));
+                names.add(template.substring(open + 1, close).trim());
+                from = close + 1;
+            }
+            literals.add(template.substring(from));
+
+            this.literals = literals.toArray(new String[0]);
+            this.names = names.toArray(new String[0]);
+        }
+
+        public long getDropped() {
+            return this.dropped.get();
+        }
+
+        /**
+         * Replaces the breakpoints of the logpoint with ones
+         * at the given locations.
+         *
+         * @param vm the VM the locations are in
+         * @param locations the locations of the line
+         */
+        private synchronized void set(VirtualMachine vm, List<Location> locations) {
+            EventRequestManager manager = vm.eventRequestManager();
+            manager.deleteEventRequests(this.requests);
+            this.requests.clear();
+            // Variables resolved in the replaced code may
+            // have moved
+            this.resolved.clear();
+
+            for (Location location : locations) {
+                BreakpointRequest request = manager.createBreakpointRequest(location);
+                request.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+                request.putProperty(PROPERTY, this);
+                request.enable();
+                this.requests.add(request);
+            }
+        }
+
+        /**
+         * Fetches the logged values while the thread is
+         * suspended.
+         *
+         * @param event the breakpoint event
+         * @return the record to format
+         */
+        private Record capture(BreakpointEvent event) throws IncompatibleThreadStateException {
+            ThreadReference thread = event.thread();
+            StackFrame frame = thread.frame(0);
+            Resolved resolved = this.resolved.get(event.location());
+            if (resolved == null) {
+                resolved = new Resolved(frame, this.names);
+                this.resolved.put(event.location(), resolved);
+            }
+
+            Map<LocalVariable, Value> locals = resolved.locals.isEmpty() ?
+                    Collections.emptyMap() : frame.getValues(resolved.locals);
+            ObjectReference self = frame.thisObject();
+            Map<Field, Value> fields = resolved.fields.isEmpty() || self == null ?
+                    Collections.emptyMap() : self.getValues(resolved.fields);
+            Map<Field, Value> statics = resolved.statics.isEmpty() ?
+                    Collections.emptyMap() : frame.location().declaringType().getValues(resolved.statics);
+
+            Object[] values = new Object[this.names.length];
+            for (int i = 0; i < values.length; i++) {
+                Object variable = resolved.variables[i];
+                if (variable instanceof LocalVariable) {
+                    values[i] = locals.get(variable);
+                } else if (variable instanceof Field) {
+                    values[i] = ((Field) variable).isStatic() ? statics.get(variable) : fields.get(variable);
+                } else {
+                    values[i] = Resolved.MISSING;
+                }
+            }
+
+            this.hits++;
+            return new Record(this, thread, values, System.currentTimeMillis());
+        }
+
+        private String format(Object[] values) {
+            StringBuilder builder = new StringBuilder(this.literals[0]);
+            for (int i = 0; i < values.length; i++) {
+                Object value = values[i];
+                if (value == Resolved.MISSING) {
+                    builder.append('<').append(this.names[i]).append(" not visible>");
+                } else {
+                    try {
+                        builder.append(Inspect.processValue((Value) value));
+                    } catch (ObjectCollectedException | VMDisconnectedException e) {
+                        builder.append("<collected>");
+                    }
+                }
+                builder.append(this.literals[i + 1]);
+            }
+            return builder.toString();
+        }
+
+        private synchronized boolean write(String line) {
+            if (this.writer == null) {
+                return false;
+            }
+
+            try {
+                this.writer.write(line);
+                this.writer.newLine();
+                return true;
+            } catch (IOException e) {
+                Main.printAsync("abort: cannot write " + this.file + ": " + e.getMessage());
+                this.closeWriter();
+                return false;
+            }
+        }
+
+        private synchronized void flush() {
+            if (this.writer != null) {
+                try {
+                    this.writer.flush();
+                } catch (IOException e) {
+                    Main.printAsync("abort: cannot write " + this.file + ": " + e.getMessage());
+                    this.closeWriter();
+                }
+            }
+        }
+
+        private synchronized void close(boolean deleteRequests) {
+            if (deleteRequests) {
+                for (BreakpointRequest request : this.requests) {
+                    request.virtualMachine().eventRequestManager().deleteEventRequest(request);
+                }
+            }
+            this.requests.clear();
+            this.closeWriter();
+        }
+
+        @GuardedBy("this")
+        private void closeWriter() {
+            if (this.writer != null) {
+                try {
+                    this.writer.close();
+                } catch (IOException ignored) {
+                }
+                this.writer = null;
+            }
+        }
+    }
+
+    /**
+     * The variables which the names of a logpoint refer to
+     * at one location, grouped so each kind is fetched in a
+     * single request.
+     */
+    private static final class Resolved {
+        /** The value of a name which is not visible */
+        static final Object MISSING = new Object();
+
+        /** The local, field or nothing of each name */
+        final Object[] variables;
+        /** The locals to fetch */
+        final List<LocalVariable> locals = new ArrayList<>();
+        /** The instance fields to fetch */
+        final List<Field> fields = new ArrayList<>();
+        /** The static fields to fetch */
+        final List<Field> statics = new ArrayList<>();
+
+        Resolved(StackFrame frame, String[] names) {
+            ReferenceType type = frame.location().declaringType();
+            List<LocalVariable> visible;
+            try {
+                visible = frame.visibleVariables();
+            } catch (AbsentInformationException e) {
+                visible = Collections.emptyList();
+            }
+
+            this.variables = new Object[names.length];
+            for (int i = 0; i < names.length; i++) {
+                String name = names[i];
+                Object variable = null;
+                if (!name.startsWith("this.")) {
+                    for (LocalVariable local : visible) {
+                        if (local.name().equals(name)) {
+                            variable = local;
+                            this.locals.add(local);
+                            break;
+                        }
+                    }
+                }
+
+                if (variable == null) {
+                    Field field = type.fieldByName(name.startsWith("this.") ? name.substring(5) : name);
+                    if (field != null) {
+                        variable = field;
+                        (field.isStatic() ? this.statics : this.fields).add(field);
+                    }
+                }
+                this.variables[i] = variable;
+            }
+        }
+    }
+
+    /**
+     * The values captured by a logpoint hit.
+     */
+    @RequiredArgsConstructor
+    private static final class Record {
+        final Logpoint logpoint;
+        final ThreadReference thread;
+        final Object[] values;
+        final long timeMillis;
+    }
+}
@@ -0,0 +1,675 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.infra;
+
+import com.gmail.woodyc40.topics.Main;
+import com.gmail.woodyc40.topics.codec.CallLayout;
+import com.gmail.woodyc40.topics.protocol.CallSite;
+import com.gmail.woodyc40.topics.protocol.SignalInRespCallSites;
+import com.gmail.woodyc40.topics.protocol.SignalInRespCapture;
+import com.gmail.woodyc40.topics.protocol.SignalOutClearCapture;
+import com.gmail.woodyc40.topics.protocol.SignalOutReqCapture;
+import com.gmail.woodyc40.topics.protocol.SignalOutReqMethod;
+import com.sun.jdi.*;
+import com.sun.jdi.event.BreakpointEvent;
+import com.sun.jdi.event.MethodExitEvent;
+import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.EventRequest;
+import com.sun.jdi.request.EventRequestManager;
+import com.sun.jdi.request.MethodExitRequest;
+import lombok.RequiredArgsConstructor;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.*;
+
+/**
+ * Captures the values returned by the calls made before a
+ * breakpoint, for the breakpoints set to capture them.
+ *
+ * <p>The agent is first asked to record the calls of the
+ * breakpoint's method, with their arguments, into a ring
+ * kept by each thread, which is read in a few batched
+ * requests when the breakpoint is hit. The agent replaces
+ * the code of the class to do so, which clears the
+ * breakpoints set in it, so they are set again once it
+ * responds.</p>
+ *
+ * <p>If the agent cannot record the calls, the values are
+ * captured through method exit events instead. Capture is
+ * scoped to the thread running the
+ * breakpoint's method, and only while it runs it. A
+ * breakpoint at the start of the method arms the thread's
+ * method exit requests, which are filtered to the thread
+ * and to the classes that the method calls, and the
+ * requests are disarmed once the thread suspends at the
+ * breakpoint or leaves the method. Outside of that window
+ * no exit events are raised at all.</p>
+ *
+ * <p>The requests of a method are kept for as long as any
+ * breakpoint in it is set, and are deleted with the last
+ * one, so the VM runs as it did before once the
+ * breakpoints are cleared.</p>
+ */
+@ThreadSafe
+@RequiredArgsConstructor
+public class ReturnCapture {
+    /** The request property holding the scope */
+    private static final String SCOPE = "returnScope";
+    /** Packages excluded from subtype matches of a filter */
+    private static final String[] EXCLUDED = { "java.*", "javax.*", "sun.*", "com.sun.*", "jdk.*" };
+    /** The most threads whose idle requests are kept */
+    private static final int MAX_THREADS = 64;
+    /** The number of calls a ring keeps */
+    private static final int CAPACITY = CallLayout.CAPACITY;
+    /** The slots of each call in the ring's data */
+    private static final int WIDTH = CallLayout.WIDTH;
+
+    /** The context which holds the returns */
+    private final JvmContext context;
+    /** The capture scope of each breakpoint method */
+    @GuardedBy("this")
+    private final Map<Method, Scope> scopes = new HashMap<>();
+    /** The capture scope of each breakpoint, by ID */
+    @GuardedBy("this")
+    private final Map<Integer, Scope> byBreakpoint = new HashMap<>();
+
+    /**
+     * Records that a breakpoint depends on the capture of
+     * the values returned before it, so that its requests
+     * are kept until every such breakpoint is removed.
+     *
+     * @param vm the VM in which the breakpoint is set
+     * @param breakpoint the breakpoint
+     */
+    public void acquire(VirtualMachine vm, BreakpointRegistry.Entry breakpoint) {
+        Method method = breakpoint.getRequest().location().method();
+        Scope created = null;
+        synchronized (this) {
+            Scope scope = this.scopes.get(method);
+            if (scope == null) {
+                scope = created = new Scope(vm, method);
+                this.scopes.put(method, scope);
+            }
+
+            scope.dependents.add(breakpoint.getId());
+            this.byBreakpoint.put(breakpoint.getId(), scope);
+        }
+
+        if (created != null) {
+            this.record(created);
+        }
+    }
+
+    /**
+     * Asks the agent to record the calls of a method, or to
+     * find the calls to capture the returns of if it cannot.
+     *
+     * @param scope the scope of the method
+     */
+    private void record(Scope scope) {
+        Method method = scope.method;
+        this.context.request(new SignalOutReqCapture(method.declaringType().name(), method.name(), method.signature()),
+                SignalInRespCapture.class).
+                whenComplete((resp, t) -> {
+                    if (t != null) {
+                        this.captureExits(scope, t);
+                    } else if (!scope.recorded()) {
+                        // Every breakpoint was removed meanwhile
+                        this.restore(scope);
+                    } else if (this.context.getVm() == scope.vm) {
+                        Main.printAsync("returns: " + resp.getStatus());
+                        this.retransformed(scope);
+                    }
+                });
+    }
+
+    /**
+     * Finds the calls of a method to capture the returns of
+     * through exit events, after the agent failed to record
+     * them.
+     *
+     * @param scope the scope of the method
+     * @param cause why the agent did not record the calls
+     */
+    private void captureExits(Scope scope, Throwable cause) {
+        Method method = scope.method;
+        Main.printAsync("warn: calls are not recorded, capturing returns through exit events: " + cause.getMessage());
+        this.context.request(new SignalOutReqMethod(method.declaringType().name(), method.name(), method.signature()),
+                SignalInRespCallSites.class).
+                whenComplete((resp, t) -> {
+                    if (t != null) {
+                        Main.printAsync("warn: return values will not be captured: " + t.getMessage());
+                    } else if (this.context.getVm() == scope.vm) {
+                        scope.addCalls(resp.getCallSites());
+                    }
+                });
+    }
+
+    /**
+     * Asks the agent to stop recording the calls of a method
+     * whose breakpoints have all been removed.
+     *
+     * @param scope the scope of the method
+     */
+    private void restore(Scope scope) {
+        Method method = scope.method;
+        this.context.request(new SignalOutClearCapture(method.declaringType().name(), method.name(), method.signature()),
+                SignalInRespCapture.class).
+                whenComplete((resp, t) -> {
+                    if (t != null) {
+                        Main.printAsync("warn: calls of " + method + " are still recorded: " + t.getMessage());
+                    } else {
+                        this.retransformed(scope);
+                    }
+                });
+    }
+
+    /**
+     * Sets the requests in the class of a scope's method again
+     * once the agent has replaced its code.
+     *
+     * @param scope the scope of the method
+     */
+    private void retransformed(Scope scope) {
+        try {
+            this.context.retransformed(scope.method.declaringType(), scope.vm);
+        } catch (RuntimeException e) {
+            Main.printAsync("warn: failed to set the requests in " + scope.method.declaringType().name() +
+                    " again: " + e);
+        }
+    }
+
+    /**
+     * Sets the breakpoints which arm capture in the methods
+     * of a class again after the agent has replaced its code.
+     *
+     * @param type the class whose code was replaced
+     */
+    void rearm(ReferenceType type) {
+        List<Scope> scopes = new ArrayList<>();
+        synchronized (this) {
+            for (Scope scope : this.scopes.values()) {
+                if (scope.method.declaringType().equals(type)) {
+                    scopes.add(scope);
+                }
+            }
+        }
+
+        for (Scope scope : scopes) {
+            scope.rearm(type);
+        }
+    }
+
+    /**
+     * Records that the given breakpoints have been removed,
+     * deleting the capture requests which no remaining
+     * breakpoint depends on.
+     *
+     * @param breakpoints the removed breakpoints
+     * @param vm the VM in which the requests are deleted, or
+     * {@code null} if it is no longer attached
+     */
+    public void release(Collection<BreakpointRegistry.Entry> breakpoints, VirtualMachine vm) {
+        List<Scope> unused = new ArrayList<>();
+        synchronized (this) {
+            for (BreakpointRegistry.Entry breakpoint : breakpoints) {
+                Scope scope = this.byBreakpoint.remove(breakpoint.getId());
+                if (scope != null && scope.dependents.remove(breakpoint.getId()) && scope.dependents.isEmpty()) {
+                    this.scopes.remove(scope.method);
+                    unused.add(scope);
+                }
+            }
+        }
+
+        for (Scope scope : unused) {
+            if (scope.delete(vm != null) && vm != null) {
+                this.restore(scope);
+            }
+        }
+    }
+
+    /**
+     * Obtains the number of breakpoints which depend on the
+     * capture requests of each class whose returns are
+     * captured.
+     *
+     * @return the number of breakpoints, by class name
+     */
+    public synchronized Map<String, Integer> getOwners() {
+        Map<String, Integer> owners = new TreeMap<>();
+        for (Scope scope : this.scopes.values()) {
+            for (ReferenceType owner : scope.getOwners()) {
+                owners.merge(owner.name(), scope.dependents.size(), Integer::sum);
+            }
+        }
+        return owners;
+    }
+
+    /**
+     * Determines whether the returns before the breakpoints
+     * in a method are captured, which is only the case if
+     * one of them was set to capture them.
+     *
+     * @param method the breakpoint method
+     * @return {@code true} if the returns are captured
+     */
+    public synchronized boolean isCaptured(Method method) {
+        return this.scopes.containsKey(method);
+    }
+
+    /**
+     * Arms capture for a thread which entered a breakpoint
+     * method. Called by the drain stage.
+     *
+     * @param event the breakpoint event
+     * @return {@code true} if the breakpoint is the entry of
+     * a breakpoint method, so the thread should be resumed
+     */
+    boolean entered(BreakpointEvent event) {
+        Object property = event.request().getProperty(SCOPE);
+        if (!(property instanceof Scope)) {
+            return false;
+        }
+
+        ((Scope) property).arm(event.thread());
+        return true;
+    }
+
+    /**
+     * Disarms capture for a thread which suspended at a
+     * breakpoint, and begins a new epoch of the returns to
+     * its method. Called by the drain stage.
+     *
+     * @param suspension the suspended thread
+     */
+    void suspended(Suspension suspension) {
+        Method method = suspension.getLocation().method();
+        suspension.setEpoch(this.context.getReturns().advance(method));
+
+        Scope scope;
+        synchronized (this) {
+            scope = this.scopes.get(method);
+        }
+
+        if (scope != null) {
+            scope.disarm(suspension.getThread());
+        }
+    }
+
+    /**
+     * Records the value returned by a call. Called by the
+     * drain stage.
+     *
+     * @param exit the method exit event
+     */
+    void exited(MethodExitEvent exit) {
+        Object property = exit.request().getProperty(SCOPE);
+        if (property instanceof Scope) {
+            ((Scope) property).exited(exit);
+        }
+    }
+
+    /**
+     * Reads the calls which the agent recorded before a
+     * breakpoint, while its thread is suspended. The ring is
+     * read in one request per field, and only the slots of
+     * the calls made since the method was entered.
+     *
+     * @param suspension the suspended thread
+     * @return the calls in the order they were made, or
+     * {@code null} if the agent does not record the calls of
+     * the method
+     */
+    List<CallRecord> fetch(Suspension suspension) {
+        Scope scope;
+        synchronized (this) {
+            scope = this.scopes.get(suspension.getLocation().method());
+        }
+        if (scope == null || !scope.isRecorded()) {
+            return null;
+        }
+
+        try {
+            StackFrame frame = suspension.frame();
+            Method method = frame.location().method();
+            List<LocalVariable> ringVar = method.variablesByName(CallLayout.LOCAL);
+            List<LocalVariable> startVar = method.variablesByName(CallLayout.START);
+            if (ringVar.isEmpty() || startVar.isEmpty()) {
+                // The thread entered before the code was replaced
+                return null;
+            }
+
+            Map<LocalVariable, Value> locals = frame.getValues(Arrays.asList(ringVar.get(0), startVar.get(0)));
+            ObjectReference ring = (ObjectReference) locals.get(ringVar.get(0));
+            int start = ((IntegerValue) locals.get(startVar.get(0))).value();
+
+            ReferenceType type = ring.referenceType();
+            Field data = type.fieldByName(CallLayout.DATA);
+            Field meta = type.fieldByName(CallLayout.META);
+            Field count = type.fieldByName(CallLayout.COUNT);
+            Map<Field, Value> fields = ring.getValues(Arrays.asList(data, meta, count));
+
+            int end = ((IntegerValue) fields.get(count)).value();
+            int n = Math.min(end - start, CAPACITY);
+            if (n <= 0) {
+                return Collections.emptyList();
+            }
+
+            int first = (end - n) & (CAPACITY - 1);
+            List<Value> metas = slice((ArrayReference) fields.get(meta), first, n, 1);
+            List<Value> values = slice((ArrayReference) fields.get(data), first, n, WIDTH);
+
+            List<CallRecord> calls = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                int flags = ((IntegerValue) metas.get(i)).value();
+                int base = i * WIDTH;
+                Value site = values.get(base);
+                calls.add(new CallRecord(site == null ? "?" : ((StringReference) site).value(),
+                        new ArrayList<>(values.subList(base + 2, base + 2 + (flags & CallLayout.ARGC))),
+                        values.get(base + 1), (flags & CallLayout.RETURNED) != 0));
+            }
+            return calls;
+        } catch (IncompatibleThreadStateException | AbsentInformationException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the slots of consecutive calls from an array of
+     * the ring, which may wrap around its end.
+     *
+     * @param array the array
+     * @param first the slot of the first call
+     * @param n the number of calls
+     * @param width the elements of each call
+     * @return the elements of the calls
+     */
+    private static List<Value> slice(ArrayReference array, int first, int n, int width) {
+        int head = Math.min(n, CAPACITY - first);
+        List<Value> values = new ArrayList<>(array.getValues(first * width, head * width));
+        if (head < n) {
+            values.addAll(array.getValues(0, (n - head) * width));
+        }
+        return values;
+    }
+
+    /**
+     * Removes every capture scope.
+     *
+     * @param attached whether the VM is still attached so
+     * the requests should be deleted
+     */
+    public void clear(boolean attached) {
+        List<Scope> cleared;
+        synchronized (this) {
+            cleared = new ArrayList<>(this.scopes.values());
+            this.scopes.clear();
+            this.byBreakpoint.clear();
+        }
+
+        // The VM is detaching, so the agent is not waited on
+        for (Scope scope : cleared) {
+            if (scope.delete(attached) && attached) {
+                Method method = scope.method;
+                this.context.send(new SignalOutClearCapture(method.declaringType().name(), method.name(),
+                        method.signature()));
+            }
+        }
+    }
+
+    /**
+     * The capture requests of one breakpoint method.
+     */
+    private final class Scope {
+        /** The VM in which the method runs */
+        private final VirtualMachine vm;
+        /** The method containing the breakpoint */
+        private final Method method;
+        /** The IDs of the breakpoints in the method */
+        @GuardedBy("ReturnCapture.this")
+        private final Set<Integer> dependents = new HashSet<>();
+        /** The breakpoint which arms capture */
+        @GuardedBy("this")
+        private BreakpointRequest entry;
+        /** The name and signature of the calls, by owner */
+        @GuardedBy("this")
+        private final Map<ReferenceType, Set<String>> calls = new LinkedHashMap<>();
+        /** The exit requests of each thread */
+        @GuardedBy("this")
+        private final Map<ThreadReference, List<MethodExitRequest>> threads = new LinkedHashMap<>();
+        /** The threads which are running the method */
+        @GuardedBy("this")
+        private final Set<ThreadReference> armed = new HashSet<>();
+        /** Whether the requests have been deleted */
+        @GuardedBy("this")
+        private boolean deleted;
+        /** Whether the agent records the calls of the method */
+        @GuardedBy("this")
+        private boolean recorded;
+
+        Scope(VirtualMachine vm, Method method) {
+            this.vm = vm;
+            this.method = method;
+
+            // Exits of the method itself disarm capture
+            this.calls.put(method.declaringType(), new HashSet<>());
+        }
+
+        /**
+         * Marks the calls of the method as recorded by the
+         * agent.
+         *
+         * @return {@code false} if the scope was deleted and
+         * the agent should stop recording them
+         */
+        synchronized boolean recorded() {
+            if (this.deleted) {
+                return false;
+            }
+
+            this.recorded = true;
+            return true;
+        }
+
+        synchronized boolean isRecorded() {
+            return this.recorded;
+        }
+
+        synchronized Set<ReferenceType> getOwners() {
+            return new HashSet<>(this.calls.keySet());
+        }
+
+        synchronized void addCalls(Collection<CallSite> callSites) {
+            if (this.deleted) {
+                return;
+            }
+
+            boolean added = false;
+            for (CallSite site : callSites) {
+                List<ReferenceType> types = this.vm.classesByName(site.getOwner().replace('/', '.'));
+                if (types.isEmpty()) {
+                    continue;
+                }
+
+                for (Method method : types.get(0).methodsByName(site.getName(), site.getDesc())) {
+                    if (!method.isConstructor() && !method.returnTypeName().equals("void")) {
+                        added |= !this.calls.containsKey(method.declaringType());
+                        this.calls.computeIfAbsent(method.declaringType(), k -> new HashSet<>()).
+                                add(method.name() + method.signature());
+                    }
+                }
+            }
+
+            // Capture is only armed once there is a call
+            // to capture
+            if (this.entry == null && this.calls.size() > 1) {
+                this.entry = this.vm.eventRequestManager().createBreakpointRequest(this.method.location());
+                this.entry.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+                this.entry.putProperty(SCOPE, this);
+                this.entry.enable();
+            }
+
+            // Requests are rebuilt with the new owners when
+            // each thread next enters
+            if (added) {
+                for (ThreadReference thread : new ArrayList<>(this.threads.keySet())) {
+                    if (!this.armed.contains(thread)) {
+                        this.deleteRequests(thread);
+                    }
+                }
+            }
+        }
+
+        synchronized void rearm(ReferenceType type) {
+            if (this.deleted || this.entry == null) {
+                return;
+            }
+
+            // The method of the scope still has the old code
+            List<Method> methods = type.methodsByName(this.method.name(), this.method.signature());
+            this.vm.eventRequestManager().deleteEventRequest(this.entry);
+            this.entry = null;
+            if (methods.isEmpty() || methods.get(0).location() == null) {
+                return;
+            }
+
+            this.entry = this.vm.eventRequestManager().createBreakpointRequest(methods.get(0).location());
+            this.entry.setSuspendPolicy(EventRequest.SUSPEND_EVENT_THREAD);
+            this.entry.putProperty(SCOPE, this);
+            this.entry.enable();
+        }
+
+        synchronized void arm(ThreadReference thread) {
+            if (this.deleted) {
+                return;
+            }
+
+            List<MethodExitRequest> requests = this.threads.get(thread);
+            if (requests == null) {
+                if (this.threads.size() >= MAX_THREADS) {
+                    this.pruneIdle();
+                }
+                requests = this.createRequests(thread);
+                this.threads.put(thread, requests);
+            }
+
+            if (this.armed.add(thread)) {
+                for (MethodExitRequest request : requests) {
+                    request.enable();
+                }
+            }
+        }
+
+        synchronized void disarm(ThreadReference thread) {
+            List<MethodExitRequest> requests = this.threads.get(thread);
+            if (requests != null && this.armed.remove(thread)) {
+                for (MethodExitRequest request : requests) {
+                    request.disable();
+                }
+            }
+        }
+
+        void exited(MethodExitEvent exit) {
+            Method method = exit.method();
+            if (method.equals(this.method)) {
+                this.disarm(exit.thread());
+                return;
+            }
+
+            synchronized (this) {
+                Set<String> calls = this.calls.get(method.declaringType());
+                if (calls == null || !calls.contains(method.name() + method.signature())) {
+                    return;
+                }
+            }
+
+            ReturnCapture.this.context.getReturns().record(this.method, method, exit.returnValue());
+        }
+
+        private List<MethodExitRequest> createRequests(ThreadReference thread) {
+            EventRequestManager erm = this.vm.eventRequestManager();
+            List<MethodExitRequest> requests = new ArrayList<>(this.calls.size());
+            for (ReferenceType owner : this.calls.keySet()) {
+                MethodExitRequest request = erm.createMethodExitRequest();
+                request.setSuspendPolicy(EventRequest.SUSPEND_NONE);
+                request.addThreadFilter(thread);
+                request.addClassFilter(owner);
+
+                // A filter also matches subtypes, which are
+                // excluded unless the owner is itself excluded
+                if (!isExcluded(owner.name())) {
+                    for (String pattern : EXCLUDED) {
+                        request.addClassExclusionFilter(pattern);
+                    }
+                }
+                request.putProperty(SCOPE, this);
+                requests.add(request);
+            }
+            return requests;
+        }
+
+        @GuardedBy("this")
+        private void pruneIdle() {
+            for (ThreadReference thread : new ArrayList<>(this.threads.keySet())) {
+                if (!this.armed.contains(thread)) {
+                    this.deleteRequests(thread);
+                }
+            }
+        }
+
+        @GuardedBy("this")
+        private void deleteRequests(ThreadReference thread) {
+            List<MethodExitRequest> requests = this.threads.remove(thread);
+            if (requests != null) {
+                this.vm.eventRequestManager().deleteEventRequests(requests);
+            }
+        }
+
+        /**
+         * Deletes the requests of the scope.
+         *
+         * @param attached whether the VM is still attached
+         * @return whether the agent was recording the calls
+         */
+        synchronized boolean delete(boolean attached) {
+            if (attached) {
+                List<EventRequest> requests = new ArrayList<>();
+                if (this.entry != null) {
+                    requests.add(this.entry);
+                }
+                this.threads.values().forEach(requests::addAll);
+                this.vm.eventRequestManager().deleteEventRequests(requests);
+            }
+
+            this.deleted = true;
+            this.entry = null;
+            this.threads.clear();
+            this.armed.clear();
+            return this.recorded;
+        }
+    }
+
+    private static boolean isExcluded(String className) {
+        for (String pattern : EXCLUDED) {
+            if (className.startsWith(pattern.substring(0, pattern.length() - 1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.infra;
+
+import com.google.common.base.Preconditions;
+import com.sun.jdi.*;
+import lombok.Data;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.*;
+
+/**
+ * The values returned before breakpoints, captured through
+ * method exit events.
+ *
+ * <p>Records are kept in parallel arrays used as a ring,
+ * so each one holds only the IDs of its caller and callee,
+ * which are interned once per method, the hit epoch of the
+ * caller, and its value as a tag and the bits of a
+ * primitive or a shared object mirror. Each record links
+ * to the previous record of the same caller, so the
+ * records of a method and epoch are found by following
+ * the chain from the newest rather than by scanning.</p>
+ *
+ * <p>The epoch of a method is advanced each time a thread
+ * suspends in it, so the records of an epoch are those
+ * returned before that hit.</p>
+ */
+@ThreadSafe
+public class ReturnStore {
+    /** The estimated bytes retained by each record */
+    public static final int RECORD_BYTES = 40;
+    /** Requests every epoch of a method */
+    public static final int ALL = -1;
+
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte BYTE = 2;
+    private static final byte CHAR = 3;
+    private static final byte SHORT = 4;
+    private static final byte INT = 5;
+    private static final byte LONG = 6;
+    private static final byte FLOAT = 7;
+    private static final byte DOUBLE = 8;
+    private static final byte OBJECT = 9;
+    private static final byte VOID = 10;
+
+    /** The interned methods, by ID */
+    @GuardedBy("this")
+    private final List<Method> methods = new ArrayList<>();
+    /** The ID of each interned method */
+    @GuardedBy("this")
+    private final Map<Method, Integer> methodIds = new HashMap<>();
+    /** The sequence of the newest record of each caller, by ID */
+    @GuardedBy("this")
+    private long[] heads = new long[0];
+    /** The current epoch of each caller, by ID */
+    @GuardedBy("this")
+    private int[] epochs = new int[0];
+
+    /** The caller ID of each record */
+    @GuardedBy("this")
+    private int[] callers;
+    /** The callee ID of each record */
+    @GuardedBy("this")
+    private int[] callees;
+    /** The caller's epoch of each record */
+    @GuardedBy("this")
+    private int[] recordEpochs;
+    /** The sequence of the previous record of the same caller */
+    @GuardedBy("this")
+    private long[] previous;
+    /** The value tag of each record */
+    @GuardedBy("this")
+    private byte[] tags;
+    /** The bits of each primitive value */
+    @GuardedBy("this")
+    private long[] bits;
+    /** The mirror of each object value */
+    @GuardedBy("this")
+    private ObjectReference[] refs;
+    /** The sequence of the next record */
+    @GuardedBy("this")
+    private long next;
+    /** The number of records held */
+    @GuardedBy("this")
+    private int size;
+    /** The number of records evicted to make space */
+    @GuardedBy("this")
+    private long evictions;
+
+    public ReturnStore(int capacity) {
+        this.allocate(capacity);
+    }
+
+    @GuardedBy("this")
+    private void allocate(int capacity) {
+        this.callers = new int[capacity];
+        this.callees = new int[capacity];
+        this.recordEpochs = new int[capacity];
+        this.previous = new long[capacity];
+        this.tags = new byte[capacity];
+        this.bits = new long[capacity];
+        this.refs = new ObjectReference[capacity];
+        this.size = 0;
+        Arrays.fill(this.heads, -1);
+    }
+
+    /**
+     * Sets the number of records kept, discarding every
+     * record.
+     *
+     * @param capacity the maximum number of records
+     */
+    public synchronized void limit(int capacity) {
+        Preconditions.checkArgument(capacity > 0, "limits must be positive");
+        this.evictions += this.size;
+        this.allocate(capacity);
+    }
+
+    @GuardedBy("this")
+    private int intern(Method method) {
+        Integer id = this.methodIds.get(method);
+        if (id != null) {
+            return id;
+        }
+
+        id = this.methods.size();
+        this.methods.add(method);
+        this.methodIds.put(method, id);
+        if (id >= this.heads.length) {
+            int length = Math.max(16, this.heads.length * 2);
+            int old = this.heads.length;
+            this.heads = Arrays.copyOf(this.heads, length);
+            this.epochs = Arrays.copyOf(this.epochs, length);
+            Arrays.fill(this.heads, old, length, -1);
+        }
+        return id;
+    }
+
+    /**
+     * Records a value returned to a method.
+     *
+     * @param caller the method the value was returned to
+     * @param callee the method which returned it
+     * @param value the returned value
+     */
+    public synchronized void record(Method caller, Method callee, Value value) {
+        int capacity = this.callers.length;
+        if (this.size == capacity) {
+            this.evictions++;
+        } else {
+            this.size++;
+        }
+
+        int callerId = this.intern(caller);
+        int slot = (int) (this.next % capacity);
+        this.callers[slot] = callerId;
+        this.callees[slot] = this.intern(callee);
+        this.recordEpochs[slot] = this.epochs[callerId];
+        this.previous[slot] = this.heads[callerId];
+        this.heads[callerId] = this.next++;
+        this.encode(slot, value);
+    }
+
+    @GuardedBy("this")
+    private void encode(int slot, Value value) {
+        this.refs[slot] = null;
+        this.bits[slot] = 0;
+        if (value == null) {
+            this.tags[slot] = NULL;
+        } else if (value instanceof ObjectReference) {
+            this.tags[slot] = OBJECT;
+            this.refs[slot] = (ObjectReference) value;
+        } else if (value instanceof BooleanValue) {
+            this.tags[slot] = BOOLEAN;
+            this.bits[slot] = ((BooleanValue) value).value() ? 1 : 0;
+        } else if (value instanceof ByteValue) {
+            this.tags[slot] = BYTE;
+            this.bits[slot] = ((ByteValue) value).value();
+        } else if (value instanceof CharValue) {
+            this.tags[slot] = CHAR;
+            this.bits[slot] = ((CharValue) value).value();
+        } else if (value instanceof ShortValue) {
+            this.tags[slot] = SHORT;
+            this.bits[slot] = ((ShortValue) value).value();
+        } else if (value instanceof IntegerValue) {
+            this.tags[slot] = INT;
+            this.bits[slot] = ((IntegerValue) value).value();
+        } else if (value instanceof LongValue) {
+            this.tags[slot] = LONG;
+            this.bits[slot] = ((LongValue) value).value();
+        } else if (value instanceof FloatValue) {
+            this.tags[slot] = FLOAT;
+            this.bits[slot] = Float.floatToRawIntBits(((FloatValue) value).value());
+        } else if (value instanceof DoubleValue) {
+            this.tags[slot] = DOUBLE;
+            this.bits[slot] = Double.doubleToRawLongBits(((DoubleValue) value).value());
+        } else {
+            this.tags[slot] = VOID;
+        }
+    }
+
+    @GuardedBy("this")
+    private String decode(int slot) {
+        long bits = this.bits[slot];
+        switch (this.tags[slot]) {
+            case BOOLEAN:
+                return String.valueOf(bits != 0);
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                return String.valueOf(bits);
+            case CHAR:
+                return "'" + (char) bits + "'";
+            case FLOAT:
+                return String.valueOf(Float.intBitsToFloat((int) bits));
+            case DOUBLE:
+                return String.valueOf(Double.longBitsToDouble(bits));
+            case OBJECT:
+                return this.refs[slot].toString();
+            case VOID:
+                return "void";
+            default:
+                return "null";
+        }
+    }
+
+    /**
+     * Begins a new epoch of a method, when a thread suspends
+     * in it.
+     *
+     * @param caller the method
+     * @return the epoch of the records returned to the
+     * method before the hit
+     */
+    public synchronized int advance(Method caller) {
+        // Interned first, as it may grow the epochs
+        int id = this.intern(caller);
+        return this.epochs[id]++;
+    }
+
+    /**
+     * Finds the values returned to a method.
+     *
+     * @param caller the method the values were returned to
+     * @param epoch the epoch of the records, or {@link #ALL}
+     * @return the records, oldest first
+     */
+    public synchronized List<Record> lookup(Method caller, int epoch) {
+        Integer id = this.methodIds.get(caller);
+        if (id == null) {
+            return Collections.emptyList();
+        }
+
+        // The chain runs from the newest record, so it stops
+        // at an older epoch or at an evicted record
+        int capacity = this.callers.length;
+        List<Record> records = new ArrayList<>();
+        for (long seq = this.heads[id]; seq >= 0 && seq >= this.next - this.size; ) {
+            int slot = (int) (seq % capacity);
+            int recordEpoch = this.recordEpochs[slot];
+            if (epoch != ALL && recordEpoch < epoch) {
+                break;
+            }
+            if (epoch == ALL || recordEpoch == epoch) {
+                records.add(new Record(this.methods.get(this.callees[slot]), recordEpoch, this.decode(slot)));
+            }
+            seq = this.previous[slot];
+        }
+
+        Collections.reverse(records);
+        return records;
+    }
+
+    /**
+     * Removes every record and method.
+     */
+    public synchronized void clear() {
+        this.methods.clear();
+        this.methodIds.clear();
+        this.heads = new long[0];
+        this.epochs = new int[0];
+        this.allocate(this.callers.length);
+    }
+
+    /**
+     * Takes a snapshot of the occupancy of the store.
+     *
+     * @return the history stats
+     */
+    public synchronized HistoryRing.Stats stats() {
+        int capacity = this.callers.length;
+        return new HistoryRing.Stats("returns", this.size, capacity, (long) this.size * RECORD_BYTES,
+                (long) capacity * RECORD_BYTES, this.evictions, this.next);
+    }
+
+    /**
+     * A value returned to a method.
+     */
+    @Data
+    @Immutable
+    public static class Record {
+        /** The method which returned the value */
+        private final Method callee;
+        /** The caller's epoch when the value was returned */
+        private final int epoch;
+        /** The description of the value */
+        private final String value;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.infra;
+
+import lombok.Data;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Which hits of a breakpoint suspend the thread.
+ */
+@Data
+@Immutable
+public class SamplePolicy {
+    /** Every hit suspends the thread */
+    public static final SamplePolicy ALWAYS = new SamplePolicy(Mode.ALWAYS, 1);
+
+    /** How hits are chosen */
+    private final Mode mode;
+    /** The hit count, interval or hits per second */
+    private final int n;
+
+    /**
+     * Parses a sample policy option.
+     *
+     * @param mode one of {@code nth}, {@code every} or
+     * {@code rate}
+     * @param n the count, interval or rate
+     * @return the policy, or {@code null} if the option is
+     * not recognized
+     * @throws NumberFormatException if the number is not a
+     * positive integer
+     */
+    public static SamplePolicy parse(String mode, String n) {
+        int value = Integer.parseInt(n);
+        if (value < 1) {
+            throw new NumberFormatException(n + " is not positive");
+        }
+
+        switch (mode) {
+            case "nth":
+                return new SamplePolicy(Mode.NTH, value);
+            case "every":
+                return new SamplePolicy(Mode.EVERY, value);
+            case "rate":
+                return new SamplePolicy(Mode.RATE, value);
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch (this.mode) {
+            case NTH:
+                return "hit " + this.n + " only";
+            case EVERY:
+                return "every " + this.n + " hits";
+            case RATE:
+                return "at most " + this.n + " hits/s";
+            default:
+                return "every hit";
+        }
+    }
+
+    /**
+     * The ways hits are chosen.
+     */
+    public enum Mode {
+        /** Every hit */
+        ALWAYS,
+        /** Only the Nth hit */
+        NTH,
+        /** Every Nth hit */
+        EVERY,
+        /** At most N hits per second */
+        RATE
+    }
+}
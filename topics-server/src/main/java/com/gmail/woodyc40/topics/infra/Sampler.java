@@ -0,0 +1,155 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.infra;
+
+import com.sun.jdi.request.BreakpointRequest;
+import com.sun.jdi.request.EventRequest;
+import lombok.Getter;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which hits of a breakpoint suspend the thread,
+ * counting the hits which do and the hits which are
+ * skipped.
+ *
+ * <p>Skipping is left to the VM wherever possible. Hit
+ * counts use a count filter, so the skipped hits are never
+ * reported; for every Nth hit the request is re-armed after
+ * each hit. Once the hits allowed in a second have been
+ * taken, the request stops suspending the thread until the
+ * next second, so skipped hits cost an event but never a
+ * pause.</p>
+ *
+ * <p>Only the drain stage samples, other threads only read
+ * the counts.</p>
+ */
+@NotThreadSafe
+public class Sampler {
+    /** The request property holding the sampler */
+    public static final String PROPERTY = "sampler";
+    /** The length of a rate window */
+    private static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+    /** Which hits suspend the thread */
+    @Getter
+    private final SamplePolicy policy;
+    /** The suspend policy of a chosen hit */
+    @Getter
+    private final int suspendPolicy;
+    /** The hits which suspended the thread */
+    @Getter
+    private volatile long hits;
+    /** The hits which were skipped */
+    @Getter
+    private volatile long skipped;
+    /** The start of the current rate window */
+    private long windowStart;
+    /** The hits left in the current rate window */
+    private int tokens;
+    /** Whether hits no longer suspend until the next window */
+    private boolean throttled;
+
+    private Sampler(SamplePolicy policy, int suspendPolicy) {
+        this.policy = policy;
+        this.suspendPolicy = suspendPolicy;
+    }
+
+    /**
+     * Applies a sample policy to a breakpoint which has not
+     * yet been enabled.
+     *
+     * @param request the breakpoint request
+     * @param policy the sample policy
+     * @param suspendPolicy the suspend policy of a chosen
+     * hit
+     * @return the sampler of the breakpoint
+     */
+    public static Sampler apply(BreakpointRequest request, SamplePolicy policy, int suspendPolicy) {
+        Sampler sampler = new Sampler(policy, suspendPolicy);
+        request.setSuspendPolicy(suspendPolicy);
+        if (policy.getMode() == SamplePolicy.Mode.NTH || policy.getMode() == SamplePolicy.Mode.EVERY) {
+            request.addCountFilter(policy.getN());
+        }
+
+        request.putProperty(PROPERTY, sampler);
+        return sampler;
+    }
+
+    /**
+     * Decides whether a hit should suspend the thread.
+     *
+     * @param request the breakpoint which was hit
+     * @param suspended whether the thread was suspended by
+     * the hit
+     * @return {@code true} if the thread should stay
+     * suspended
+     */
+    boolean sample(BreakpointRequest request, boolean suspended) {
+        switch (this.policy.getMode()) {
+            case NTH:
+                this.skipped += this.policy.getN() - 1;
+                break;
+            case EVERY:
+                // Enabling again resets the count filter
+                this.skipped += this.policy.getN() - 1;
+                request.disable();
+                request.enable();
+                break;
+            case RATE:
+                return this.sampleRate(request, suspended);
+        }
+
+        this.hits++;
+        return true;
+    }
+
+    private boolean sampleRate(BreakpointRequest request, boolean suspended) {
+        long now = System.nanoTime();
+        if (now - this.windowStart >= WINDOW) {
+            this.windowStart = now;
+            this.tokens = this.policy.getN();
+            if (this.throttled) {
+                this.throttled = false;
+                this.setSuspendPolicy(request, this.suspendPolicy);
+            }
+        }
+
+        if (!suspended) {
+            this.skipped++;
+            return false;
+        }
+
+        if (this.tokens > 0) {
+            this.tokens--;
+            this.hits++;
+            return true;
+        }
+
+        this.skipped++;
+        this.throttled = true;
+        this.setSuspendPolicy(request, EventRequest.SUSPEND_NONE);
+        return false;
+    }
+
+    private void setSuspendPolicy(BreakpointRequest request, int suspendPolicy) {
+        request.disable();
+        request.setSuspendPolicy(suspendPolicy);
+        request.enable();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.infra;
+
+import com.sun.jdi.IncompatibleThreadStateException;
+import com.sun.jdi.Location;
+import com.sun.jdi.StackFrame;
+import com.sun.jdi.ThreadReference;
+import com.sun.jdi.event.BreakpointEvent;
+import com.sun.jdi.event.EventSet;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ * A thread which is suspended at a breakpoint, waiting for
+ * the user to resume it.
+ */
+@RequiredArgsConstructor
+public class Suspension {
+    /** The breakpoint which suspended the thread */
+    @Getter
+    private final BreakpointEvent event;
+    /** The event set to resume the thread with */
+    @Getter
+    private final EventSet eventSet;
+    /** The line the thread is suspended at */
+    @Getter
+    private final Location location;
+    /**
+     * The index of the frame of that line, which is below
+     * the hook frames of a conditional breakpoint
+     */
+    @Getter
+    private final int frameIndex;
+    /** The conditional breakpoint whose condition held, if any */
+    @Getter
+    @Setter
+    private volatile ConditionalBreakpoints.Conditional conditional;
+    /** The time the thread was suspended */
+    @Getter
+    private final long suspendedNanos = System.nanoTime();
+    /** The stack read when the breakpoint was hit */
+    @Getter
+    @Setter
+    private volatile CapturedStack stack;
+    /**
+     * The calls made before the breakpoint, if the agent
+     * records the calls of its method
+     */
+    @Getter
+    @Setter
+    private volatile List<CallRecord> calls;
+    /** The epoch of the values returned before the hit */
+    @Getter
+    @Setter
+    private volatile int epoch = ReturnStore.ALL;
+
+    /**
+     * Obtains the thread which is suspended.
+     *
+     * @return the suspended thread
+     */
+    public ThreadReference getThread() {
+        return this.event.thread();
+    }
+
+    /**
+     * Obtains the frame of the line the thread is suspended
+     * at.
+     *
+     * @return the stack frame
+     * @throws IncompatibleThreadStateException if the thread
+     * has been resumed
+     */
+    public StackFrame frame() throws IncompatibleThreadStateException {
+        return this.getThread().frame(this.frameIndex);
+    }
+}
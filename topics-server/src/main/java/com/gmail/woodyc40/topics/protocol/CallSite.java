@@ -21,11 +21,13 @@ import lombok.Data;
 import javax.annotation.concurrent.Immutable;
 
 /**
- * Wrapper for the raw input of a packet.
+ * A method invocation instruction found in the body of a
+ * method, named using internal (slash separated) names.
  */
 @Data
 @Immutable
-public class InDataWrapper {
-    private final byte[] data;
-    private final int id;
-}
\ No newline at end of file
+public class CallSite {
+    private final String owner;
+    private final String name;
+    private final String desc;
+}
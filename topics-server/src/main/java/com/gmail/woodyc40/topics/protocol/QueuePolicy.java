@@ -0,0 +1,34 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.protocol;
+
+/**
+ * Determines what happens to a signal which is enqueued
+ * while its queue is full.
+ */
+public enum QueuePolicy {
+    /**
+     * Waits for space to become available, dropping the
+     * new signal if none does before the timeout.
+     */
+    BLOCK,
+    /**
+     * Replaces a queued signal with the same coalescing
+     * key, or otherwise drops the oldest signal.
+     */
+    COALESCE
+}
@@ -16,6 +16,8 @@
  */
 package com.gmail.woodyc40.topics.protocol;
 
+import com.gmail.woodyc40.topics.server.AgentConnection;
+
 import java.io.DataInputStream;
 import java.io.IOException;
 
@@ -23,5 +25,23 @@ import java.io.IOException;
  * Represents an inbound (i.e. serverbound) signal.
  */
 public interface SignalIn {
-    void read(DataInputStream in) throws IOException;
+    /**
+     * Reads and handles the signal.
+     *
+     * @param source the agent which sent the signal
+     * @param in the signal payload
+     * @throws IOException if the payload is malformed
+     */
+    void read(AgentConnection source, DataInputStream in) throws IOException;
+
+    /**
+     * Obtains the policy used to enqueue frames of this
+     * signal for decoding when the queue is full. Frames
+     * which respond to a request are always blocked on.
+     *
+     * @return the queue policy
+     */
+    default QueuePolicy policy() {
+        return QueuePolicy.BLOCK;
+    }
 }
\ No newline at end of file
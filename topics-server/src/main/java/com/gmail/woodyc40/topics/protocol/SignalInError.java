@@ -0,0 +1,44 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.protocol;
+
+import com.gmail.woodyc40.topics.server.AgentConnection;
+import com.google.common.base.Charsets;
+import lombok.Getter;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Sent by the client in response to a request which it
+ * failed to serve.
+ * SCHEMA:
+ * - int:messageLength
+ * - byte[]:message
+ */
+public class SignalInError implements SignalIn {
+    /** The reason the request failed */
+    @Getter
+    private String message;
+
+    @Override
+    public void read(AgentConnection source, DataInputStream in) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        this.message = new String(data, Charsets.UTF_8);
+    }
+}
@@ -16,6 +16,9 @@
  */
 package com.gmail.woodyc40.topics.protocol;
 
+import com.gmail.woodyc40.topics.codec.Protocol;
+import com.gmail.woodyc40.topics.server.AgentConnection;
+
 import java.io.DataInputStream;
 import java.io.IOException;
 
@@ -23,11 +26,31 @@ import java.io.IOException;
  * Notifies the server that the client has successfully
  * connected.
  * SCHEMA:
- * None
+ * - int:pid
+ * - int:version
+ * - int:schemaHash
  */
 public class SignalInInit implements SignalIn {
     @Override
-    public void read(DataInputStream inputStream) throws IOException {
-        // int pid = inputStream.readInt();
+    public void read(AgentConnection source, DataInputStream inputStream) throws IOException {
+        int pid = inputStream.readInt();
+
+        // Agents predating the version check only send the
+        // PID
+        int version = inputStream.available() >= 8 ? inputStream.readInt() : 0;
+        int schemaHash = version == 0 ? 0 : inputStream.readInt();
+        if (version != Protocol.VERSION || schemaHash != Protocol.SCHEMA_HASH) {
+            source.reject(pid, "protocol " + version + "/" + Integer.toHexString(schemaHash) +
+                    " does not match " + Protocol.VERSION + "/" + Integer.toHexString(Protocol.SCHEMA_HASH));
+            return;
+        }
+
+        source.identify(pid);
+    }
+
+    @Override
+    public QueuePolicy policy() {
+        // Only the latest init from an agent matters
+        return QueuePolicy.COALESCE;
     }
 }
\ No newline at end of file
@@ -0,0 +1,62 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.protocol;
+
+import com.gmail.woodyc40.topics.server.AgentConnection;
+import com.google.common.base.Charsets;
+import lombok.Getter;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A response to {@link SignalOutReqMethod} listing the
+ * calls made by the requested method, which the agent
+ * finds by scanning the class file itself.
+ * Schema:
+ * strings
+ * int:count
+ *   int:strLen
+ *   byte[]:strData
+ * sites
+ * int:count
+ *   int:ownerIdx
+ *   int:nameIdx
+ *   int:descIdx
+ */
+public class SignalInRespCallSites implements SignalIn {
+    /** The calls made by the requested method */
+    @Getter
+    private final List<CallSite> callSites = new ArrayList<>();
+
+    @Override
+    public void read(AgentConnection source, DataInputStream in) throws IOException {
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            strings[i] = new String(data, Charsets.UTF_8);
+        }
+
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            this.callSites.add(new CallSite(strings[in.readInt()], strings[in.readInt()], strings[in.readInt()]));
+        }
+    }
+}
@@ -24,4 +24,24 @@ import java.io.IOException;
  */
 public interface SignalOut {
     void write(DataOutputStream out) throws IOException;
+
+    /**
+     * Obtains the policy used to enqueue this signal when
+     * the agent's queue is full.
+     *
+     * @return the queue policy
+     */
+    default QueuePolicy policy() {
+        return QueuePolicy.BLOCK;
+    }
+
+    /**
+     * Obtains the key which identifies the queued signals
+     * that this signal supersedes, if it is coalesced.
+     *
+     * @return the coalescing key
+     */
+    default Object coalesceKey() {
+        return this.getClass();
+    }
 }
\ No newline at end of file
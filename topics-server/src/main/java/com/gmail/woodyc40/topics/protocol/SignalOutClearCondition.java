@@ -0,0 +1,38 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.protocol;
+
+import lombok.RequiredArgsConstructor;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Sent to the client in order to remove the condition of
+ * a conditional breakpoint.
+ * SCHEMA:
+ * - int:conditionId
+ */
+@RequiredArgsConstructor
+public class SignalOutClearCondition implements SignalOut {
+    private final int conditionId;
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(this.conditionId);
+    }
+}
@@ -38,7 +38,8 @@ public class SignalOutExit implements SignalOut {
     @Override
     public void write(DataOutputStream out) throws IOException {
         out.writeInt(this.exitCode);
-        out.writeInt(this.message.length());
-        out.write(this.message.getBytes(Charsets.UTF_16));
+        byte[] bytes = this.message.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
     }
 }
\ No newline at end of file
@@ -0,0 +1,54 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.protocol;
+
+import com.google.common.base.Charsets;
+import lombok.RequiredArgsConstructor;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Sent to the client in order to record the arguments and
+ * return values of the calls made by a method.
+ * SCHEMA:
+ * - int:clsLength
+ * - byte[]:cls
+ * - int:nameLength
+ * - byte[]:name
+ * - int:descLength
+ * - byte[]:desc
+ */
+@RequiredArgsConstructor
+public class SignalOutReqCapture implements SignalOut {
+    private final String cls;
+    private final String name;
+    private final String desc;
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        writeString(out, this.cls);
+        writeString(out, this.name);
+        writeString(out, this.desc);
+    }
+}
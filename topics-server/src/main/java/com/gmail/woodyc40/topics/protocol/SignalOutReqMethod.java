@@ -39,8 +39,9 @@ public class SignalOutReqMethod implements SignalOut {
     private final String desc;
 
     private static void writeString(DataOutputStream out, String s) throws IOException {
-        out.writeInt(s.length());
-        out.write(s.getBytes(Charsets.UTF_8));
+        byte[] bytes = s.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
     }
 
     @Override
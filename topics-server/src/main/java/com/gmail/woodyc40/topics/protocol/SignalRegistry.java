@@ -16,62 +16,85 @@
  */
 package com.gmail.woodyc40.topics.protocol;
 
+import com.gmail.woodyc40.topics.codec.Protocol;
 import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
 
 import javax.annotation.concurrent.ThreadSafe;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Supplier;
 
 /**
  * Registry of signal packets that may be sent/received from
  * the client.
+ *
+ * <p>Signals are registered under their ID in the shared
+ * {@link Protocol} table. Inbound signals are created by
+ * indexing an array of factories with the frame's signal
+ * ID, so no reflection or boxing occurs per frame.</p>
  */
 @ThreadSafe
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
 public final class SignalRegistry {
     /** Out packets */
     private static final Map<Class<? extends SignalOut>, Integer> OUT_SIGNALS = new HashMap<>();
-    /** In packets */
-    private static final Map<Integer, Constructor<? extends SignalIn>> IN_SIGNALS = new HashMap<>();
-    /** The current packet ID to be used during init */
-    private static int ID_COUNTER;
+    /** In packet factories, by ID */
+    @SuppressWarnings("unchecked")
+    private static final Supplier<? extends SignalIn>[] IN_SIGNALS = new Supplier[Protocol.SIGNALS];
+    /** The queue policies of the in packets, by ID */
+    private static final QueuePolicy[] IN_POLICIES = new QueuePolicy[Protocol.SIGNALS];
+    /** The names of the packets, by ID */
+    private static final String[] NAMES = new String[Protocol.SIGNALS];
 
     static {
-        in(SignalInInit.class);
-        out(SignalOutRespInit.class);
-        out(SignalOutBusy.class);
-        in(SignalInRespMethod.class);
-        out(SignalOutReqMethod.class);
-        out(SignalOutExit.class);
+        in(Protocol.INIT, SignalInInit.class, SignalInInit::new);
+        out(Protocol.RESP_INIT, SignalOutRespInit.class);
+        out(Protocol.BUSY, SignalOutBusy.class);
+        in(Protocol.RESP_CALL_SITES, SignalInRespCallSites.class, SignalInRespCallSites::new);
+        out(Protocol.REQ_METHOD, SignalOutReqMethod.class);
+        out(Protocol.EXIT, SignalOutExit.class);
+        in(Protocol.ERROR, SignalInError.class, SignalInError::new);
+        out(Protocol.REJECT, SignalOutReject.class);
+        out(Protocol.REQ_CONDITION, SignalOutReqCondition.class);
+        in(Protocol.RESP_CONDITION, SignalInRespCondition.class, SignalInRespCondition::new);
+        out(Protocol.CLEAR_CONDITION, SignalOutClearCondition.class);
+        out(Protocol.REQ_CAPTURE, SignalOutReqCapture.class);
+        in(Protocol.RESP_CAPTURE, SignalInRespCapture.class, SignalInRespCapture::new);
+        out(Protocol.CLEAR_CAPTURE, SignalOutClearCapture.class);
+
+        for (int id = 0; id < NAMES.length; id++) {
+            if (NAMES[id] == null) {
+                throw new IllegalStateException("No signal registered for " + Protocol.schemaOf(id));
+            }
+        }
     }
 
     /**
      * Initializes a new inbound packet.
      *
+     * @param id the ID from the protocol table
      * @param signal the signal class to add to the registry
      * table
+     * @param factory creates new instances of the signal
+     * @param <T> the signal type
      */
-    private static void in(Class<? extends SignalIn> signal) {
-        try {
-            int id = ID_COUNTER++;
-            IN_SIGNALS.put(id, signal.getDeclaredConstructor());
-        } catch (NoSuchMethodException e) {
-            throw new RuntimeException(e);
-        }
+    private static <T extends SignalIn> void in(int id, Class<T> signal, Supplier<T> factory) {
+        IN_SIGNALS[id] = factory;
+        IN_POLICIES[id] = factory.get().policy();
+        NAMES[id] = signal.getSimpleName();
     }
 
     /**
      * Initializes a new outbound packet.
      *
+     * @param id the ID from the protocol table
      * @param signal the signal to add to the registry
      * table
      */
-    private static void out(Class<? extends SignalOut> signal) {
-        int id = ID_COUNTER++;
+    private static void out(int id, Class<? extends SignalOut> signal) {
         OUT_SIGNALS.put(signal, id);
+        NAMES[id] = signal.getSimpleName();
     }
 
     /**
@@ -81,16 +104,24 @@ public final class SignalRegistry {
      * @return the signal wrapper
      */
     public static SignalIn readSignal(int id) {
-        Constructor<? extends SignalIn> constructor = IN_SIGNALS.get(id);
-        if (constructor == null) {
+        Supplier<? extends SignalIn> factory = id >= 0 && id < IN_SIGNALS.length ? IN_SIGNALS[id] : null;
+        if (factory == null) {
             throw new RuntimeException("No signal: IN " + id);
         }
 
-        try {
-            return constructor.newInstance();
-        } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+        return factory.get();
+    }
+
+    /**
+     * Obtains the queue policy of the inbound signal with
+     * the given ID.
+     *
+     * @param id the inbound ID value
+     * @return the queue policy
+     */
+    public static QueuePolicy readPolicy(int id) {
+        QueuePolicy policy = id >= 0 && id < IN_POLICIES.length ? IN_POLICIES[id] : null;
+        return policy == null ? QueuePolicy.BLOCK : policy;
     }
 
     /**
@@ -109,16 +140,45 @@ public final class SignalRegistry {
         return integer;
     }
 
+    /**
+     * Obtains the number of registered signals, which is
+     * one greater than the largest signal ID.
+     *
+     * @return the number of signals
+     */
+    public static int size() {
+        return NAMES.length;
+    }
+
+    /**
+     * Obtains the name of the signal with the given ID.
+     *
+     * @param id the signal ID
+     * @return the signal class name, or {@code null} if
+     * there is no such signal
+     */
+    public static String nameOf(int id) {
+        return id >= 0 && id < NAMES.length ? NAMES[id] : null;
+    }
+
     /**
      * Prints out the registry table.
      */
     public static void print() {
+        System.out.println("PROTOCOL VERSION " + Protocol.VERSION +
+                ", SCHEMA " + Integer.toHexString(Protocol.SCHEMA_HASH));
+        System.out.println();
+
         System.out.println("IN TABLE");
-        IN_SIGNALS.forEach((k, v) -> System.out.println(k + ": " + v.getDeclaringClass().getSimpleName()));
+        for (int id = 0; id < IN_SIGNALS.length; id++) {
+            if (IN_SIGNALS[id] != null) {
+                System.out.println(id + ": " + NAMES[id] + " - " + Protocol.schemaOf(id));
+            }
+        }
         System.out.println();
 
         System.out.println("OUT TABLE");
-        OUT_SIGNALS.forEach((k, v) -> System.out.println(v + ": " + k.getSimpleName()));
+        OUT_SIGNALS.forEach((k, v) -> System.out.println(v + ": " + k.getSimpleName() + " - " + Protocol.schemaOf(v)));
         System.out.println();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,258 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.server;
+
+import com.gmail.woodyc40.topics.Main;
+import com.gmail.woodyc40.topics.codec.BufferPool;
+import com.gmail.woodyc40.topics.codec.FrameDecoder;
+import com.gmail.woodyc40.topics.codec.FrameEncoder;
+import com.gmail.woodyc40.topics.protocol.SignalIn;
+import com.gmail.woodyc40.topics.protocol.SignalInError;
+import com.gmail.woodyc40.topics.protocol.SignalOut;
+import com.gmail.woodyc40.topics.protocol.SignalOutReject;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.IOException;
+import java.nio.channels.ByteChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connection to a single agent, identified by the PID of
+ * the VM that it is running in.
+ *
+ * <p>Requests are tagged with a correlation ID so that any
+ * number of them may be in flight, and the agent may
+ * answer them in any order.</p>
+ *
+ * <p>The connection is serviced either by the server's
+ * selector thread, if the agent connected over a socket,
+ * or by its own {@link RingPoller} if the agent shares a
+ * memory mapped ring with the debugger.</p>
+ */
+public class AgentConnection {
+    /** The PID of a connection that has not sent init */
+    public static final int UNKNOWN_PID = -1;
+
+    /** The server which accepted this connection */
+    @Getter
+    private final AgentServer server;
+    /** The socket or ring connected to the agent */
+    @Getter(AccessLevel.PACKAGE)
+    private final ByteChannel channel;
+    /** Frames the bytes read from the agent */
+    @Getter(AccessLevel.PACKAGE)
+    private final FrameDecoder decoder = new FrameDecoder(BufferPool.shared());
+    /** Encodes the outgoing signals, used by the servicing thread */
+    @Getter(AccessLevel.PACKAGE)
+    private final FrameEncoder encoder = new FrameEncoder(BufferPool.shared());
+    /** The signals waiting to be encoded */
+    @Getter(AccessLevel.PACKAGE)
+    private final SignalQueue<OutboundSignal> out;
+    /** Encoded frames, only accessed by the servicing thread */
+    @Getter(AccessLevel.PACKAGE)
+    private final Queue<EncodedFrame> outgoing = Queues.newArrayDeque();
+    /** The requests awaiting a response, by correlation ID */
+    private final Map<Integer, CompletableFuture<SignalIn>> pending = Maps.newConcurrentMap();
+    /** The last correlation ID that was assigned */
+    private final AtomicInteger lastCorrelationId = new AtomicInteger();
+    /** Whether this connection is waiting to be flushed */
+    @Getter(AccessLevel.PACKAGE)
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    /** The PID of the VM the agent is running in */
+    @Getter
+    private volatile int pid = UNKNOWN_PID;
+    /** Whether to close once the queues are flushed */
+    @Getter(AccessLevel.PACKAGE)
+    private volatile boolean closing;
+    /** The thread servicing a ring, or {@code null} for a socket */
+    @Getter(AccessLevel.PACKAGE)
+    @Setter(AccessLevel.PACKAGE)
+    private volatile RingPoller poller;
+
+    AgentConnection(AgentServer server, ByteChannel channel) {
+        this.server = server;
+        this.channel = channel;
+        this.out = new SignalQueue<>(server.getLimits().getOut(), this::dropped);
+    }
+
+    /**
+     * Fails the request of a signal which was dropped from
+     * the queue before it could be written.
+     *
+     * @param signal the dropped signal
+     */
+    private void dropped(OutboundSignal signal) {
+        int correlationId = signal.getCorrelationId();
+        if (correlationId != 0) {
+            this.fail(correlationId, "request dropped, queue to agent " + this.pid + " is full");
+        }
+    }
+
+    /**
+     * Associates this connection with the VM that sent the
+     * init signal.
+     *
+     * @param pid the PID of the agent's VM
+     */
+    public void identify(int pid) {
+        this.pid = pid;
+        this.server.register(this);
+    }
+
+    /**
+     * Refuses an agent whose protocol does not match, and
+     * closes this connection.
+     *
+     * @param pid the PID of the agent's VM
+     * @param reason the reason the agent was refused
+     */
+    public void reject(int pid, String reason) {
+        Main.printAsync("abort: rejected agent " + pid + ": " + reason);
+        this.write(new SignalOutReject(reason));
+        this.closeAfterFlush();
+    }
+
+    /**
+     * Enqueues the given signal to be written to this
+     * agent.
+     *
+     * @param signal the signal to write
+     */
+    public void write(SignalOut signal) {
+        this.out.offer(new OutboundSignal(signal, 0, System.nanoTime()), signal.policy(), signal.coalesceKey());
+        this.server.scheduleFlush(this);
+    }
+
+    /**
+     * Enqueues the given signal as a request, to which the
+     * agent will respond with a signal of the given type.
+     *
+     * @param signal the request signal
+     * @param responseType the type of the response signal
+     * @param <T> the response type
+     * @return the future response, which is completed by
+     * the decode thread
+     */
+    public <T extends SignalIn> CompletableFuture<T> request(SignalOut signal, Class<T> responseType) {
+        int correlationId;
+        do {
+            correlationId = this.lastCorrelationId.incrementAndGet();
+        } while (correlationId == 0);
+
+        CompletableFuture<SignalIn> future = new CompletableFuture<>();
+        this.pending.put(correlationId, future);
+        this.out.offer(new OutboundSignal(signal, correlationId, System.nanoTime()), signal.policy(), signal.coalesceKey());
+        this.server.scheduleFlush(this);
+
+        return future.thenApply(responseType::cast);
+    }
+
+    /**
+     * Completes the request which the given signal has
+     * responded to.
+     *
+     * @param correlationId the ID of the request
+     * @param response the response signal
+     * @return {@code true} if a request was waiting for the
+     * response
+     */
+    boolean respond(int correlationId, SignalIn response) {
+        CompletableFuture<SignalIn> future = this.pending.remove(correlationId);
+        if (future == null) {
+            return false;
+        }
+
+        if (response instanceof SignalInError) {
+            future.completeExceptionally(new IOException(((SignalInError) response).getMessage()));
+        } else {
+            future.complete(response);
+        }
+        return true;
+    }
+
+    /**
+     * Determines whether a request is awaiting a response.
+     *
+     * @param correlationId the ID of the request
+     * @return {@code true} if the request is in flight
+     */
+    boolean isPending(int correlationId) {
+        return this.pending.containsKey(correlationId);
+    }
+
+    /**
+     * Fails a request whose response could not be
+     * processed.
+     *
+     * @param correlationId the ID of the request
+     * @param reason the reason the request failed
+     */
+    void fail(int correlationId, String reason) {
+        CompletableFuture<SignalIn> future = this.pending.remove(correlationId);
+        if (future != null) {
+            future.completeExceptionally(new IOException(reason));
+        }
+    }
+
+    /**
+     * Fails all of the requests still awaiting a response.
+     */
+    void failPending() {
+        for (Iterator<CompletableFuture<SignalIn>> it = this.pending.values().iterator(); it.hasNext(); ) {
+            CompletableFuture<SignalIn> future = it.next();
+            it.remove();
+            future.completeExceptionally(new IOException("agent " + this.pid + " disconnected"));
+        }
+    }
+
+    /**
+     * Obtains the number of requests awaiting a response.
+     *
+     * @return the number of requests in flight
+     */
+    public int getPendingCount() {
+        return this.pending.size();
+    }
+
+    /**
+     * Obtains the state of the queue of signals waiting to
+     * be written to this agent.
+     *
+     * @return the outbound queue stats
+     */
+    public QueueStats getOutStats() {
+        return this.out.stats();
+    }
+
+    /**
+     * Writes the remaining signals and then closes this
+     * connection.
+     */
+    void closeAfterFlush() {
+        this.closing = true;
+        this.server.scheduleFlush(this);
+    }
+}
@@ -17,81 +17,126 @@
 package com.gmail.woodyc40.topics.server;
 
 import com.gmail.woodyc40.topics.Main;
+import com.gmail.woodyc40.topics.codec.*;
 import com.gmail.woodyc40.topics.protocol.*;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Queues;
-import lombok.AccessLevel;
+import com.google.common.collect.Sets;
 import lombok.Getter;
-import lombok.Setter;
 
-import javax.annotation.concurrent.GuardedBy;
-import java.io.*;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.*;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * The local server handler
+ * The local server handler.
+ *
+ * <p>All socket I/O is performed by a single thread which
+ * waits on a {@link Selector}, so queued signals are
+ * written as soon as they are enqueued and inbound bytes
+ * are read as soon as they arrive. Complete frames are
+ * handed off to a separate decode thread so that signal
+ * handlers never stall the I/O loop.</p>
+ *
+ * <p>Agents started with the {@code shm} argument instead
+ * share a pair of memory mapped rings with the debugger,
+ * which are opened by {@link #attachShared(int)} and
+ * polled by a dedicated thread. Frames from either kind of
+ * connection are decoded by the same stage.</p>
+ *
+ * <p>Frames are read into and written from pooled buffers
+ * so that no per-frame copies are made.</p>
+ *
+ * <p>Any number of agents may be connected at once. Each
+ * one is identified by the PID sent in its init signal and
+ * has its own signal queues.</p>
+ *
+ * <p>Every queue between the agents and the debugger is
+ * bounded by the {@link QueueLimits}. Once a queue is full,
+ * each signal's {@link QueuePolicy} decides whether to
+ * wait for space or replace a queued signal of the same
+ * kind. Responses skip the bound
+ * of the decode queue, as there can be no more of them
+ * than there are requests in flight.</p>
+ *
+ * <p>Requests made through {@link #request(int, SignalOut,
+ * Class)} return a future which is completed by the decode
+ * thread when the response with the same correlation ID
+ * arrives.</p>
  */
 public class AgentServer {
     /** The timeout for the server to shutdown */
     private static final long TIMEOUT_MS = 5000L;
+    /** The maximum number of simultaneous agents */
+    private static final int MAX_CONNECTIONS = 256;
 
-    /** Currently waiting for connection */
-    private static final int WAITING_FOR_CON = 0;
-    /** Currently connected */
-    private static final int ACTIVE = 1;
+    /** Currently running */
+    private static final int ACTIVE = 0;
     /** Shutting down */
-    private static final int SHUTDOWN = 2;
+    private static final int SHUTDOWN = 1;
+    /** Waiting for the agents to exit before shutting down */
+    private static final int CLOSING = 2;
 
     /** The server that has been started */
-    @Getter(AccessLevel.PRIVATE)
     private final ServerSocketChannel server;
+    /** The selector used to multiplex the server I/O */
+    private final Selector selector;
 
     /** The current state of the server */
     @Getter
-    private final AtomicInteger state = new AtomicInteger(WAITING_FOR_CON);
-    /** Lock used to protect the connection */
+    private final AtomicInteger state = new AtomicInteger(ACTIVE);
+    /** Every open agent connection */
+    private final Set<AgentConnection> connections = Sets.newConcurrentHashSet();
+    /** The identified agent connections, by PID */
+    private final Map<Integer, AgentConnection> agents = Maps.newConcurrentMap();
+    /** The connections which have signals to be written */
+    private final Queue<AgentConnection> flushQueue = Queues.newConcurrentLinkedQueue();
+    /** The capacities of the signal queues */
     @Getter
-    private final Lock lock = new ReentrantLock();
-    /** Condition used to notify of a connection */
-    @Getter
-    private final Condition hasConnection = this.lock.newCondition();
-    /** The signal send queue */
-    @Getter
-    private final BlockingQueue<SignalOut> out = Queues.newLinkedBlockingQueue();
-    @Getter
-    private final Queue<OutDataWrapper> outgoing = Queues.newConcurrentLinkedQueue();
+    private final QueueLimits limits;
     /** The signal process queue */
+    private final SignalQueue<InboundFrame> incoming;
+    /** The frame counters, by signal ID */
     @Getter
-    private final BlockingQueue<InDataWrapper> incoming = Queues.newLinkedBlockingQueue();
-    @Getter
-    private final AtomicReference<Thread> duplex = new AtomicReference<>();
-    /** The threads used for Net IO */
-    private final Thread[] threads;
-    /** The current client */
-    @Getter
-    @Setter
-    @GuardedBy("lock")
-    private SocketChannel conn;
-
-    private AgentServer(int port, Thread[] threads) {
-        this.threads = threads;
+    private final WireStats stats = new WireStats();
+    /** The selector I/O thread */
+    private final Thread ioThread;
+    /** The signal decoding thread */
+    private final Thread decodeThread;
+    /** Encodes the busy signal, used by the I/O thread */
+    private final FrameEncoder encoder = new FrameEncoder(BufferPool.shared());
+
+    private AgentServer(int port, QueueLimits limits) {
+        this.limits = limits;
+        this.incoming = new SignalQueue<>(limits.getIncoming(), this::dropped);
         try {
+            this.selector = Selector.open();
             this.server = ServerSocketChannel.open();
             this.server.bind(new InetSocketAddress(port));
-            this.server.configureBlocking(true);
+            this.server.configureBlocking(false);
+            this.server.register(this.selector, SelectionKey.OP_ACCEPT);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+
+        this.ioThread = new Thread(this::runIo, "Agent server I/O");
+        this.decodeThread = new Thread(this::runDecode, "Agent signal decoder");
+        this.ioThread.setDaemon(true);
+        this.decodeThread.setDaemon(true);
     }
 
     /**
@@ -99,251 +144,515 @@ public class AgentServer {
      * on the given port.
      *
      * @param port the port on which to start the server
+     * @param limits the capacities of the signal queues
      * @return the server object, used to send signals
      */
-    public static AgentServer initServer(int port) {
-        Thread[] threads = new Thread[4];
-        AgentServer server = new AgentServer(port, threads);
+    public static AgentServer initServer(int port, QueueLimits limits) {
+        AgentServer server = new AgentServer(port, limits);
+        server.ioThread.start();
+        server.decodeThread.start();
+
+        return server;
+    }
 
-        // Socket duplex
-        threads[0] = new Thread(() -> {
-            server.getDuplex().set(Thread.currentThread());
+    /**
+     * Encodes the given signal into a frame ready to be
+     * written to a socket.
+     *
+     * @param encoder the encoder of the writing thread
+     * @param id the signal ID
+     * @param sig the signal to encode
+     * @param correlationId the request ID, or 0
+     * @return the pooled frame buffer, flipped for writing
+     * @throws IOException should not occur
+     */
+    private static ByteBuffer encode(FrameEncoder encoder, int id, SignalOut sig, int correlationId) throws IOException {
+        DataOutputStream stream = encoder.begin(id, correlationId);
+        sig.write(stream);
+
+        return encoder.finish();
+    }
 
-            while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    server.getLock().lockInterruptibly();
+    /**
+     * The selector loop, which accepts agents, reads
+     * inbound frames and flushes the outgoing signals.
+     */
+    private void runIo() {
+        try {
+            while (this.state.get() != SHUTDOWN) {
+                this.selector.select();
+
+                Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+
+                    if (key.isAcceptable()) {
+                        this.accept();
+                        continue;
+                    }
+
+                    AgentConnection conn = (AgentConnection) key.attachment();
                     try {
-                        while (server.getState().get() != AgentServer.ACTIVE) {
-                            server.getHasConnection().await();
+                        if (key.isReadable()) {
+                            this.read(conn);
                         }
-
-                        SocketChannel sock = server.getConn();
-                        InputStream in = sock.socket().getInputStream();
-                        OutputStream out = sock.socket().getOutputStream();
-                        sock.socket().setSoTimeout(1000);
-
-                        ByteArrayOutputStream headerAccum = new ByteArrayOutputStream();
-                        ByteArrayOutputStream accumulator = new ByteArrayOutputStream();
-                        byte[] header = new byte[4];
-                        byte[] payload = new byte[1024];
-                        int payloadLen = -1;
-                        while (true) {
-                            try {
-                                // Payload length has been
-                                // determined, read enough
-                                // bytes into the buffer
-                                // for the payload to be
-                                // determined.
-                                if (payloadLen != -1) {
-                                    int len;
-                                    while ((len = in.read(payload)) > -1) {
-                                        accumulator.write(payload, 0, len);
-                                    }
-                                }
-
-                                // Attempt to buffer the
-                                // bytes in order to
-                                // complete the header
-                                int read = in.read(header);
-                                if (read > -1) {
-                                    headerAccum.write(header, 0, read);
-                                }
-
-                                // Header has been
-                                // accumulated, switch state
-                                // and write excess bytes to
-                                // the payload
-                                if (headerAccum.size() >= 4) {
-                                    header = headerAccum.toByteArray();
-                                    if (headerAccum.size() > 4) {
-                                        for (int i = 4; i < header.length; i++) {
-                                            accumulator.write(header[i]);
-                                        }
-                                    }
-
-                                    payloadLen = (header[0] << 24) + (header[1] << 16) + (header[2] << 8) + (header[3] & 0xFF);
-                                } else {
-                                    continue;
-                                }
-                            } catch (SocketTimeoutException e) {
-                                // Socket has not read
-                                // anything, try to flush
-                                // the outgoing signal queue
-                                OutDataWrapper wrapper;
-                                while ((wrapper = server.getOutgoing().poll()) != null) {
-                                    byte[] buf = wrapper.getData();
-
-                                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                                    DataOutputStream dos = new DataOutputStream(baos);
-                                    int v = buf.length + 4;
-
-                                    dos.writeInt(v);
-                                    dos.writeInt(wrapper.getId());
-
-                                    out.write(baos.toByteArray());
-                                    out.write(buf);
-                                }
-                            }
-
-                            // Read in the payload data once
-                            // the length has been
-                            // determined and the data has
-                            // filled the payload
-                            // accumulator.
-                            if (payloadLen != -1 && accumulator.size() >= payloadLen) {
-                                ByteArrayInputStream input = new ByteArrayInputStream(accumulator.toByteArray());
-                                DataInputStream stream = new DataInputStream(input);
-
-                                int id = stream.readInt();
-                                byte[] bs = new byte[payloadLen - 4];
-                                stream.readFully(bs);
-                                InDataWrapper wrapper = new InDataWrapper(bs, id);
-                                server.getIncoming().add(wrapper);
-
-                                payloadLen = -1;
-                                headerAccum = new ByteArrayOutputStream();
-                                accumulator = new ByteArrayOutputStream();
-
-                                int len;
-                                byte[] buf = new byte[1024];
-                                while ((len = input.read(buf)) > -1) {
-                                    accumulator.write(buf, 0, len);
-                                }
-                            }
+                        if (key.isValid() && key.isWritable()) {
+                            this.flush(conn);
                         }
-                    } catch (InterruptedException e) {
-                        break;
                     } catch (IOException e) {
-                        Main.printAsync("abort: disconnected");
-                        break;
-                    } finally {
-                        server.getLock().unlock();
+                        this.disconnected(conn);
+                    }
+                }
+
+                AgentConnection conn;
+                while ((conn = this.flushQueue.poll()) != null) {
+                    conn.getFlushScheduled().set(false);
+                    try {
+                        this.flush(conn);
+                    } catch (IOException e) {
+                        this.disconnected(conn);
                     }
-                } catch (InterruptedException e) {
-                    break;
                 }
             }
-        });
+        } catch (ClosedSelectorException e) {
+            return;
+        } catch (IOException e) {
+            Main.printAsync("abort: agent server failed: " + e.getMessage());
+        }
 
-        // Write processor
-        threads[1] = new Thread(() -> {
-            while (true) {
-                try {
-                    SignalOut take = server.getOut().take();
+        this.closeQuietly();
+    }
 
-                    ByteArrayOutputStream out = new ByteArrayOutputStream();
-                    DataOutputStream dos = new DataOutputStream(out);
-                    take.write(dos);
+    /**
+     * Accepts a pending connection, rejecting it if too
+     * many agents are connected.
+     *
+     * @throws IOException if the connection fails
+     */
+    private void accept() throws IOException {
+        SocketChannel ch = this.server.accept();
+        if (ch == null) {
+            return;
+        }
 
-                    OutDataWrapper wrapper = new OutDataWrapper(out.toByteArray(), SignalRegistry.writeSignal(take));
-                    server.getOutgoing().add(wrapper);
-                } catch (InterruptedException e) {
+        if (this.connections.size() < MAX_CONNECTIONS) {
+            AgentConnection conn = new AgentConnection(this, ch);
+            ch.configureBlocking(false);
+            ch.register(this.selector, SelectionKey.OP_READ, conn);
+            this.connections.add(conn);
+        } else {
+            SignalOutBusy signal = new SignalOutBusy();
+            ByteBuffer busy = encode(this.encoder, SignalRegistry.writeSignal(signal), signal, 0);
+            while (busy.hasRemaining()) {
+                if (ch.write(busy) == 0) {
                     break;
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
                 }
             }
-        });
-
-        // Read processor
-        threads[2] = new Thread(() -> {
-            while (true) {
-                try {
-                    InDataWrapper data = server.getIncoming().take();
-                    SignalIn signal = SignalRegistry.readSignal(data.getId());
-                    signal.read(new DataInputStream(new ByteArrayInputStream(data.getData())));
-                } catch (InterruptedException e) {
-                    break;
-                } catch (IOException e) {
-                    e.printStackTrace();
+            this.encoder.release(busy);
+            ch.close();
+        }
+    }
+
+    /**
+     * Reads the available bytes from an agent and passes
+     * each complete frame to the decode thread.
+     *
+     * @param conn the agent connection
+     * @return the number of bytes read
+     * @throws IOException if the read fails
+     */
+    int read(AgentConnection conn) throws IOException {
+        FrameDecoder decoder = conn.getDecoder();
+        int read = conn.getChannel().read(decoder.buffer());
+        if (read == -1) {
+            this.disconnected(conn);
+            return read;
+        }
+
+        Frame frame;
+        while ((frame = decoder.next()) != null) {
+            this.stats.received(frame.getId(), frame.getPayload().remaining() + FrameDecoder.HEADER_LEN + FrameDecoder.ID_LEN);
+
+            // Responses complete a request, so they are never
+            // dropped in favor of other frames and never make
+            // the I/O thread wait for space
+            int correlationId = frame.getCorrelationId();
+            if (correlationId != 0) {
+                if (conn.isPending(correlationId)) {
+                    this.incoming.offerReserved(new InboundFrame(conn, frame));
+                } else {
+                    Main.printAsync("warn: agent " + conn.getPid() + " responded to unknown request " + correlationId);
+                    frame.release();
                 }
+                continue;
             }
-        });
-
-        // Socket listener
-        threads[3] = new Thread(() -> {
-            while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    SocketChannel ch = server.getServer().accept();
-                    if (server.getState().compareAndSet(AgentServer.WAITING_FOR_CON, AgentServer.ACTIVE)) {
-                        server.getLock().lockInterruptibly();
-                        try {
-                            server.setConn(ch);
-                            server.getHasConnection().signalAll();
-                        } finally {
-                            server.getLock().unlock();
-                        }
-                    } else {
-                        AgentServer.writeSignal(new SignalOutBusy(), ch);
-                        ch.close();
-                    }
-                } catch (IOException | InterruptedException e) {
+
+            QueuePolicy policy = SignalRegistry.readPolicy(frame.getId());
+            Object key = policy == QueuePolicy.COALESCE ? Maps.immutableEntry(conn, frame.getId()) : null;
+            this.incoming.offer(new InboundFrame(conn, frame), policy, key);
+        }
+        return read;
+    }
+
+    /**
+     * Releases a frame which was dropped from the decode
+     * queue, failing the request it responds to.
+     *
+     * @param inbound the dropped frame
+     */
+    private void dropped(InboundFrame inbound) {
+        Frame frame = inbound.getFrame();
+        if (frame.getCorrelationId() != 0) {
+            inbound.getSource().fail(frame.getCorrelationId(), "response dropped, decode queue is full");
+        }
+        frame.release();
+    }
+
+    /**
+     * Encodes the queued signals for an agent and writes
+     * as much as its channel will accept, registering for
+     * write readiness if anything is left over. No more
+     * than the outgoing limit of frames are encoded ahead
+     * of the channel, so the rest wait in the bounded
+     * signal queue.
+     *
+     * @param conn the agent connection
+     * @throws IOException if the write fails
+     */
+    void flush(AgentConnection conn) throws IOException {
+        ByteChannel ch = conn.getChannel();
+        if (!ch.isOpen()) {
+            return;
+        }
+
+        FrameEncoder encoder = conn.getEncoder();
+        Queue<EncodedFrame> outgoing = conn.getOutgoing();
+        SignalQueue<OutboundSignal> out = conn.getOut();
+        do {
+            OutboundSignal signal;
+            while (outgoing.size() < this.limits.getOutgoing() && (signal = out.poll()) != null) {
+                int id = SignalRegistry.writeSignal(signal.getSignal());
+                long start = System.nanoTime();
+                ByteBuffer buf = encode(encoder, id, signal.getSignal(), signal.getCorrelationId());
+                this.stats.encoded(id, System.nanoTime() - start);
+                outgoing.add(new EncodedFrame(id, buf, signal.getEnqueuedNanos()));
+            }
+
+            EncodedFrame frame;
+            while ((frame = outgoing.peek()) != null) {
+                ByteBuffer buf = frame.getBuffer();
+                ch.write(buf);
+                if (buf.hasRemaining()) {
                     break;
                 }
+
+                this.stats.sent(frame.getId(), buf.limit(), System.nanoTime() - frame.getEnqueuedNanos());
+                encoder.release(outgoing.poll().getBuffer());
             }
-        });
+        } while (outgoing.isEmpty() && !out.isEmpty());
 
-        return server;
+        if (outgoing.isEmpty() && conn.isClosing()) {
+            this.disconnected(conn);
+            return;
+        }
+
+        if (!(ch instanceof SocketChannel)) {
+            return;
+        }
+
+        SelectionKey key = ((SocketChannel) ch).keyFor(this.selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(outgoing.isEmpty() ?
+                    SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
     }
 
     /**
-     * Writes the given signal out to the socket.
+     * Closes and forgets an agent connection.
      *
-     * @param sig the signal to write
-     * @param ch the socket to which the signal will be
-     * written
-     * @throws IOException should not occur
+     * @param conn the connection which has closed
      */
-    private static void writeSignal(SignalOut sig, SocketChannel ch) throws IOException {
-        int id = SignalRegistry.writeSignal(sig);
+    void disconnected(AgentConnection conn) {
+        if (!this.connections.remove(conn)) {
+            return;
+        }
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        DataOutputStream stream = new DataOutputStream(out);
-        sig.write(stream);
+        try {
+            conn.getChannel().close();
+        } catch (IOException ignored) {
+        }
+
+        conn.getDecoder().close();
+        conn.failPending();
+        EncodedFrame frame;
+        while ((frame = conn.getOutgoing().poll()) != null) {
+            conn.getEncoder().release(frame.getBuffer());
+        }
+
+        int pid = conn.getPid();
+        if (pid != AgentConnection.UNKNOWN_PID) {
+            this.agents.remove(pid, conn);
+            if (!conn.isClosing()) {
+                Main.printAsync("abort: agent " + pid + " disconnected");
+            }
+        }
+    }
 
-        int size = out.size() + 4;
+    /**
+     * Records the PID of an agent which has sent its init
+     * signal.
+     *
+     * @param conn the identified connection
+     */
+    void register(AgentConnection conn) {
+        AgentConnection prev = this.agents.put(conn.getPid(), conn);
+        if (prev != null && prev != conn) {
+            prev.closeAfterFlush();
+        }
 
-        ByteBuffer buf = ByteBuffer.allocate(size + 4);
-        buf.putInt(size);
-        buf.putInt(id);
-        buf.put(out.toByteArray());
+        conn.write(new SignalOutRespInit());
+    }
 
-        ch.write(buf);
+    /**
+     * Wakes the I/O thread in order to write the signals
+     * queued on the given connection.
+     *
+     * @param conn the connection to flush
+     */
+    void scheduleFlush(AgentConnection conn) {
+        RingPoller poller = conn.getPoller();
+        if (poller != null) {
+            poller.wake();
+            return;
+        }
+
+        if (conn.getFlushScheduled().compareAndSet(false, true)) {
+            this.flushQueue.add(conn);
+            this.selector.wakeup();
+        }
     }
 
     /**
-     * Closes the server and halts processing of the packet
-     * queue.
+     * The decode stage, which converts the raw frames into
+     * signals and processes them.
      */
-    public void close() {
-        this.state.set(AgentServer.SHUTDOWN);
-        try {
-            this.outgoing.clear();
+    private void runDecode() {
+        ByteBufferInputStream stream = new ByteBufferInputStream();
+        DataInputStream in = new DataInputStream(stream);
+        while (true) {
+            InboundFrame inbound;
+            try {
+                inbound = this.incoming.take();
+            } catch (InterruptedException e) {
+                break;
+            }
 
-            this.lock.lockInterruptibly();
+            Frame frame = inbound.getFrame();
+            AgentConnection source = inbound.getSource();
+            int id = frame.getId();
+            long start = System.nanoTime();
             try {
-                writeSignal(new SignalOutExit(3, "JDB Exit"), this.conn);
-                this.conn.close();
+                SignalIn signal = SignalRegistry.readSignal(id);
+                stream.reset(frame.getPayload());
+                signal.read(source, in);
+
+                int correlationId = frame.getCorrelationId();
+                if (correlationId != 0 && !source.respond(correlationId, signal)) {
+                    Main.printAsync("warn: agent " + source.getPid() + " responded to unknown request " + correlationId);
+                }
+            } catch (IOException | RuntimeException e) {
+                // Unknown signals and failing handlers must not
+                // end the stage, which serves every agent
+                Main.printAsync("warn: agent " + source.getPid() + " sent a malformed signal " + id + ": " + e);
+                if (frame.getCorrelationId() != 0) {
+                    source.fail(frame.getCorrelationId(), "malformed response: " + e.getMessage());
+                }
             } finally {
-                this.lock.unlock();
+                frame.release();
+                this.stats.decoded(id, System.nanoTime() - start);
             }
+        }
+    }
+
+    /**
+     * Releases the sockets and the selector.
+     */
+    private void closeQuietly() {
+        for (AgentConnection conn : this.connections) {
+            this.disconnected(conn);
+        }
 
+        try {
             this.server.close();
-            for (Thread thread : this.threads) {
-                thread.interrupt();
+            this.selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Opens the newest shared memory ring created by an agent
+     * started with the {@code shm} argument in the VM with
+     * the given PID, if there is one which is private to
+     * this user.
+     *
+     * @param pid the PID of the VM
+     * @return {@code true} if a ring was opened
+     */
+    public boolean attachShared(int pid) {
+        if (this.agents.containsKey(pid)) {
+            return false;
+        }
+
+        Path path = null;
+        SharedRingChannel ch;
+        try {
+            List<Path> rings = SharedRingChannel.find(pid);
+            if (rings.isEmpty()) {
+                return false;
             }
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException(e);
+            path = rings.get(0);
+            ch = SharedRingChannel.open(path);
+        } catch (IOException e) {
+            Main.printAsync("warn: failed to open agent ring " + path + ": " + e.getMessage());
+            return false;
         }
+        ch.configureBlocking(false);
+
+        AgentConnection conn = new AgentConnection(this, ch);
+        RingPoller poller = new RingPoller(this, conn, ch);
+        conn.setPoller(poller);
+        this.connections.add(conn);
+        poller.start();
+
+        return true;
+    }
+
+    /**
+     * Obtains the state of the queue of frames waiting to
+     * be decoded.
+     *
+     * @return the inbound queue stats
+     */
+    public QueueStats getIncomingStats() {
+        return this.incoming.stats();
+    }
+
+    /**
+     * Obtains the agents which have identified themselves.
+     *
+     * @return the connected agents
+     */
+    public Collection<AgentConnection> getAgents() {
+        return Collections.unmodifiableCollection(this.agents.values());
+    }
+
+    /**
+     * Obtains the connection to the agent running in the
+     * VM with the given PID.
+     *
+     * @param pid the PID of the VM
+     * @return the connection, or {@code null} if no such
+     * agent has connected
+     */
+    public AgentConnection getAgent(int pid) {
+        return this.agents.get(pid);
+    }
+
+    /**
+     * Requests for the agent running in the VM with the
+     * given PID to exit, and closes its connection.
+     *
+     * @param pid the PID of the VM
+     */
+    public void disconnect(int pid) {
+        AgentConnection conn = this.agents.get(pid);
+        if (conn != null) {
+            conn.write(new SignalOutExit(3, "JDB Exit"));
+            conn.closeAfterFlush();
+        }
+    }
+
+    /**
+     * Requests for every connected agent to exit, then
+     * closes the server and halts processing of the packet
+     * queue.
+     */
+    public void close() {
+        if (!this.state.compareAndSet(ACTIVE, CLOSING)) {
+            return;
+        }
+
+        // The I/O thread keeps running until the exit signals
+        // are flushed and the connections have closed
+        for (int pid : this.agents.keySet()) {
+            this.disconnect(pid);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!this.agents.isEmpty() && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(10L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        this.state.set(SHUTDOWN);
+        this.selector.wakeup();
+
+        try {
+            this.ioThread.join(TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.ioThread.interrupt();
+        this.decodeThread.interrupt();
+        this.closeQuietly();
     }
 
     /**
      * Enqueues the given signal to be processed and written
      * out to the connection with the target VM.
      *
+     * @param pid the PID of the target VM
      * @param signal the signal to write
+     * @return {@code true} if the VM has a connected agent
      */
-    public void write(SignalOut signal) {
-        this.out.add(signal);
+    public boolean write(int pid, SignalOut signal) {
+        AgentConnection conn = this.agents.get(pid);
+        if (conn == null) {
+            return false;
+        }
+
+        conn.write(signal);
+        return true;
+    }
+
+    /**
+     * Sends a request to the agent in the VM with the given
+     * PID without waiting for its response.
+     *
+     * @param pid the PID of the target VM
+     * @param signal the request signal
+     * @param responseType the type of the response signal
+     * @param <T> the response type
+     * @return the future response, which fails if the VM
+     * has no connected agent or it disconnects first
+     */
+    public <T extends SignalIn> CompletableFuture<T> request(int pid, SignalOut signal, Class<T> responseType) {
+        AgentConnection conn = this.agents.get(pid);
+        if (conn == null) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("no agent connected to " + pid));
+            return future;
+        }
+
+        return conn.request(signal, responseType);
     }
 }
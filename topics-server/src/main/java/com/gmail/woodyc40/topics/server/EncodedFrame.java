@@ -14,21 +14,22 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package com.gmail.woodyc40.topics.infra;
+package com.gmail.woodyc40.topics.server;
 
-import com.sun.jdi.Location;
-import com.sun.jdi.Value;
 import lombok.Data;
 
+import java.nio.ByteBuffer;
+
 /**
- * A frame of execution that is used to capture the moment
- * in the stack at which a method is called.
+ * A frame which has been encoded and is waiting to be
+ * written to an agent.
  */
 @Data
-public class Frame {
-    private final Location resultLocation;
-    private final Value result;
-
-    private final String callerSignature;
-    private final long time;
-}
\ No newline at end of file
+class EncodedFrame {
+    /** The signal ID */
+    private final int id;
+    /** The pooled frame buffer, flipped for writing */
+    private final ByteBuffer buffer;
+    /** The {@link System#nanoTime()} it was enqueued */
+    private final long enqueuedNanos;
+}
@@ -14,19 +14,20 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package com.gmail.woodyc40.topics.protocol;
+package com.gmail.woodyc40.topics.server;
 
+import com.gmail.woodyc40.topics.codec.Frame;
 import lombok.Data;
 
 import javax.annotation.concurrent.Immutable;
 
 /**
- * Wrapper over data to be written to the outgoing socket
- * stream with the target VM.
+ * A frame which has been read from an agent and is waiting
+ * to be decoded.
  */
 @Data
 @Immutable
-public class OutDataWrapper {
-    private final byte[] data;
-    private final int id;
-}
\ No newline at end of file
+class InboundFrame {
+    private final AgentConnection source;
+    private final Frame frame;
+}
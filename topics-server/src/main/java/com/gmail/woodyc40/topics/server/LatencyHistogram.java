@@ -0,0 +1,115 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.server;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * A lock-free histogram of durations in nanoseconds, with
+ * one bucket for each power of two.
+ *
+ * <p>Percentiles are reported as the upper bound of the
+ * bucket which contains them, so they are accurate to
+ * within a factor of two.</p>
+ */
+@ThreadSafe
+public class LatencyHistogram {
+    /** The number of buckets, one per bit of a long */
+    private static final int BUCKETS = 64;
+
+    /** The number of samples in each bucket */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    /** The largest sample */
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    /**
+     * Records a sample.
+     *
+     * @param nanos the duration, in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+
+        this.counts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos) - (nanos == 0 ? 0 : 1));
+        this.max.accumulate(nanos);
+    }
+
+    /**
+     * Obtains the number of recorded samples.
+     *
+     * @return the sample count
+     */
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += this.counts.get(i);
+        }
+
+        return count;
+    }
+
+    /**
+     * Obtains an upper bound of the given percentile of the
+     * recorded samples.
+     *
+     * @param percentile the percentile, from 0 to 100
+     * @return the percentile, in nanoseconds, or 0 if no
+     * samples have been recorded
+     */
+    public long percentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = this.counts.get(i);
+            count += snapshot[i];
+        }
+
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1, this.max());
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Obtains the largest recorded sample.
+     *
+     * @return the maximum, in nanoseconds
+     */
+    public long max() {
+        return this.max.get();
+    }
+
+    /**
+     * Discards all of the recorded samples.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts.set(i, 0);
+        }
+        this.max.reset();
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.server;
+
+import com.gmail.woodyc40.topics.protocol.SignalOut;
+import lombok.Data;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A signal which is waiting to be written to an agent.
+ */
+@Data
+@Immutable
+class OutboundSignal {
+    private final SignalOut signal;
+    /** The request ID, or 0 if no response is expected */
+    private final int correlationId;
+    /** The {@link System#nanoTime()} it was enqueued */
+    private final long enqueuedNanos;
+}
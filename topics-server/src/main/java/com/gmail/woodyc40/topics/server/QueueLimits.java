@@ -0,0 +1,73 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.server;
+
+import com.google.common.base.Splitter;
+import lombok.Data;
+
+import java.util.Map;
+
+/**
+ * The capacities of the queues between the debugger and
+ * its agents.
+ */
+@Data
+public class QueueLimits {
+    /** Signals waiting to be encoded, per agent */
+    private int out = 1024;
+    /** Encoded frames waiting to be written, per agent */
+    private int outgoing = 256;
+    /** Frames waiting to be decoded, from all agents */
+    private int incoming = 4096;
+
+    /**
+     * Parses queue limits from a comma separated list of
+     * {@code queue=capacity} pairs, using the defaults for
+     * any which are left out.
+     *
+     * @param spec the limits, e.g.
+     * {@code out=1024,incoming=4096}
+     * @return the parsed limits
+     */
+    public static QueueLimits parse(String spec) {
+        QueueLimits limits = new QueueLimits();
+        Map<String, String> pairs = Splitter.on(',').trimResults().omitEmptyStrings()
+                .withKeyValueSeparator('=').split(spec);
+        for (Map.Entry<String, String> entry : pairs.entrySet()) {
+            int capacity = Integer.parseInt(entry.getValue());
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("capacity must be positive: " + entry.getKey());
+            }
+
+            switch (entry.getKey()) {
+                case "out":
+                    limits.setOut(capacity);
+                    break;
+                case "outgoing":
+                    limits.setOutgoing(capacity);
+                    break;
+                case "incoming":
+                    limits.setIncoming(capacity);
+                    break;
+                default:
+                    throw new IllegalArgumentException("no queue named " + entry.getKey());
+            }
+        }
+
+        return limits;
+    }
+}
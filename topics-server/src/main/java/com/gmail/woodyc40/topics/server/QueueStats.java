@@ -0,0 +1,40 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.server;
+
+import lombok.Data;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A snapshot of the occupancy and overflow counters of a
+ * signal queue.
+ */
+@Data
+@Immutable
+public class QueueStats {
+    /** The number of queued signals */
+    private final int size;
+    /** The maximum number of queued signals */
+    private final int capacity;
+    /** The number of signals dropped because it was full */
+    private final long dropped;
+    /** The number of signals replaced by newer ones */
+    private final long coalesced;
+    /** The number of times a producer waited for space */
+    private final long blocked;
+}
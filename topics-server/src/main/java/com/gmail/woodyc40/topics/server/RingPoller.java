@@ -0,0 +1,86 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.server;
+
+import com.gmail.woodyc40.topics.codec.SharedRingChannel;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Services a connection to an agent over a shared memory
+ * ring, in place of the selector.
+ *
+ * <p>The ring is polled continuously while frames are
+ * flowing, and the poller backs off to parking once it is
+ * idle. Enqueued signals unpark it so they are written
+ * without waiting for the backoff to elapse.</p>
+ */
+class RingPoller implements Runnable {
+    /** The server which the connection belongs to */
+    private final AgentServer server;
+    /** The connection serviced by this poller */
+    private final AgentConnection conn;
+    /** The ring shared with the agent */
+    private final SharedRingChannel channel;
+    /** The polling thread */
+    private final Thread thread;
+
+    RingPoller(AgentServer server, AgentConnection conn, SharedRingChannel channel) {
+        this.server = server;
+        this.conn = conn;
+        this.channel = channel;
+        this.thread = new Thread(this, "Agent ring poller");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Begins polling the ring.
+     */
+    void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Wakes the poller in order to write the signals queued
+     * on its connection.
+     */
+    void wake() {
+        LockSupport.unpark(this.thread);
+    }
+
+    @Override
+    public void run() {
+        int idle = 0;
+        while (this.channel.isOpen()) {
+            try {
+                boolean queued = !this.conn.getOut().isEmpty() || !this.conn.getOutgoing().isEmpty();
+                if (queued || this.conn.isClosing()) {
+                    this.server.flush(this.conn);
+                }
+
+                if (this.server.read(this.conn) > 0 || queued) {
+                    idle = 0;
+                } else {
+                    SharedRingChannel.idle(idle++);
+                }
+            } catch (IOException e) {
+                this.server.disconnected(this.conn);
+            }
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.server;
+
+import com.gmail.woodyc40.topics.protocol.QueuePolicy;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import lombok.Getter;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A bounded queue of signals which applies each signal's
+ * {@link QueuePolicy} once it is full, and counts the
+ * signals it has dropped or coalesced.
+ *
+ * <p>Blocking producers only wait up to the block timeout
+ * so that two stages waiting on each other's queues cannot
+ * stall the debugger indefinitely.</p>
+ *
+ * <p>Elements whose number is already bounded elsewhere,
+ * such as the responses to requests in flight, may skip
+ * the capacity through a reserved lane which is consumed
+ * first, so that they never wait or are dropped.</p>
+ *
+ * @param <E> the queued element type
+ */
+@ThreadSafe
+class SignalQueue<E> {
+    /** The maximum time to block a producer */
+    private static final long BLOCK_TIMEOUT_MS = 1000L;
+
+    /** The maximum number of queued elements */
+    @Getter
+    private final int capacity;
+    /** Disposes of dropped elements */
+    private final Consumer<? super E> onDrop;
+    /** Protects the queue state */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signalled when an element is removed */
+    private final Condition notFull = this.lock.newCondition();
+    /** Signalled when an element is added */
+    private final Condition notEmpty = this.lock.newCondition();
+    /** The queued elements, in order */
+    @GuardedBy("lock")
+    private final Queue<Slot<E>> slots = Queues.newArrayDeque();
+    /** The queued elements which may be coalesced, by key */
+    @GuardedBy("lock")
+    private final Map<Object, Slot<E>> coalescing = Maps.newHashMap();
+    /** The elements which skip the capacity, in order */
+    @GuardedBy("lock")
+    private final Queue<E> reserved = Queues.newArrayDeque();
+    /** The number of elements dropped to make space */
+    private final AtomicLong dropped = new AtomicLong();
+    /** The number of elements replaced by a newer one */
+    private final AtomicLong coalesced = new AtomicLong();
+    /** The number of times a producer had to wait */
+    private final AtomicLong blocked = new AtomicLong();
+
+    SignalQueue(int capacity, Consumer<? super E> onDrop) {
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+        this.capacity = capacity;
+        this.onDrop = onDrop;
+    }
+
+    /**
+     * Enqueues an element using the given policy.
+     *
+     * @param element the element to enqueue
+     * @param policy the policy to apply if full
+     * @param key the coalescing key, used by
+     * {@link QueuePolicy#COALESCE}
+     * @return {@code true} if the element was enqueued,
+     * {@code false} if it was dropped instead
+     */
+    boolean offer(E element, QueuePolicy policy, Object key) {
+        E discard = null;
+        boolean accepted = true;
+
+        this.lock.lock();
+        try {
+            Slot<E> existing = policy == QueuePolicy.COALESCE ? this.coalescing.get(key) : null;
+            if (existing != null) {
+                discard = existing.value;
+                existing.value = element;
+                this.coalesced.incrementAndGet();
+            } else {
+                if (this.slots.size() >= this.capacity) {
+                    if (policy == QueuePolicy.BLOCK) {
+                        this.blocked.incrementAndGet();
+                        long nanos = TimeUnit.MILLISECONDS.toNanos(BLOCK_TIMEOUT_MS);
+                        while (this.slots.size() >= this.capacity && nanos > 0) {
+                            nanos = this.notFull.awaitNanos(nanos);
+                        }
+                    } else {
+                        discard = this.removeHead();
+                    }
+                }
+
+                if (this.slots.size() >= this.capacity) {
+                    discard = element;
+                    accepted = false;
+                } else {
+                    Slot<E> slot = new Slot<>(policy == QueuePolicy.COALESCE ? key : null, element);
+                    this.slots.add(slot);
+                    if (slot.key != null) {
+                        this.coalescing.put(slot.key, slot);
+                    }
+                    this.notEmpty.signal();
+                }
+
+                if (discard != null) {
+                    this.dropped.incrementAndGet();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.dropped.incrementAndGet();
+            discard = element;
+            accepted = false;
+        } finally {
+            this.lock.unlock();
+        }
+
+        if (discard != null) {
+            this.onDrop.accept(discard);
+        }
+        return accepted;
+    }
+
+    /**
+     * Enqueues an element in the reserved lane, regardless
+     * of the capacity.
+     *
+     * @param element the element to enqueue
+     */
+    void offerReserved(E element) {
+        this.lock.lock();
+        try {
+            this.reserved.add(element);
+            this.notEmpty.signal();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest element to make space.
+     *
+     * @return the removed element
+     */
+    @GuardedBy("lock")
+    private E removeHead() {
+        Slot<E> head = this.slots.poll();
+        if (head.key != null) {
+            this.coalescing.remove(head.key, head);
+        }
+
+        return head.value;
+    }
+
+    /**
+     * Removes the oldest element, if there is one.
+     *
+     * @return the element, or {@code null} if empty
+     */
+    E poll() {
+        this.lock.lock();
+        try {
+            if (!this.reserved.isEmpty()) {
+                return this.reserved.poll();
+            }
+            if (this.slots.isEmpty()) {
+                return null;
+            }
+
+            E element = this.removeHead();
+            this.notFull.signal();
+            return element;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest element, waiting for one to be
+     * enqueued if necessary.
+     *
+     * @return the element
+     * @throws InterruptedException if interrupted while
+     * waiting
+     */
+    E take() throws InterruptedException {
+        this.lock.lockInterruptibly();
+        try {
+            while (this.slots.isEmpty() && this.reserved.isEmpty()) {
+                this.notEmpty.await();
+            }
+            if (!this.reserved.isEmpty()) {
+                return this.reserved.poll();
+            }
+
+            E element = this.removeHead();
+            this.notFull.signal();
+            return element;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Obtains the number of queued elements.
+     *
+     * @return the queue size
+     */
+    int size() {
+        this.lock.lock();
+        try {
+            return this.slots.size() + this.reserved.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Determines whether there are no queued elements.
+     *
+     * @return {@code true} if the queue is empty
+     */
+    boolean isEmpty() {
+        return this.size() == 0;
+    }
+
+    /**
+     * Obtains the number of elements dropped because the
+     * queue was full.
+     *
+     * @return the drop count
+     */
+    long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Obtains the number of elements replaced by a newer
+     * element with the same coalescing key.
+     *
+     * @return the coalesce count
+     */
+    long getCoalesced() {
+        return this.coalesced.get();
+    }
+
+    /**
+     * Obtains the number of times a producer waited for
+     * space.
+     *
+     * @return the block count
+     */
+    long getBlocked() {
+        return this.blocked.get();
+    }
+
+    /**
+     * Takes a snapshot of the state of this queue.
+     *
+     * @return the queue stats
+     */
+    QueueStats stats() {
+        return new QueueStats(this.size(), this.capacity, this.getDropped(), this.getCoalesced(), this.getBlocked());
+    }
+
+    /**
+     * A queued element, which is replaced in place when
+     * coalesced.
+     */
+    private static final class Slot<E> {
+        /** The coalescing key, or {@code null} */
+        final Object key;
+        /** The current element */
+        E value;
+
+        Slot(Object key, E value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.server;
+
+import com.gmail.woodyc40.topics.protocol.SignalRegistry;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the frames exchanged with the agents, by
+ * signal ID.
+ *
+ * <p>Every counter is a {@link LongAdder}, so the I/O and
+ * decode threads never contend with each other or with a
+ * user reading the stats.</p>
+ */
+@ThreadSafe
+public class WireStats {
+    /** Frames received, by signal ID */
+    private final LongAdder[] framesIn;
+    /** Bytes received, by signal ID */
+    private final LongAdder[] bytesIn;
+    /** Time spent decoding and handling, by signal ID */
+    private final LongAdder[] decodeNanos;
+    /** Frames sent, by signal ID */
+    private final LongAdder[] framesOut;
+    /** Bytes sent, by signal ID */
+    private final LongAdder[] bytesOut;
+    /** Time spent encoding, by signal ID */
+    private final LongAdder[] encodeNanos;
+    /** The time from enqueuing a signal to it being written */
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+    WireStats() {
+        int signals = SignalRegistry.size();
+        this.framesIn = adders(signals);
+        this.bytesIn = adders(signals);
+        this.decodeNanos = adders(signals);
+        this.framesOut = adders(signals);
+        this.bytesOut = adders(signals);
+        this.encodeNanos = adders(signals);
+    }
+
+    private static LongAdder[] adders(int len) {
+        LongAdder[] adders = new LongAdder[len];
+        for (int i = 0; i < len; i++) {
+            adders[i] = new LongAdder();
+        }
+
+        return adders;
+    }
+
+    /**
+     * Obtains the number of signal IDs that are counted.
+     *
+     * @return the number of signal IDs
+     */
+    public int size() {
+        return this.framesIn.length;
+    }
+
+    /**
+     * Records a frame read from an agent.
+     *
+     * @param id the signal ID
+     * @param bytes the frame length, including the header
+     */
+    void received(int id, int bytes) {
+        if (id >= 0 && id < this.framesIn.length) {
+            this.framesIn[id].increment();
+            this.bytesIn[id].add(bytes);
+        }
+    }
+
+    /**
+     * Records the time taken to decode and handle a frame.
+     *
+     * @param id the signal ID
+     * @param nanos the decode time
+     */
+    void decoded(int id, long nanos) {
+        if (id >= 0 && id < this.decodeNanos.length) {
+            this.decodeNanos[id].add(nanos);
+        }
+    }
+
+    /**
+     * Records the time taken to encode a frame.
+     *
+     * @param id the signal ID
+     * @param nanos the encode time
+     */
+    void encoded(int id, long nanos) {
+        this.encodeNanos[id].add(nanos);
+    }
+
+    /**
+     * Records a frame which has been completely written to
+     * an agent.
+     *
+     * @param id the signal ID
+     * @param bytes the frame length, including the header
+     * @param latencyNanos the time since it was enqueued
+     */
+    void sent(int id, int bytes, long latencyNanos) {
+        this.framesOut[id].increment();
+        this.bytesOut[id].add(bytes);
+        this.writeLatency.record(latencyNanos);
+    }
+
+    /**
+     * Obtains the number of frames received with the
+     * given signal ID.
+     *
+     * @param id the signal ID
+     * @return the frame count
+     */
+    public long getFramesIn(int id) {
+        return this.framesIn[id].sum();
+    }
+
+    /**
+     * Obtains the number of bytes received with the
+     * given signal ID.
+     *
+     * @param id the signal ID
+     * @return the byte count
+     */
+    public long getBytesIn(int id) {
+        return this.bytesIn[id].sum();
+    }
+
+    /**
+     * Obtains the number of nanoseconds spent decoding and handling with the
+     * given signal ID.
+     *
+     * @param id the signal ID
+     * @return the total decode time
+     */
+    public long getDecodeNanos(int id) {
+        return this.decodeNanos[id].sum();
+    }
+
+    /**
+     * Obtains the number of frames sent with the
+     * given signal ID.
+     *
+     * @param id the signal ID
+     * @return the frame count
+     */
+    public long getFramesOut(int id) {
+        return this.framesOut[id].sum();
+    }
+
+    /**
+     * Obtains the number of bytes sent with the
+     * given signal ID.
+     *
+     * @param id the signal ID
+     * @return the byte count
+     */
+    public long getBytesOut(int id) {
+        return this.bytesOut[id].sum();
+    }
+
+    /**
+     * Obtains the number of nanoseconds spent encoding with the
+     * given signal ID.
+     *
+     * @param id the signal ID
+     * @return the total encode time
+     */
+    public long getEncodeNanos(int id) {
+        return this.encodeNanos[id].sum();
+    }
+
+    /**
+     * Obtains the distribution of the time from enqueuing a
+     * signal to it being written to the agent.
+     *
+     * @return the write latency histogram
+     */
+    public LatencyHistogram getWriteLatency() {
+        return this.writeLatency;
+    }
+
+    /**
+     * Resets every counter to zero.
+     */
+    public void reset() {
+        for (int i = 0; i < this.framesIn.length; i++) {
+            this.framesIn[i].reset();
+            this.bytesIn[i].reset();
+            this.decodeNanos[i].reset();
+            this.framesOut[i].reset();
+            this.bytesOut[i].reset();
+            this.encodeNanos[i].reset();
+        }
+        this.writeLatency.reset();
+    }
+}
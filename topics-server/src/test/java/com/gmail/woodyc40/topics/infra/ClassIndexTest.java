@@ -0,0 +1,173 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.infra;
+
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.VirtualMachine;
+import com.sun.jdi.event.ClassPrepareEvent;
+import com.sun.jdi.event.ClassUnloadEvent;
+import com.sun.jdi.request.ClassPrepareRequest;
+import com.sun.jdi.request.ClassUnloadRequest;
+import com.sun.jdi.request.EventRequestManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class ClassIndexTest {
+    private final ClassIndex index = new ClassIndex();
+    /** The classes the stub VM reports as loaded */
+    private final List<ReferenceType> loaded = new ArrayList<>();
+
+    private static ReferenceType type(String name) {
+        return Stubs.stub(ReferenceType.class, "name", name);
+    }
+
+    private VirtualMachine vm() {
+        Map<String, Object> erm = new HashMap<>();
+        erm.put("createClassPrepareRequest", Stubs.stub(ClassPrepareRequest.class, Collections.emptyMap()));
+        erm.put("createClassUnloadRequest", Stubs.stub(ClassUnloadRequest.class, Collections.emptyMap()));
+
+        Map<String, Object> vm = new HashMap<>();
+        vm.put("eventRequestManager", Stubs.stub(EventRequestManager.class, erm));
+        vm.put("allClasses", this.loaded);
+        vm.put("classesByName", Collections.emptyList());
+        return Stubs.stub(VirtualMachine.class, vm);
+    }
+
+    private void load(String name) {
+        this.index.prepared(Stubs.stub(ClassPrepareEvent.class, "referenceType", type(name)));
+    }
+
+    private void unload(String name) {
+        Map<String, Object> event = new HashMap<>();
+        event.put("className", name);
+        event.put("virtualMachine", this.vm());
+        this.index.unloaded(Stubs.stub(ClassUnloadEvent.class, event));
+    }
+
+    private List<String> find(String name) {
+        return this.index.find(name).stream().map(ReferenceType::name).collect(Collectors.toList());
+    }
+
+    @Before
+    public void attach() {
+        for (String name : new String[] { "java.lang.String", "java.lang.StringBuilder", "java.util.Map",
+                "java.util.HashMap", "java.util.Map$Entry", "com.example.ClassIndex", "com.example.Main",
+                "com.example.other.Main", "com.example.MapIndexer", "com.example.Indexes" }) {
+            this.loaded.add(type(name));
+        }
+        this.index.attach(this.vm());
+    }
+
+    @Test
+    public void findExactName() {
+        assertEquals(Collections.singletonList("java.util.Map"), this.find("java.util.Map"));
+        assertEquals(Collections.singletonList("java.util.Map$Entry"), this.find("java.util.Map$Entry"));
+    }
+
+    @Test
+    public void findSimpleName() {
+        assertEquals(Arrays.asList("com.example.Main", "com.example.other.Main"), this.find("main"));
+        assertEquals(Collections.singletonList("java.util.Map$Entry"), this.find("Entry"));
+        assertEquals(Collections.singletonList("java.util.Map$Entry"), this.find("map$entry"));
+    }
+
+    @Test
+    public void findShortPrefix() {
+        // Shorter simple names first within each branch
+        assertEquals(Arrays.asList("com.example.Main", "com.example.other.Main", "java.util.Map",
+                "java.util.Map$Entry", "com.example.MapIndexer"), this.find("Ma"));
+    }
+
+    @Test
+    public void findContainedRankedByPosition() {
+        // Matches at the start of the simple name come first,
+        // then those within it, then the shortest
+        assertEquals(Arrays.asList("com.example.Indexes", "com.example.ClassIndex", "com.example.MapIndexer"),
+                this.find("index"));
+        assertEquals(Collections.singletonList("com.example.MapIndexer"), this.find("apind"));
+        assertEquals(Collections.singletonList("java.lang.StringBuilder"), this.find("ngbu"));
+        assertEquals(5, this.find("xampl").size());
+    }
+
+    @Test
+    public void findFuzzy() {
+        assertEquals(Collections.singletonList("com.example.ClassIndex"), this.find("clsidx"));
+        assertEquals(Collections.singletonList("java.lang.StringBuilder"), this.find("sbldr"));
+        assertTrue(this.find("zzzz").isEmpty());
+    }
+
+    @Test
+    public void findLoadedAfterAttach() {
+        assertTrue(this.find("Widget").isEmpty());
+        this.load("com.example.Widget");
+        assertEquals(Collections.singletonList("com.example.Widget"), this.find("widget"));
+        assertEquals(Collections.singletonList("com.example.Widget"), this.find("idge"));
+        assertEquals(11, this.index.size());
+    }
+
+    @Test
+    public void forgetUnloaded() {
+        this.unload("com.example.MapIndexer");
+        assertEquals(9, this.index.size());
+        assertTrue(this.find("com.example.MapIndexer").isEmpty());
+        assertTrue(this.find("apind").isEmpty());
+        assertFalse(this.find("Ma").contains("com.example.MapIndexer"));
+        assertFalse(this.find("map").contains("com.example.MapIndexer"));
+    }
+
+    @Test
+    public void keepNamesAfterRenumbering() {
+        for (int i = 0; i < 5000; i++) {
+            this.load("gen.Generated" + i);
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            this.unload("gen.Generated" + i);
+        }
+        for (int i = 1; i < 5000; i += 2) {
+            this.unload("gen.Generated" + i);
+        }
+
+        assertEquals(10, this.index.size());
+        assertTrue(this.find("generated").isEmpty());
+        assertEquals(Arrays.asList("com.example.Indexes", "com.example.ClassIndex", "com.example.MapIndexer"),
+                this.find("index"));
+
+        this.load("gen.Generated7");
+        assertEquals(Collections.singletonList("gen.Generated7"), this.find("rated7"));
+    }
+
+    @Test
+    public void boundMatches() {
+        for (int i = 0; i < 200; i++) {
+            this.load("gen.Generated" + i);
+        }
+        assertEquals(50, this.find("nerat").size());
+    }
+
+    @Test
+    public void clearEverything() {
+        this.index.clear(null);
+        assertEquals(0, this.index.size());
+        assertTrue(this.find("java.util.Map").isEmpty());
+        assertTrue(this.find("ma").isEmpty());
+    }
+}
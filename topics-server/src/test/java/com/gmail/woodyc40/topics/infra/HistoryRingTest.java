@@ -0,0 +1,100 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.infra;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class HistoryRingTest {
+    /** A history of strings, each sized by its length */
+    private final HistoryRing<String> ring = new HistoryRing<>("test", 3, 10, String::length);
+
+    @Test
+    public void keepNewestEntries() {
+        for (String entry : new String[] { "a", "b", "c", "d" }) {
+            this.ring.add(entry);
+        }
+
+        assertEquals(Arrays.asList("b", "c", "d"), Lists.newArrayList(this.ring));
+        HistoryRing.Stats stats = this.ring.stats();
+        assertEquals("test", stats.getName());
+        assertEquals(3, stats.getEntries());
+        assertEquals(3, stats.getBytes());
+        assertEquals(1, stats.getEvictions());
+        assertEquals(4, stats.getAdded());
+    }
+
+    @Test
+    public void evictByBytes() {
+        this.ring.add("aaaa");
+        this.ring.add("bbbb");
+        this.ring.add("ccc");
+
+        assertEquals(Arrays.asList("bbbb", "ccc"), Lists.newArrayList(this.ring));
+        assertEquals(7, this.ring.stats().getBytes());
+    }
+
+    @Test
+    public void keepNewestLargerThanLimit() {
+        this.ring.add("a");
+        this.ring.add("too large for the limit");
+
+        assertEquals(Collections.singletonList("too large for the limit"), Lists.newArrayList(this.ring));
+        assertEquals(23, this.ring.stats().getBytes());
+    }
+
+    @Test
+    public void trimOnLowerLimit() {
+        for (String entry : new String[] { "a", "b", "c" }) {
+            this.ring.add(entry);
+        }
+        this.ring.limit(1, 10);
+
+        assertEquals(Collections.singletonList("c"), Lists.newArrayList(this.ring));
+        assertEquals(2, this.ring.stats().getEvictions());
+    }
+
+    @Test
+    public void iterateSnapshot() {
+        this.ring.add("a");
+        Iterator<String> it = this.ring.iterator();
+        this.ring.add("b");
+
+        assertEquals("a", it.next());
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void clearEntries() {
+        this.ring.add("a");
+        this.ring.clear();
+
+        assertFalse(this.ring.iterator().hasNext());
+        assertEquals(0, this.ring.stats().getBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectZeroLimit() {
+        this.ring.limit(0, 10);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.infra;
+
+import com.sun.jdi.*;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class ReturnStoreTest {
+    private final ReturnStore store = new ReturnStore(8);
+    private final Method caller = method("caller");
+    private final Method other = method("other");
+    private final Method callee = method("callee");
+
+    private static Method method(String name) {
+        return Stubs.stub(Method.class, "toString", name);
+    }
+
+    private static IntegerValue value(int value) {
+        return Stubs.stub(IntegerValue.class, "value", value);
+    }
+
+    private List<String> values(Method caller, int epoch) {
+        return this.store.lookup(caller, epoch).stream().map(ReturnStore.Record::getValue).collect(Collectors.toList());
+    }
+
+    @Test
+    public void findRecordsOfEachEpoch() {
+        assertEquals(0, this.store.advance(this.caller));
+        this.store.record(this.caller, this.callee, value(1));
+        this.store.record(this.caller, this.callee, value(2));
+        assertEquals(1, this.store.advance(this.caller));
+        this.store.record(this.caller, this.callee, value(3));
+
+        assertEquals(Arrays.asList("1", "2"), this.values(this.caller, 1));
+        assertEquals(Collections.singletonList("3"), this.values(this.caller, 2));
+        assertEquals(Arrays.asList("1", "2", "3"), this.values(this.caller, ReturnStore.ALL));
+
+        List<ReturnStore.Record> records = this.store.lookup(this.caller, 2);
+        assertSame(this.callee, records.get(0).getCallee());
+        assertEquals(2, records.get(0).getEpoch());
+    }
+
+    @Test
+    public void keepCallersApart() {
+        this.store.record(this.caller, this.callee, value(1));
+        this.store.record(this.other, this.callee, value(2));
+        this.store.record(this.caller, this.callee, value(3));
+
+        assertEquals(Arrays.asList("1", "3"), this.values(this.caller, ReturnStore.ALL));
+        assertEquals(Collections.singletonList("2"), this.values(this.other, ReturnStore.ALL));
+        assertTrue(this.values(this.callee, ReturnStore.ALL).isEmpty());
+    }
+
+    @Test
+    public void describeValues() {
+        this.store.record(this.caller, this.callee, Stubs.stub(BooleanValue.class, "value", true));
+        this.store.record(this.caller, this.callee, Stubs.stub(CharValue.class, "value", 'x'));
+        this.store.record(this.caller, this.callee, Stubs.stub(LongValue.class, "value", -5L));
+        this.store.record(this.caller, this.callee, Stubs.stub(FloatValue.class, "value", 1.5f));
+        this.store.record(this.caller, this.callee, Stubs.stub(DoubleValue.class, "value", 0.25));
+        this.store.record(this.caller, this.callee, Stubs.stub(ObjectReference.class, "toString", "instance of Foo"));
+        this.store.record(this.caller, this.callee, Stubs.stub(VoidValue.class, Collections.emptyMap()));
+        this.store.record(this.caller, this.callee, null);
+
+        assertEquals(Arrays.asList("true", "'x'", "-5", "1.5", "0.25", "instance of Foo", "void", "null"),
+                this.values(this.caller, ReturnStore.ALL));
+    }
+
+    @Test
+    public void evictOldestRecords() {
+        for (int i = 0; i < 12; i++) {
+            this.store.record(i % 3 == 0 ? this.other : this.caller, this.callee, value(i));
+        }
+
+        // Only the last 8 records are kept, of either caller
+        assertEquals(Arrays.asList("4", "5", "7", "8", "10", "11"), this.values(this.caller, ReturnStore.ALL));
+        assertEquals(Arrays.asList("6", "9"), this.values(this.other, ReturnStore.ALL));
+
+        HistoryRing.Stats stats = this.store.stats();
+        assertEquals(8, stats.getEntries());
+        assertEquals(8, stats.getMaxEntries());
+        assertEquals(4, stats.getEvictions());
+        assertEquals(12, stats.getAdded());
+        assertEquals(8L * ReturnStore.RECORD_BYTES, stats.getBytes());
+    }
+
+    @Test
+    public void stopAtEvictedEpoch() {
+        this.store.record(this.caller, this.callee, value(0));
+        this.store.advance(this.caller);
+        for (int i = 1; i <= 8; i++) {
+            this.store.record(this.caller, this.callee, value(i));
+        }
+
+        assertTrue(this.values(this.caller, 0).isEmpty());
+        assertEquals(8, this.values(this.caller, 1).size());
+    }
+
+    @Test
+    public void discardOnLimit() {
+        this.store.record(this.caller, this.callee, value(1));
+        this.store.limit(2);
+        assertTrue(this.values(this.caller, ReturnStore.ALL).isEmpty());
+        assertEquals(1, this.store.stats().getEvictions());
+
+        for (int i = 2; i <= 4; i++) {
+            this.store.record(this.caller, this.callee, value(i));
+        }
+        assertEquals(Arrays.asList("3", "4"), this.values(this.caller, ReturnStore.ALL));
+    }
+
+    @Test
+    public void forgetMethodsOnClear() {
+        this.store.record(this.caller, this.callee, value(1));
+        this.store.advance(this.caller);
+        this.store.clear();
+
+        assertTrue(this.values(this.caller, ReturnStore.ALL).isEmpty());
+        assertEquals(0, this.store.stats().getEntries());
+        assertEquals(0, this.store.advance(this.caller));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectZeroLimit() {
+        this.store.limit(0);
+    }
+}
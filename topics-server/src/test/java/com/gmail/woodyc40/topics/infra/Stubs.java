@@ -0,0 +1,70 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.infra;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Stand-ins for the JDI mirrors which the tests cannot
+ * obtain without a VM.
+ */
+final class Stubs {
+    private Stubs() {
+    }
+
+    /**
+     * Implements a JDI interface with the given answers by
+     * method name, and nothing for every other method. Stubs
+     * are only equal to themselves.
+     *
+     * @param type the interface
+     * @param answers the values returned, by method name
+     * @param <T> the interface type
+     * @return the stub
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T stub(Class<T> type, Map<String, Object> answers) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return answers.containsKey("toString") ? answers.get("toString") : type.getSimpleName() + answers;
+                default:
+                    return answers.get(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Implements a JDI interface which answers a single
+     * method.
+     *
+     * @param type the interface
+     * @param method the method name
+     * @param answer the value it returns
+     * @param <T> the interface type
+     * @return the stub
+     */
+    static <T> T stub(Class<T> type, String method, Object answer) {
+        return stub(type, Collections.singletonMap(method, answer));
+    }
+}
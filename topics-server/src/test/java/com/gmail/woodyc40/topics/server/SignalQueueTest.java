@@ -0,0 +1,137 @@
+/*
+ * JDB - Java Debugger
+ * Copyright 2017 Johnny Cao
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gmail.woodyc40.topics.server;
+
+import com.gmail.woodyc40.topics.protocol.QueuePolicy;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SignalQueueTest {
+    /** The elements passed to the drop callback */
+    private final List<String> drops = new ArrayList<>();
+    private final SignalQueue<String> queue = new SignalQueue<>(2, this.drops::add);
+
+    @Test
+    public void pollInOrder() {
+        assertTrue(this.queue.offer("a", QueuePolicy.BLOCK, null));
+        assertTrue(this.queue.offer("b", QueuePolicy.BLOCK, null));
+        assertEquals(2, this.queue.size());
+
+        assertEquals("a", this.queue.poll());
+        assertEquals("b", this.queue.poll());
+        assertNull(this.queue.poll());
+        assertTrue(this.queue.isEmpty());
+    }
+
+    @Test
+    public void dropBlockedAfterTimeout() {
+        this.queue.offer("a", QueuePolicy.BLOCK, null);
+        this.queue.offer("b", QueuePolicy.BLOCK, null);
+
+        assertFalse(this.queue.offer("c", QueuePolicy.BLOCK, null));
+        assertEquals(1, this.queue.getBlocked());
+        assertEquals(1, this.queue.getDropped());
+        assertEquals(2, this.queue.size());
+        assertEquals(1, this.drops.size());
+        assertEquals("c", this.drops.get(0));
+    }
+
+    @Test
+    public void unblockOnceSpaceIsFreed() throws InterruptedException {
+        this.queue.offer("a", QueuePolicy.BLOCK, null);
+        this.queue.offer("b", QueuePolicy.BLOCK, null);
+
+        Thread consumer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            this.queue.poll();
+        });
+        consumer.start();
+
+        assertTrue(this.queue.offer("c", QueuePolicy.BLOCK, null));
+        consumer.join();
+        assertEquals(0, this.queue.getDropped());
+        assertEquals("b", this.queue.poll());
+        assertEquals("c", this.queue.poll());
+    }
+
+    @Test
+    public void coalesceSameKey() {
+        this.queue.offer("a1", QueuePolicy.COALESCE, "a");
+        this.queue.offer("b1", QueuePolicy.COALESCE, "b");
+        assertTrue(this.queue.offer("a2", QueuePolicy.COALESCE, "a"));
+
+        // Replaced in place, keeping the order of the first
+        assertEquals(1, this.queue.getCoalesced());
+        assertEquals(2, this.queue.size());
+        assertEquals("a1", this.drops.get(0));
+        assertEquals("a2", this.queue.poll());
+        assertEquals("b1", this.queue.poll());
+    }
+
+    @Test
+    public void coalesceDropsOldestWithoutMatch() {
+        this.queue.offer("a1", QueuePolicy.COALESCE, "a");
+        this.queue.offer("b1", QueuePolicy.COALESCE, "b");
+        assertTrue(this.queue.offer("c1", QueuePolicy.COALESCE, "c"));
+
+        assertEquals(1, this.queue.getDropped());
+        assertEquals("a1", this.drops.get(0));
+
+        // The dropped key is no longer coalesced
+        this.queue.offer("a2", QueuePolicy.COALESCE, "a");
+        assertEquals(0, this.queue.getCoalesced());
+        assertEquals("c1", this.queue.poll());
+        assertEquals("a2", this.queue.poll());
+    }
+
+    @Test
+    public void coalesceOnlyWhileQueued() {
+        this.queue.offer("a1", QueuePolicy.COALESCE, "a");
+        assertEquals("a1", this.queue.poll());
+
+        this.queue.offer("a2", QueuePolicy.COALESCE, "a");
+        assertEquals(0, this.queue.getCoalesced());
+        assertEquals("a2", this.queue.poll());
+    }
+
+    @Test
+    public void reservedSkipsCapacityAndGoesFirst() throws InterruptedException {
+        this.queue.offer("a", QueuePolicy.BLOCK, null);
+        this.queue.offer("b", QueuePolicy.BLOCK, null);
+        this.queue.offerReserved("r1");
+        this.queue.offerReserved("r2");
+
+        assertEquals(4, this.queue.size());
+        assertEquals(0, this.queue.getDropped());
+        assertEquals("r1", this.queue.take());
+        assertEquals("r2", this.queue.poll());
+        assertEquals("a", this.queue.take());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectZeroCapacity() {
+        new SignalQueue<String>(0, e -> {});
+    }
+}